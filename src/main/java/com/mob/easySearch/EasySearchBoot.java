@@ -13,6 +13,8 @@ import org.springframework.boot.context.web.SpringBootServletInitializer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpStatus;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
 
 import springfox.documentation.builders.ApiInfoBuilder;
 import springfox.documentation.builders.PathSelectors;
@@ -22,6 +24,8 @@ import springfox.documentation.spring.web.plugins.Docket;
 import springfox.documentation.swagger2.annotations.EnableSwagger2;
 
 import com.google.common.collect.Sets;
+import com.mob.easySearch.controller.LaneInterceptor;
+import com.mob.easySearch.support.Bulkhead;
 
 /**
  * @author zxc Aug 28, 2015 11:46:11 AM
@@ -61,6 +65,31 @@ public class EasySearchBoot extends SpringBootServletInitializer {
         };
     }
 
+    /**
+     * 按路径把请求分到search/ingest/export/admin执行通道
+     */
+    @Bean
+    public WebMvcConfigurerAdapter laneConfigurer() {
+
+        return new WebMvcConfigurerAdapter() {
+
+            @Override
+            public void addInterceptors(InterceptorRegistry registry) {
+                registry.addInterceptor(new LaneInterceptor(Bulkhead.SEARCH))//
+                .addPathPatterns("/v1/api/*/*/search", "/v1/api/*/*/search/**", "/v1/api/*/*/msearch")//
+                // async由FairScheduler.acquireAsync非阻塞准入,不占用通道的并发数和请求线程
+                .excludePathPatterns("/v1/api/*/*/search/async");
+                registry.addInterceptor(new LaneInterceptor(Bulkhead.INGEST))//
+                .addPathPatterns("/v1/api/*/*/index", "/v1/api/*/*/index/**", "/v1/api/*/*/bulk");
+                registry.addInterceptor(new LaneInterceptor(Bulkhead.EXPORT))//
+                .addPathPatterns("/v1/api/*/*/export");
+                registry.addInterceptor(new LaneInterceptor(Bulkhead.ADMIN))//
+                .addPathPatterns("/v1/api/*/*/schema", "/v1/api/*/reindex", "/v1/api/schemas", "/v1/api/*/*/alias",
+                                 "/v1/api/analyzer", "/v1/api/analyzers");
+            }
+        };
+    }
+
     @Bean
     public Docket restApi() {
         return new Docket(DocumentationType.SWAGGER_2)//
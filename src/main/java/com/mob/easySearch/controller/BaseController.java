@@ -3,7 +3,11 @@
  */
 package com.mob.easySearch.controller;
 
+import java.io.File;
+import java.io.IOException;
+
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.servlet.http.HttpServletRequest;
 
 import org.springframework.beans.factory.annotation.Autowired;
@@ -14,7 +18,14 @@ import com.lamfire.json.JSON;
 import com.lamfire.logger.Logger;
 import com.lamfire.logger.LoggerFactory;
 import com.lamfire.utils.StringUtils;
+import com.mob.easySearch.support.AdaptiveBulk;
+import com.mob.easySearch.support.Bulkhead;
 import com.mob.easySearch.support.ElasticsearchHelper;
+import com.mob.easySearch.support.LatencyAwareClient;
+import com.mob.easySearch.support.Reindexer;
+import com.mob.easySearch.support.ScrollExporter;
+import com.mob.easySearch.support.ThreadUtil;
+import com.mob.easySearch.support.Timeouts;
 
 /**
  * @author zxc Jun 14, 2016 3:43:28 PM
@@ -32,13 +43,253 @@ public class BaseController {
     private String                       clusterName;
     @Value("${es.nodes}")
     private String                       nodes;
+    @Value("${es.mapping.refresh.interval:30000}")
+    private long                         mappingRefreshInterval;
+    @Value("${es.mapping.miss.ttl:5000}")
+    private long                         mappingMissTtl;
+    @Value("${es.bulk.size.mb:5}")
+    private int                          bulkSizeMb;
+    @Value("${es.bulk.flush.interval:1000}")
+    private long                         bulkFlushInterval;
+    @Value("${es.bulk.concurrent:8}")
+    private int                          bulkConcurrent;
+    @Value("${thread.pool.core:50}")
+    private int                          poolCore;
+    @Value("${thread.pool.max:50}")
+    private int                          poolMax;
+    @Value("${thread.pool.queue:10000}")
+    private int                          poolQueue;
+    @Value("${thread.pool.policy:abort}")
+    private String                       poolPolicy;
+    @Value("${search.type.dfs.indices:}")
+    private String                       dfsIndices;
+    @Value("${search.type.nodfs.indices:}")
+    private String                       noDfsIndices;
+    @Value("${search.type.dfs.maxDocs:0}")
+    private long                         dfsMaxDocs;
+    @Value("${search.type.stats.ttl:60000}")
+    private long                         docStatsTtl;
+    @Value("${search.cache.enabled:true}")
+    private boolean                      cacheEnabled;
+    @Value("${search.cache.maxEntries:10000}")
+    private int                          cacheMaxEntries;
+    @Value("${search.cache.maxMb:64}")
+    private int                          cacheMaxMb;
+    @Value("${search.cache.ttl:30000}")
+    private long                         cacheTtl;
+    @Value("${search.cache.refreshInterval:1500}")
+    private long                         cacheRefreshInterval;
+    @Value("${search.singleflight.enabled:true}")
+    private boolean                      singleFlightEnabled;
+    @Value("${search.singleflight.maxWait:3000}")
+    private long                         singleFlightMaxWait;
+    @Value("${export.threads:8}")
+    private int                          exportThreads;
+    @Value("${export.queue:100}")
+    private int                          exportQueue;
+    @Value("${reindex.threads:4}")
+    private int                          reindexThreads;
+    @Value("${reindex.batch.size:1000}")
+    private int                          reindexBatchSize;
+    @Value("${reindex.scroll.keepalive:300000}")
+    private long                         reindexKeepAlive;
+    @Value("${reindex.drop.old:false}")
+    private boolean                      reindexDropOld;
+    @Value("${es.bulk.load.maxSegments:1}")
+    private int                          bulkLoadMaxSegments;
+    @Value("${es.bulk.adaptive.threads:16}")
+    private int                          adaptiveThreads;
+    @Value("${es.bulk.adaptive.minActions:100}")
+    private int                          adaptiveMinActions;
+    @Value("${es.bulk.adaptive.maxActions:10000}")
+    private int                          adaptiveMaxActions;
+    @Value("${es.bulk.adaptive.step:100}")
+    private int                          adaptiveStep;
+    @Value("${es.bulk.adaptive.maxConcurrent:8}")
+    private int                          adaptiveMaxConcurrent;
+    @Value("${es.bulk.adaptive.targetTook:1000}")
+    private long                         adaptiveTargetTook;
+    @Value("${es.bulk.retry.max:5}")
+    private int                          bulkRetryMax;
+    @Value("${es.bulk.retry.backoff:100}")
+    private long                         bulkRetryBackoff;
+    @Value("${es.bulk.retry.maxBackoff:10000}")
+    private long                         bulkRetryMaxBackoff;
+    @Value("${es.client.mode:transport}")
+    private String                       clientMode;
+    @Value("${es.local.data:data/local}")
+    private String                       localData;
+    @Value("${es.client.selection:true}")
+    private boolean                      nodeSelection;
+    @Value("${es.client.sniff:true}")
+    private boolean                      nodeSniff;
+    @Value("${es.client.sniff.interval:30000}")
+    private long                         nodeSniffInterval;
+    @Value("${es.client.ewma.alpha:0.3}")
+    private double                       nodeEwmaAlpha;
+    @Value("${es.client.eject.failures:3}")
+    private int                          nodeEjectFailures;
+    @Value("${es.client.probe.interval:5000}")
+    private long                         nodeProbeInterval;
+    @Value("${es.client.ping.timeout:5000}")
+    private long                         nodePingTimeout;
+    @Value("${journal.enabled:false}")
+    private boolean                      journalEnabled;
+    @Value("${journal.dir:journal}")
+    private String                       journalDir;
+    @Value("${journal.segment.mb:64}")
+    private int                          journalSegmentMb;
+    @Value("${journal.replay.actions:1000}")
+    private int                          journalReplayActions;
+    @Value("${journal.replay.mb:5}")
+    private int                          journalReplayMb;
+    @Value("${journal.replay.idle:10}")
+    private long                         journalReplayIdle;
+    @Value("${journal.health.interval:5000}")
+    private long                         journalHealthInterval;
+    @Value("${journal.fsync.interval:1000}")
+    private long                         journalFsyncInterval;
+    @Value("${server.tomcat.max-threads:0}")
+    private int                          tomcatThreads;
+    @Value("${es.lane.isolated:true}")
+    private boolean                      laneIsolated;
+    @Value("${es.lane.search.maxConcurrent:120}")
+    private int                          searchLaneConcurrent;
+    @Value("${es.lane.search.maxQueue:20}")
+    private int                          searchLaneQueue;
+    @Value("${es.lane.search.queueTimeout:1000}")
+    private long                         searchLaneTimeout;
+    @Value("${es.lane.ingest.maxConcurrent:16}")
+    private int                          ingestLaneConcurrent;
+    @Value("${es.lane.ingest.maxQueue:8}")
+    private int                          ingestLaneQueue;
+    @Value("${es.lane.ingest.queueTimeout:30000}")
+    private long                         ingestLaneTimeout;
+    @Value("${es.lane.export.maxConcurrent:4}")
+    private int                          exportLaneConcurrent;
+    @Value("${es.lane.export.maxQueue:4}")
+    private int                          exportLaneQueue;
+    @Value("${es.lane.export.queueTimeout:30000}")
+    private long                         exportLaneTimeout;
+    @Value("${es.lane.admin.maxConcurrent:4}")
+    private int                          adminLaneConcurrent;
+    @Value("${es.lane.admin.maxQueue:4}")
+    private int                          adminLaneQueue;
+    @Value("${es.lane.admin.queueTimeout:30000}")
+    private long                         adminLaneTimeout;
+    @Value("${search.fair.enabled:true}")
+    private boolean                      fairEnabled;
+    @Value("${search.fair.maxConcurrent:64}")
+    private int                          fairMaxConcurrent;
+    @Value("${search.fair.tenant.maxConcurrent:32}")
+    private int                          fairTenantConcurrent;
+    @Value("${search.fair.tenant.maxQueue:100}")
+    private int                          fairTenantQueue;
+    @Value("${search.fair.queueTimeout:1000}")
+    private long                         fairQueueTimeout;
+    @Value("${search.fair.quantum:1}")
+    private int                          fairQuantum;
+    @Value("${search.fair.weights:}")
+    private String                       fairWeights;
+    @Value("${search.limit.enabled:true}")
+    private boolean                      limitEnabled;
+    @Value("${search.limit.initial:32}")
+    private int                          limitInitial;
+    @Value("${search.limit.min:8}")
+    private int                          limitMin;
+    @Value("${search.limit.max:200}")
+    private int                          limitMax;
+    @Value("${search.limit.tolerance:1.5}")
+    private double                       limitTolerance;
+    @Value("${search.limit.smoothing:0.2}")
+    private double                       limitSmoothing;
+    @Value("${search.limit.longWindow:600}")
+    private int                          limitLongWindow;
+    @Value("${search.limit.backoff:0.9}")
+    private double                       limitBackoff;
+    @Value("${es.timeout.search:10000}")
+    private long                         searchTimeout;
+    @Value("${es.timeout.bulk:60000}")
+    private long                         bulkTimeout;
+    @Value("${es.timeout.admin:30000}")
+    private long                         adminTimeout;
+    @Value("${es.timeout.maintenance:3600000}")
+    private long                         maintenanceTimeout;
+
+    // server.tomcat.max-threads未配置时Tomcat的默认线程数
+    private static final int             DEFAULT_TOMCAT_THREADS = 200;
 
     protected static ElasticsearchHelper es;
 
+    // 每个Controller都会执行一次,只初始化一个共享的ElasticsearchHelper
     @PostConstruct
     private void init() {
-        String[] nodeArray = StringUtils.split(nodes, ",");
-        es = new ElasticsearchHelper(clusterName, nodeArray);
+        synchronized (BaseController.class) {
+            if (es != null) return;
+            // 排队的请求阻塞Tomcat线程,通道占满所有线程时其他通道的请求无法进入
+            int laneThreads = searchLaneConcurrent + searchLaneQueue + ingestLaneConcurrent + ingestLaneQueue
+                              + exportLaneConcurrent + exportLaneQueue + adminLaneConcurrent + adminLaneQueue;
+            int maxThreads = tomcatThreads > 0 ? tomcatThreads : DEFAULT_TOMCAT_THREADS;
+            if (laneThreads > maxThreads) {
+                throw new IllegalStateException("lanes maxConcurrent+maxQueue " + laneThreads
+                                                + " exceed server.tomcat.max-threads " + maxThreads);
+            }
+            ThreadUtil.newExecutor(ThreadUtil.DEFAULT, poolCore, poolMax, poolQueue, poolPolicy);
+            ThreadUtil.newExecutor(ScrollExporter.EXECUTOR, exportThreads, exportThreads, exportQueue, "abort");
+            ThreadUtil.newExecutor(AdaptiveBulk.EXECUTOR, adaptiveThreads, adaptiveThreads, 10000, "abort");
+            ThreadUtil.newExecutor(Reindexer.EXECUTOR, reindexThreads, reindexThreads, 1000, "abort");
+            Timeouts.configure(searchTimeout, bulkTimeout, adminTimeout, maintenanceTimeout);
+            String[] nodeArray = StringUtils.split(nodes, ",");
+            LatencyAwareClient.Config selection = null;
+            if (nodeSelection) {
+                selection = new LatencyAwareClient.Config().sniff(nodeSniff, nodeSniffInterval).alpha(nodeEwmaAlpha)//
+                .eject(nodeEjectFailures, nodeProbeInterval, nodePingTimeout);
+            }
+            es = ElasticsearchHelper.create(clientMode, clusterName, nodeArray, localData, selection, laneIsolated);
+            es.getLane(Bulkhead.SEARCH).configure(searchLaneConcurrent, searchLaneQueue, searchLaneTimeout);
+            es.getLane(Bulkhead.INGEST).configure(ingestLaneConcurrent, ingestLaneQueue, ingestLaneTimeout);
+            es.getLane(Bulkhead.EXPORT).configure(exportLaneConcurrent, exportLaneQueue, exportLaneTimeout);
+            es.getLane(Bulkhead.ADMIN).configure(adminLaneConcurrent, adminLaneQueue, adminLaneTimeout);
+            es.getMappingRegistry().configure(mappingMissTtl);
+            es.getMappingRegistry().startRefresher(mappingRefreshInterval);
+            es.getSearchTypePolicy().configure(dfsIndices, noDfsIndices, dfsMaxDocs, docStatsTtl);
+            es.getSearchCache().configure(cacheEnabled, cacheMaxEntries, cacheMaxMb * 1024L * 1024L, cacheTtl,
+                                          cacheRefreshInterval);
+            es.getSearchFlight().configure(singleFlightEnabled, singleFlightMaxWait);
+            es.getSearchScheduler().configure(fairEnabled, fairMaxConcurrent, fairTenantConcurrent, fairTenantQueue,
+                                              fairQueueTimeout, fairQuantum, fairWeights);
+            es.getSearchScheduler().startSweeper();
+            es.getSearchLimiter().configure(limitEnabled, limitInitial, limitMin, limitMax, limitTolerance,
+                                            limitSmoothing, limitLongWindow, limitBackoff);
+            es.configureReindex(reindexBatchSize, reindexKeepAlive, reindexDropOld);
+            es.getBulkLoadMode().configure(bulkLoadMaxSegments);
+            es.getAdaptiveBulk().configure(adaptiveMinActions, adaptiveMaxActions, adaptiveStep, adaptiveMaxConcurrent,
+                                           adaptiveTargetTook, bulkRetryMax, bulkRetryBackoff, bulkRetryMaxBackoff);
+            es.startBulkIndexer(bulkSizeMb, bulkFlushInterval, bulkConcurrent);
+            if (journalEnabled) {
+                try {
+                    es.startJournal(new File(journalDir), journalSegmentMb, journalReplayActions, journalReplayMb,
+                                    journalReplayIdle, journalHealthInterval, journalFsyncInterval);
+                } catch (IOException e) {
+                    throw new IllegalStateException("open journal " + journalDir + " error", e);
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        synchronized (BaseController.class) {
+            if (es == null) return;
+            es.getMappingRegistry().stopRefresher();
+            es.getSearchScheduler().stopSweeper();
+            es.getBulkIndexer().close();
+            es.stopJournal();
+            es.getBulkLoadMode().restoreAll();
+            ThreadUtil.shutdown();
+            es.close();
+            es = null;
+        }
     }
 
     public static JSON fail(String msg) {
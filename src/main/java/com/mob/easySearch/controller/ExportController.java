@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.controller;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.bind.annotation.*;
+
+import com.google.common.base.Charsets;
+import com.lamfire.json.JSON;
+import com.lamfire.utils.StringUtils;
+import com.mob.easySearch.support.SearchQuery;
+
+/**
+ * @author zxc Dec 2, 2016 4:12:27 PM
+ */
+@RestController
+@RequestMapping("/v1/api")
+@Api(value = "export", description = "导出服务")
+public class ExportController extends BaseController {
+
+    @Value("${export.batch.size:1000}")
+    private int  exportBatchSize;
+    @Value("${export.scroll.keepalive:300000}")
+    private long exportKeepAlive;
+    @Value("${export.queue.size:8}")
+    private int  exportQueueSize;
+
+    @ApiOperation(value = "GET export", httpMethod = "GET", notes = "按分片并行导出文档,NDJSON格式每行一个_source,过滤参数同/search")
+    @RequestMapping(value = "/{indexName}/{indexType}/export", produces = { "application/x-ndjson" }, method = RequestMethod.GET)
+    void export(@ApiParam(required = true, name = "indexName", value = "索引名称命名空间") @PathVariable("indexName") String indexName,
+                @ApiParam(required = true, name = "indexType", value = "文档名称") @PathVariable("indexType") String indexType,
+                @ApiParam(required = false, name = "keywords", value = "关键词") @RequestParam(value = "keywords", required = false) String keywords,
+                HttpServletResponse response) throws IOException {
+        access.info("[ExportController parameterMap start]:" + JSON.toJSONString(request.getParameterMap()));
+        if (StringUtils.isEmpty(indexName) || StringUtils.isEmpty(indexType)) {
+            writeJSON(response, fail("参数错误"));
+            return;
+        }
+        if (!es.existsIndex(indexName)) {
+            writeJSON(response, fail("索引未定义"));
+            return;
+        }
+        SearchQuery query = null;
+        try {
+            query = SearchQuery.parse(indexName, indexType, 1, exportBatchSize, keywords, request.getParameterMap());
+        } catch (Exception e) {
+            _.error("export param error!", e);
+            writeJSON(response, fail("参数不支持"));
+            return;
+        }
+
+        response.setContentType("application/x-ndjson;charset=utf-8");
+        OutputStream out = response.getOutputStream();
+        Map<String, Object> result = es.export(indexName, indexType, keywords, query.getFilter(), query.getField(),
+                                               query.getRanges(), exportBatchSize, exportKeepAlive, exportQueueSize,
+                                               out);
+        access.info("[ExportController parameterMap end]:" + JSON.toJSONString(request.getParameterMap()) + " " + result);
+    }
+
+    private static void writeJSON(HttpServletResponse response, JSON json) throws IOException {
+        response.setContentType("application/json;charset=utf-8");
+        OutputStream out = response.getOutputStream();
+        out.write(json.toJSONString().getBytes(Charsets.UTF_8));
+        out.flush();
+    }
+}
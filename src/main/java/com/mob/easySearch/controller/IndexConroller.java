@@ -7,18 +7,22 @@ import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.lamfire.code.UUIDGen;
 import com.lamfire.json.JSON;
 import com.lamfire.utils.StringUtils;
+import com.mob.easySearch.support.DocumentSplitter;
 import com.mob.easySearch.support.JsonResult;
-import com.mob.easySearch.support.ThreadUtil;
 
 /**
  * @author zxc Jun 8, 2016 5:49:38 PM
@@ -28,6 +32,13 @@ import com.mob.easySearch.support.ThreadUtil;
 @Api(value = "index", description = "文档服务")
 public class IndexConroller extends BaseController {
 
+    @Value("${es.bulk.batch.mb:5}")
+    private int bulkBatchMb;
+    @Value("${es.bulk.batch.concurrent:4}")
+    private int bulkConcurrent;
+    @Value("${es.bulk.load:false}")
+    private boolean bulkLoad;
+
     @ResponseBody
     @ApiOperation(value = "POST index", httpMethod = "POST", response = JsonResult.class, notes = "创建文档内容索引")
     @RequestMapping(value = "/{indexName}/{indexType}/index", produces = { "application/json" }, method = RequestMethod.POST)
@@ -38,56 +49,126 @@ public class IndexConroller extends BaseController {
     final String indexType, @RequestBody Object... data) {
         if (StringUtils.isEmpty(indexName) || StringUtils.isEmpty(indexType)) return fail("参数错误");
         if (data == null || data.length == 0) return fail("文档为空");
-        if (!es.existsIndex(indexName)) return fail("索引未定义");
+        if (!existsIndex(indexName)) return fail("索引未定义");
 
         for (Object source : data) {
-            final Map<String, Object> _source = JSON.fromJavaObject(source);
+            Map<String, Object> _source = JSON.fromJavaObject(source);
             String id = UUIDGen.uuid();
             if (_source.containsKey("id")) id = _source.get("id") + "";
-            final String _id = id;
-            ThreadUtil.submitTask(new Runnable() {
+            es.indexAsync(indexName, indexType, id, _source);
+        }
+        return ok();
+    }
+
+    @ResponseBody
+    @ApiOperation(value = "POST raw index", httpMethod = "POST", response = JsonResult.class, notes = "按原始字节创建文档索引,请求体为JSON数组或NDJSON,只解析顶层id;格式错误时不写入任何文档")
+    @RequestMapping(value = "/{indexName}/{indexType}/index/raw", produces = { "application/json" }, method = RequestMethod.POST)
+    JSON indexRaw(@ApiParam(required = true, name = "indexName", value = "索引名称命名空间")
+    @PathVariable("indexName")
+    final String indexName, @ApiParam(required = true, name = "indexType", value = "文档名称")
+    @PathVariable("indexType")
+    final String indexType, @RequestBody final byte[] body) {
+        if (StringUtils.isEmpty(indexName) || StringUtils.isEmpty(indexType)) return fail("参数错误");
+        if (body == null || body.length == 0) return fail("文档为空");
+        if (!existsIndex(indexName)) return fail("索引未定义");
+
+        // 先切分整个请求体,格式全部正确后再写入,不会只写入前一部分
+        final List<String> ids = Lists.newArrayList();
+        final List<int[]> slices = Lists.newArrayList();
+        try {
+            DocumentSplitter.split(body, new DocumentSplitter.Handler() {
 
                 @Override
-                public void run() {
-                    es.index(indexName, indexType, _id, _source);
+                public void onDocument(String id, int offset, int length) {
+                    ids.add(id == null ? UUIDGen.uuid() : id);
+                    slices.add(new int[] { offset, length });
                 }
             });
+        } catch (IOException e) {
+            return fail("文档格式错误: " + e.getMessage());
         }
-        return ok();
+        try {
+            for (int i = 0; i < ids.size(); i++)
+                es.indexRaw(indexName, indexType, ids.get(i), body, slices.get(i)[0], slices.get(i)[1]);
+        } finally {
+            es.getSearchCache().invalidate(indexName);
+        }
+        return ok(new Object[][] { { "count", ids.size() } });
     }
 
     @ResponseBody
-    @ApiOperation(value = "POST bulk", httpMethod = "POST", response = JsonResult.class, notes = "bulk批量索引文档")
-    @RequestMapping(value = "/{indexName}/{indexType}/bulk ", produces = { "application/json" }, method = RequestMethod.POST)
+    @ApiOperation(value = "POST bulk", httpMethod = "POST", response = JsonResult.class, notes = "bulk批量索引文档,每行一个JSON文档")
+    @RequestMapping(value = "/{indexName}/{indexType}/bulk", produces = { "application/json" }, method = RequestMethod.POST)
     JSON bulk(@ApiParam(required = true, name = "indexName", value = "索引名称命名空间")
     @PathVariable("indexName")
     final String indexName, @ApiParam(required = true, name = "indexType", value = "文档名称")
     @PathVariable("indexType")
-    final String indexType, @RequestParam() MultipartFile jsonfile) throws Exception {
+    final String indexType, @ApiParam(required = false, name = "concurrent", value = "同时提交的批次数")
+    @RequestParam(value = "concurrent", required = false)
+    Integer concurrent, @ApiParam(required = false, name = "load", value = "导入模式:导入期间关闭refresh和副本")
+    @RequestParam(value = "load", required = false)
+    Boolean load, @ApiParam(required = false, name = "optimize", value = "导入模式结束后optimize")
+    @RequestParam(value = "optimize", required = false, defaultValue = "false")
+    final boolean optimize, @RequestParam() final MultipartFile jsonfile) throws Exception {
         if (StringUtils.isEmpty(indexName) || StringUtils.isEmpty(indexType)) return fail("参数错误");
         if (!es.existsIndex(indexName)) return fail("索引未定义");
 
-        Integer count = es.bulk(indexName, indexType, convert(jsonfile));
-        return ok(count);
-    }
+        if (concurrent == null || concurrent <= 0) concurrent = bulkConcurrent;
+        if (load == null) load = bulkLoad;
+        // 开启写前日志时先写入本地日志,导入模式仍直接写ES
+        if (!load && es.getJournalReplayer() != null) {
+            return ok(es.spool(indexName, indexType, jsonfile.getInputStream()));
+        }
+        if (!load) {
+            return ok(es.bulk(indexName, indexType, jsonfile.getInputStream(), bulkBatchMb * 1024L * 1024L, concurrent));
+        }
+        final int _concurrent = concurrent;
+        Map<String, Object> result = es.bulkLoad(indexName, optimize, new Callable<Map<String, Object>>() {
 
-    public File convert(MultipartFile file) throws Exception {
-        File convFile = new File(file.getOriginalFilename());
-        convFile.createNewFile();
-        FileOutputStream fos = new FileOutputStream(convFile);
-        fos.write(file.getBytes());
-        fos.close();
-        return convFile;
+            @Override
+            public Map<String, Object> call() throws Exception {
+                return es.bulk(indexName, indexType, jsonfile.getInputStream(), bulkBatchMb * 1024L * 1024L,
+                               _concurrent);
+            }
+        });
+        return ok(result);
     }
 
     @ResponseBody
-    @ApiOperation(value = "SET alias", httpMethod = "POST", response = JsonResult.class, notes = "alias 索引文档别名,同义词")
-    @RequestMapping(value = "/{indexName}/{indexType}/alias ", produces = { "application/json" }, method = RequestMethod.POST)
+    @ApiOperation(value = "SET alias", httpMethod = "POST", response = JsonResult.class, notes = "alias 索引文档别名:version切换到指定版本(回滚),alias给当前版本添加别名")
+    @RequestMapping(value = "/{indexName}/{indexType}/alias", produces = { "application/json" }, method = RequestMethod.POST)
     JSON alias(@ApiParam(required = true, name = "indexName", value = "索引名称命名空间") @PathVariable("indexName") String indexName,
-               @ApiParam(required = true, name = "indexType", value = "文档名称") @PathVariable("indexType") String indexType) {
+               @ApiParam(required = true, name = "indexType", value = "文档名称") @PathVariable("indexType") String indexType,
+               @ApiParam(required = false, name = "version", value = "把indexName切换到indexName_v{version}") @RequestParam(value = "version", required = false) Integer version,
+               @ApiParam(required = false, name = "alias", value = "给当前版本添加的别名") @RequestParam(value = "alias", required = false) String alias) {
         if (StringUtils.isEmpty(indexName) || StringUtils.isEmpty(indexType)) return fail("参数错误");
         if (!es.existsIndex(indexName)) return fail("索引未定义");
 
-        return ok();
+        String current = es.aliasTarget(indexName);
+        if (current == null) return fail("索引未版本化,请先提交schema");
+        if (version != null) {
+            String target = es.versions(indexName).get(version);
+            if (target == null) return fail("版本不存在");
+            if (!target.equals(current)) es.swapAlias(indexName, current, target);
+            current = target;
+        }
+        if (StringUtils.isNotEmpty(alias)) es.swapAlias(alias, es.aliasTarget(alias), current);
+
+        Map<String, Object> result = Maps.newLinkedHashMap();
+        result.put("alias", indexName);
+        result.put("index", current);
+        result.put("versions", es.versions(indexName).values());
+        return ok(result);
+    }
+
+    // 开启写前日志时ES不可用也接收写入,由日志回放
+    private boolean existsIndex(String indexName) {
+        try {
+            return es.existsIndex(indexName);
+        } catch (RuntimeException e) {
+            if (es.getJournalReplayer() == null) throw e;
+            _.error("check index '" + indexName + "' error, write to journal", e);
+            return true;
+        }
     }
 }
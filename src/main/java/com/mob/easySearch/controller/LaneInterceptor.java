@@ -0,0 +1,53 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.controller;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import com.mob.easySearch.support.Bulkhead;
+
+/**
+ * 请求进入对应的执行通道,通道已满时抛出RejectedExecutionException(由ServiceExceptionHandler返回429)
+ *
+ * <pre>
+ * 异步请求(DeferredResult)在结果返回、重新分派完成后才离开通道,期间一直占用并发数,
+ * 所以/search/async不经过通道,由FairScheduler.acquireAsync非阻塞准入
+ * </pre>
+ *
+ * @author zxc Dec 15, 2016 11:40:12 AM
+ */
+public class LaneInterceptor extends HandlerInterceptorAdapter {
+
+    private final String lane;
+    private final String attribute;
+
+    /**
+     * @param lane Bulkhead.SEARCH/INGEST/EXPORT/ADMIN
+     */
+    public LaneInterceptor(String lane) {
+        this.lane = lane;
+        this.attribute = LaneInterceptor.class.getName() + "." + lane;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        // 异步请求重新分派时已经在通道中
+        if (request.getAttribute(attribute) != null) return true;
+        Bulkhead bulkhead = BaseController.es.getLane(lane);
+        bulkhead.acquire();
+        request.setAttribute(attribute, bulkhead);
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        Bulkhead bulkhead = (Bulkhead) request.getAttribute(attribute);
+        if (bulkhead == null) return;
+        request.removeAttribute(attribute);
+        bulkhead.release();
+    }
+}
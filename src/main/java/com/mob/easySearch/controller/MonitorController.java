@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.controller;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.web.bind.annotation.*;
+
+import com.google.common.collect.Maps;
+import com.lamfire.json.JSON;
+import com.mob.easySearch.support.JsonResult;
+import com.mob.easySearch.support.ThreadUtil;
+
+/**
+ * @author zxc Nov 25, 2016 5:20:33 PM
+ */
+@RestController
+@RequestMapping("/v1/api")
+@Api(value = "monitor", description = "运行状态")
+public class MonitorController extends BaseController {
+
+    @ResponseBody
+    @ApiOperation(value = "GET executors", httpMethod = "GET", response = JsonResult.class, notes = "线程池队列深度/活跃线程/完成任务数/等待及执行耗时")
+    @RequestMapping(value = "/stats/executors", produces = { "application/json" }, method = RequestMethod.GET)
+    JSON executors() {
+        return ok(ThreadUtil.stats());
+    }
+
+    @ResponseBody
+    @ApiOperation(value = "GET cache", httpMethod = "GET", response = JsonResult.class, notes = "搜索结果缓存命中率/条数/字节数/淘汰数")
+    @RequestMapping(value = "/stats/cache", produces = { "application/json" }, method = RequestMethod.GET)
+    JSON cache() {
+        return ok(es.getSearchCache().stats());
+    }
+
+    @ResponseBody
+    @ApiOperation(value = "GET singleflight", httpMethod = "GET", response = JsonResult.class, notes = "相同查询合并请求的次数/等待超时数")
+    @RequestMapping(value = "/stats/singleflight", produces = { "application/json" }, method = RequestMethod.GET)
+    JSON singleFlight() {
+        return ok(es.getSearchFlight().stats());
+    }
+
+    @ResponseBody
+    @ApiOperation(value = "GET tenants", httpMethod = "GET", response = JsonResult.class, notes = "每个indexName的搜索权重/在途数/排队数/排队时间/拒绝数")
+    @RequestMapping(value = "/stats/tenants", produces = { "application/json" }, method = RequestMethod.GET)
+    JSON tenants() {
+        return ok(es.getSearchScheduler().stats());
+    }
+
+    @ResponseBody
+    @ApiOperation(value = "GET limit", httpMethod = "GET", response = JsonResult.class, notes = "搜索自适应并发上限/在途数/延迟/快速拒绝数")
+    @RequestMapping(value = "/stats/limit", produces = { "application/json" }, method = RequestMethod.GET)
+    JSON limit() {
+        return ok(es.getSearchLimiter().stats());
+    }
+
+    @ResponseBody
+    @ApiOperation(value = "GET reindex", httpMethod = "GET", response = JsonResult.class, notes = "全部reindex任务的进度")
+    @RequestMapping(value = "/stats/reindex", produces = { "application/json" }, method = RequestMethod.GET)
+    JSON reindex() {
+        return ok(es.reindexStats());
+    }
+
+    @ResponseBody
+    @ApiOperation(value = "GET bulkload", httpMethod = "GET", response = JsonResult.class, notes = "处于导入模式的index及其原设置")
+    @RequestMapping(value = "/stats/bulkload", produces = { "application/json" }, method = RequestMethod.GET)
+    JSON bulkLoad() {
+        return ok(es.getBulkLoadMode().stats());
+    }
+
+    @ResponseBody
+    @ApiOperation(value = "GET bulk", httpMethod = "GET", response = JsonResult.class, notes = "自适应bulk的批次大小/并发数/拒绝重试次数,及写缓冲统计")
+    @RequestMapping(value = "/stats/bulk", produces = { "application/json" }, method = RequestMethod.GET)
+    JSON bulk() {
+        Map<String, Object> stats = Maps.newLinkedHashMap();
+        stats.put("adaptive", es.getAdaptiveBulk().stats());
+        stats.put("indexer", es.getBulkIndexer().stats());
+        return ok(stats);
+    }
+
+    @ResponseBody
+    @ApiOperation(value = "GET journal", httpMethod = "GET", response = JsonResult.class, notes = "写前日志的读写位置/未回放字节数/回放统计")
+    @RequestMapping(value = "/stats/journal", produces = { "application/json" }, method = RequestMethod.GET)
+    JSON journal() {
+        if (es.getJournalReplayer() == null) return fail("写前日志未开启");
+        return ok(es.getJournalReplayer().stats());
+    }
+
+    @ResponseBody
+    @ApiOperation(value = "GET lanes", httpMethod = "GET", response = JsonResult.class, notes = "search/ingest/export/admin执行通道的并发数/排队数/拒绝数/等待时间")
+    @RequestMapping(value = "/stats/lanes", produces = { "application/json" }, method = RequestMethod.GET)
+    JSON lanes() {
+        return ok(es.laneStats());
+    }
+
+    @ResponseBody
+    @ApiOperation(value = "GET nodes", httpMethod = "GET", response = JsonResult.class, notes = "每个数据节点的EWMA延迟/在途请求数/失败数/是否摘除")
+    @RequestMapping(value = "/stats/nodes", produces = { "application/json" }, method = RequestMethod.GET)
+    JSON nodes() {
+        List<Map<String, Object>> stats = es.nodeStats();
+        if (stats == null) return fail("未开启按延迟选择节点");
+        return ok(stats);
+    }
+}
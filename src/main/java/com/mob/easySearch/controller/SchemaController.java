@@ -28,7 +28,7 @@ import com.mob.easySearch.support.JsonResult;
 public class SchemaController extends BaseController {
 
     @ResponseBody
-    @ApiOperation(value = "POST Schema", httpMethod = "POST", response = JsonResult.class, notes = "提交Schema定义")
+    @ApiOperation(value = "POST Schema", httpMethod = "POST", response = JsonResult.class, notes = "提交Schema定义,创建新版本index后台reindex,完成后切换alias")
     @RequestMapping(value = "/{indexName}/{indexType}/schema", produces = { "application/json" }, method = RequestMethod.POST)
     JSON schema(@ApiParam(required = true, name = "indexName", value = "索引名称命名空间") @PathVariable("indexName") String indexName,
                 @ApiParam(required = true, name = "indexType", value = "文档名称") @PathVariable("indexType") String indexType,
@@ -37,16 +37,26 @@ public class SchemaController extends BaseController {
         if (fields == null || fields.size() == 0) return fail("索引shcema为空");
 
         try {
-            if (es.existsIndex(indexName)) es.dropIndex(indexName);
-            if (!es.existsIndex(indexName)) es.createIndex(indexName);
-            es.createMapping(indexName, indexType, fields);
-            return ok();
+            return ok(es.changeSchema(indexName, indexType, fields));
+        } catch (IllegalStateException e) {
+            return fail(e.getMessage());
         } catch (Exception e) {
             _.error("create schema Exception!", e);
         }
         return fail("参数错误");
     }
 
+    @ResponseBody
+    @ApiOperation(value = "GET reindex", httpMethod = "GET", response = JsonResult.class, notes = "修改Schema后的reindex进度")
+    @RequestMapping(value = "/{indexName}/reindex", produces = { "application/json" }, method = RequestMethod.GET)
+    JSON reindex(@ApiParam(required = true, name = "indexName", value = "索引名称命名空间") @PathVariable("indexName") String indexName) {
+        if (StringUtils.isEmpty(indexName)) return fail("参数错误");
+
+        Map<String, Object> stats = es.reindexStats(indexName);
+        if (stats == null) return fail("没有reindex任务");
+        return ok(stats);
+    }
+
     @ResponseBody
     @ApiOperation(value = "GET Schema", httpMethod = "GET", response = JsonResult.class, notes = "获取Schema定义")
     @RequestMapping(value = "/{indexName}/{indexType}/schema", produces = { "application/json" }, method = RequestMethod.GET)
@@ -56,8 +66,10 @@ public class SchemaController extends BaseController {
         if (!es.existsIndex(indexName)) return fail("索引未定义");
 
         try {
-            GetMappingsResponse mappingsRes = es.getMapping(indexName, indexType);
-            Map<String, Object> sourceMap = mappingsRes.mappings().get(indexName).get(indexType).getSourceAsMap();
+            String index = es.aliasTarget(indexName);
+            if (index == null) index = indexName;
+            GetMappingsResponse mappingsRes = es.getMapping(index, indexType);
+            Map<String, Object> sourceMap = mappingsRes.mappings().get(index).get(indexType).getSourceAsMap();
             return ok(sourceMap.get("properties"));
         } catch (Exception e) {
             _.error("getSchema Exception!", e);
@@ -73,7 +85,7 @@ public class SchemaController extends BaseController {
         if (StringUtils.isEmpty(indexName) || StringUtils.isEmpty(indexType)) return fail("参数错误");
 
         try {
-            if (es.existsIndex(indexName)) es.dropIndex(indexName);
+            es.dropVersions(indexName);
             return ok();
         } catch (Exception e) {
             _.error("create schema Exception!", e);
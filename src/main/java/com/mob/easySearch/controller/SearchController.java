@@ -3,23 +3,35 @@
  */
 package com.mob.easySearch.controller;
 
-import static com.mob.easySearch.support.ElasticsearchHelper.customMatches;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
 
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 
+import javax.servlet.http.HttpServletResponse;
+
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.common.collect.Maps;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.*;
 import com.lamfire.json.JSON;
 import com.lamfire.utils.StringUtils;
+import com.mob.easySearch.support.FairScheduler.Admission;
 import com.mob.easySearch.support.IteratorWrapper;
 import com.mob.easySearch.support.IteratorWrapper.IteratorHandler;
 import com.mob.easySearch.support.JsonResult;
+import com.mob.easySearch.support.SearchQuery;
+import com.mob.easySearch.support.SingleFlight.AsyncCallable;
 
 /**
  * @author zxc Jun 8, 2016 5:52:05 PM
@@ -29,7 +41,17 @@ import com.mob.easySearch.support.JsonResult;
 @Api(value = "search", description = "搜索服务")
 public class SearchController extends BaseController {
 
-    @SuppressWarnings("unchecked")
+    @Value("${search.async.timeout:10000}")
+    private long    asyncTimeout;
+    @Value("${search.scroll.keepalive:60000}")
+    private long    scrollKeepAlive;
+    @Value("${search.distinct.paged:false}")
+    private boolean pagedDistinct;
+    @Value("${search.msearch.max:20}")
+    private int     msearchMax;
+    @Value("${search.fair.aggrCost:4}")
+    private int     aggrCost;
+
     @ResponseBody
     @ApiOperation(value = "do search", httpMethod = "GET", response = JsonResult.class, notes = "搜索接口")
     @RequestMapping(value = "/{indexName}/{indexType}/search", produces = { "application/json" }, method = RequestMethod.GET)
@@ -42,73 +64,445 @@ public class SearchController extends BaseController {
         if (StringUtils.isEmpty(indexName) || StringUtils.isEmpty(indexType)) return fail("参数错误");
         // if (!es.existsIndex(indexName)) return fail("索引未定义");
 
-        Set<String> field = Sets.newHashSet();
-        Set<String> aggregation = Sets.newLinkedHashSet();
-        Map<String, Object[]> filter = Maps.newLinkedHashMap();
-        Table<String, String, Object> ranges = HashBasedTable.create();
-        boolean topOnly = false;
+        SearchQuery query = null;
+        try {
+            query = SearchQuery.parse(indexName, indexType, pageno, pagesize, keywords, request.getParameterMap());
+        } catch (Exception e) {
+            _.error("es.queryString param error!", e);
+            return fail("参数不支持");
+        }
+        String cacheKey = cacheKey(query);
+        Map<String, Object> cached = cacheKey == null ? null : es.getSearchCache().get(cacheKey);
+        if (cached != null) {
+            access.info("[SearchController parameterMap end(cached)]:" + JSON.toJSONString(request.getParameterMap()));
+            return ok(cached);
+        }
+        Map<String, Object> result = Maps.newHashMap();
+        try {
+            final SearchQuery _query = query;
+            final String _cacheKey = cacheKey;
+            // 相同查询并发到达时只请求一次ES
+            result = es.getSearchFlight().execute(cacheKey, new Callable<Map<String, Object>>() {
+
+                @Override
+                public Map<String, Object> call() throws Exception {
+                    Map<String, Object> result = admitSearch(_query);
+                    if (_cacheKey != null) es.getSearchCache().put(_cacheKey, result);
+                    return result;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            throw e;
+        } catch (Exception e) {
+            _.error("es.queryString search error!", e);
+        }
+        access.info("[SearchController parameterMap end]:" + JSON.toJSONString(request.getParameterMap()));
+        return ok(result);
+    }
+
+    @ApiOperation(value = "do raw search", httpMethod = "GET", response = JsonResult.class, notes = "搜索接口,文档_source原样输出,不做解析转换;不支持去重聚合和游标分页")
+    @RequestMapping(value = "/{indexName}/{indexType}/search/raw", produces = { "application/json" }, method = RequestMethod.GET)
+    void searchRaw(@ApiParam(required = true, name = "indexName", value = "索引名称命名空间") @PathVariable("indexName") String indexName,
+                   @ApiParam(required = true, name = "indexType", value = "文档名称") @PathVariable("indexType") String indexType,
+                   @ApiParam(required = false, name = "pageno", value = "分页页码") @RequestParam(value = "pageno", defaultValue = "1") Integer pageno,
+                   @ApiParam(required = false, name = "pagesize", value = "每页数量") @RequestParam(value = "pagesize", defaultValue = "30") Integer pagesize,
+                   @ApiParam(required = true, name = "keywords", value = "关键词") @RequestParam("keywords") String keywords,
+                   HttpServletResponse response) throws IOException {
+        access.info("[SearchController raw start]:" + JSON.toJSONString(request.getParameterMap()));
+        response.setContentType("application/json;charset=utf-8");
+        OutputStream out = new BufferedOutputStream(response.getOutputStream(), 8192);
+        try {
+            if (StringUtils.isEmpty(indexName) || StringUtils.isEmpty(indexType)) {
+                writeJSON(out, fail("参数错误"));
+                return;
+            }
+            SearchQuery query = null;
+            try {
+                query = SearchQuery.parse(indexName, indexType, pageno, pagesize, keywords, request.getParameterMap());
+            } catch (Exception e) {
+                _.error("es.queryString param error!", e);
+                writeJSON(out, fail("参数不支持"));
+                return;
+            }
+            if (query.isAggregation() || query.isScroll() || StringUtils.isNotEmpty(query.getCursor())) {
+                writeJSON(out, fail("raw模式不支持去重聚合和游标分页"));
+                return;
+            }
+            long start = enter(indexName, cost(query));
+            Throwable error = null;
+            try {
+                es.queryRaw(indexName, indexType, pageno, pagesize, keywords, query.getFilter(), query.getField(),
+                            query.getRanges(), out);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                error = e;
+                _.error("es.queryString raw search error!", e);
+                writeJSON(out, ok(Maps.newHashMap()));
+            } finally {
+                exit(indexName, start, error);
+            }
+        } finally {
+            out.flush();
+        }
+        access.info("[SearchController raw end]:" + JSON.toJSONString(request.getParameterMap()));
+    }
+
+    @ApiOperation(value = "do async search", httpMethod = "GET", response = JsonResult.class, notes = "异步搜索接口,不占用容器线程等待ES返回;不支持游标分页")
+    @RequestMapping(value = "/{indexName}/{indexType}/search/async", produces = { "application/json" }, method = RequestMethod.GET)
+    DeferredResult<JSON> searchAsync(@ApiParam(required = true, name = "indexName", value = "索引名称命名空间") @PathVariable("indexName") String indexName,
+                                     @ApiParam(required = true, name = "indexType", value = "文档名称") @PathVariable("indexType") String indexType,
+                                     @ApiParam(required = false, name = "pageno", value = "分页页码") @RequestParam(value = "pageno", defaultValue = "1") final Integer pageno,
+                                     @ApiParam(required = false, name = "pagesize", value = "每页数量") @RequestParam(value = "pagesize", defaultValue = "30") final Integer pagesize,
+                                     @ApiParam(required = true, name = "keywords", value = "关键词") @RequestParam("keywords") String keywords) {
+        final String params = JSON.toJSONString(request.getParameterMap());
+        access.info("[SearchController async parameterMap start]:" + params);
+        final DeferredResult<JSON> deferred = new DeferredResult<JSON>(asyncTimeout, fail("搜索超时"));
+        if (StringUtils.isEmpty(indexName) || StringUtils.isEmpty(indexType)) {
+            deferred.setResult(fail("参数错误"));
+            return deferred;
+        }
+
+        final SearchQuery query;
         try {
-            if (request.getParameterValues("field") != null) field = Sets.newHashSet(request.getParameterValues("field"));
-            if (request.getParameterValues("distinct") != null) {
-                for (String value : request.getParameterValues("distinct"))
-                    aggregation.add(value);
+            query = SearchQuery.parse(indexName, indexType, pageno, pagesize, keywords, request.getParameterMap());
+        } catch (Exception e) {
+            _.error("es.queryString param error!", e);
+            deferred.setResult(fail("参数不支持"));
+            return deferred;
+        }
+        if (query.isScroll() || StringUtils.isNotEmpty(query.getCursor())) {
+            deferred.setResult(fail("async模式不支持游标分页"));
+            return deferred;
+        }
+        final String cacheKey = cacheKey(query);
+        Map<String, Object> cached = cacheKey == null ? null : es.getSearchCache().get(cacheKey);
+        if (cached != null) {
+            access.info("[SearchController async parameterMap end(cached)]:" + params);
+            deferred.setResult(ok(cached));
+            return deferred;
+        }
+        ActionListener<Map<String, Object>> listener = new ActionListener<Map<String, Object>>() {
+
+            @Override
+            public void onResponse(Map<String, Object> result) {
+                access.info("[SearchController async parameterMap end]:" + params);
+                deferred.setResult(ok(result));
             }
-            for (Entry<String, String[]> entry : request.getParameterMap().entrySet()) {
-                if (entry == null || StringUtils.isEmpty(entry.getKey()) || entry.getValue() == null) continue;
-                if (!StringUtils.equalsIgnoreCase(entry.getKey(), "pageno")
-                    && !StringUtils.equalsIgnoreCase(entry.getKey(), "pagesize")
-                    && !StringUtils.equalsIgnoreCase(entry.getKey(), "keywords")
-                    && !StringUtils.equalsIgnoreCase(entry.getKey(), "distinct")
-                    && !StringUtils.equalsIgnoreCase(entry.getKey(), "field")
-                    && !StringUtils.equalsIgnoreCase(entry.getKey(), "topOnly")
-                    && !customMatches("(.*)_(lt|gt|lte|gte)$", entry.getKey())) {
-                    filter.put(entry.getKey(), entry.getValue());
+
+            @Override
+            public void onFailure(Throwable e) {
+                // 准入被拒绝由ServiceExceptionHandler返回429
+                if (e instanceof RejectedExecutionException) {
+                    deferred.setErrorResult(e);
+                    return;
                 }
-                if (customMatches("(.*)_(lt|gt|lte|gte)$", entry.getKey())) {
-                    String r = StringUtils.substringBeforeLast(entry.getKey(), "_");
-                    String c = StringUtils.substringAfterLast(entry.getKey(), "_");
-                    ranges.put(r, c, entry.getValue()[0]);
+                _.error("es.queryString async search error!", e);
+                deferred.setResult(ok(Maps.newHashMap()));
+            }
+        };
+        es.getSearchFlight().executeAsync(cacheKey, listener, new AsyncCallable<Map<String, Object>>() {
+
+            @Override
+            public void call(final ActionListener<Map<String, Object>> listener) {
+                try {
+                    es.getSearchLimiter().check(es.getSearchScheduler().queued());
+                } catch (RejectedExecutionException e) {
+                    listener.onFailure(e);
+                    return;
                 }
-                if (StringUtils.equalsIgnoreCase(entry.getKey(), "topOnly")) topOnly = Boolean.parseBoolean(entry.getValue()[0]);
+                es.getSearchScheduler().acquireAsync(query.getIndexName(), cost(query), new Admission() {
+
+                    @Override
+                    public void run() {
+                        long start;
+                        try {
+                            start = es.getSearchLimiter().start();
+                        } catch (RejectedExecutionException e) {
+                            es.getSearchScheduler().release(query.getIndexName());
+                            listener.onFailure(e);
+                            return;
+                        }
+                        doSearchAsync(query, cacheKey, start, listener);
+                    }
+
+                    @Override
+                    public void reject(Throwable e) {
+                        listener.onFailure(e);
+                    }
+                });
+            }
+        });
+        return deferred;
+    }
+
+    @ResponseBody
+    @ApiOperation(value = "do multi search", httpMethod = "POST", response = JsonResult.class, notes = "批量搜索,一次ES请求执行多个查询,按顺序返回结果;不支持游标分页")
+    @RequestMapping(value = "/{indexName}/{indexType}/msearch", produces = { "application/json" }, method = RequestMethod.POST)
+    JSON multiSearch(@ApiParam(required = true, name = "indexName", value = "索引名称命名空间") @PathVariable("indexName") String indexName,
+                     @ApiParam(required = true, name = "indexType", value = "文档名称") @PathVariable("indexType") String indexType,
+                     @ApiParam(required = true, name = "queries", value = "查询列表,每个查询的参数同/search,可用indexName/indexType覆盖路径中的值") @RequestBody List<Map<String, Object>> queries) {
+        access.info("[SearchController multi start]:" + indexName + "/" + indexType + ", queries="
+                    + (queries == null ? 0 : queries.size()));
+        if (StringUtils.isEmpty(indexName) || StringUtils.isEmpty(indexType)) return fail("参数错误");
+        if (queries == null || queries.isEmpty()) return fail("查询为空");
+        if (queries.size() > msearchMax) return fail("查询数不能超过" + msearchMax);
+
+        List<SearchQuery> _queries = Lists.newArrayList();
+        try {
+            for (Map<String, Object> spec : queries) {
+                Map<String, String[]> params = params(spec);
+                String _indexName = params.containsKey("indexName") ? params.remove("indexName")[0] : indexName;
+                String _indexType = params.containsKey("indexType") ? params.remove("indexType")[0] : indexType;
+                int pageno = params.containsKey("pageno") ? Integer.parseInt(params.get("pageno")[0]) : 1;
+                int pagesize = params.containsKey("pagesize") ? Integer.parseInt(params.get("pagesize")[0]) : 30;
+                String keywords = params.containsKey("keywords") ? params.get("keywords")[0] : "";
+                _queries.add(SearchQuery.parse(_indexName, _indexType, pageno, pagesize, keywords, params));
             }
         } catch (Exception e) {
-            _.error("es.queryString param error!", e);
+            _.error("es.multiSearch param error!", e);
             return fail("参数不支持");
         }
-        Map<String, Object> result = Maps.newHashMap();
+
+        // 每个查询计入自己的indexName,同一index的查询合并为一次准入
+        Map<String, Integer> costs = new TreeMap<String, Integer>();
+        for (SearchQuery query : _queries) {
+            Integer cost = costs.get(query.getIndexName());
+            costs.put(query.getIndexName(), (cost == null ? 0 : cost) + cost(query));
+        }
+        List<JSON> list = Lists.newArrayList();
+        long start = enter(costs);
+        Throwable error = null;
         try {
-            if (aggregation.size() == 0) {
-                result = es.query(indexName, indexType, pageno, pagesize, keywords, filter, field, ranges);
-            } else {
-                Map<String, Object> _result = es.aggr(indexName, indexType, keywords, filter, //
-                                                      field, aggregation, ranges, topOnly);
-                result.put("total", _result.get("total"));
-                result.put("pageno", pageno);
-                result.put("pagesize", pagesize);
-                Set<Map<String, Object>> _list = (Set<Map<String, Object>>) _result.get("list");
-                if (_list != null && _list.size() > 0) {
-                    IteratorWrapper.pagination(_list, pagesize)//
-                    .iterator(new IteratorHandler<Map<String, Object>>() {
-
-                        @Override
-                        public boolean handle(int pageNum, List<Map<String, Object>> subData, Object... params) {
-                            int pageno = ((Integer) params[0]).intValue();
-                            Map<String, Object> result = (Map<String, Object>) params[1];
-                            if (pageNum + 1 == pageno) {
-                                if (subData != null && subData.size() > 0) result.put("list", subData);
-                                return false;
-                            }
-                            return true;
-                        }
-                    }, pageno, result);
+            List<Map<String, Object>> results = es.multiSearch(_queries, pagedDistinct);
+            for (int i = 0; i < results.size(); i++) {
+                Map<String, Object> result = results.get(i);
+                SearchQuery query = _queries.get(i);
+                if (result.containsKey("error")) {
+                    list.add(fail(String.valueOf(result.get("error"))));
+                } else if (query.isAggregation() && !query.isPagedDistinct(pagedDistinct)) {
+                    list.add(ok(pagination(result, query.getPageno(), query.getPagesize())));
                 } else {
-                    result.put("list", Lists.newArrayList());
+                    list.add(ok(result));
                 }
             }
         } catch (Exception e) {
-            _.error("es.queryString search error!", e);
+            error = e;
+            _.error("es.multiSearch error!", e);
+            return fail("搜索失败");
+        } finally {
+            exit(costs.keySet(), start, error);
         }
-        access.info("[SearchController parameterMap end]:" + JSON.toJSONString(request.getParameterMap()));
-        return ok(result);
+        access.info("[SearchController multi end]:" + queries.size());
+        return ok(list);
+    }
+
+    /**
+     * 按查询类型分发到ES
+     * 
+     * @param query
+     * @return
+     * @throws Exception
+     */
+    private Map<String, Object> doSearch(SearchQuery query) throws Exception {
+        String indexName = query.getIndexName(), indexType = query.getIndexType(), keywords = query.getKeywords();
+        int pageno = query.getPageno(), pagesize = query.getPagesize();
+        if (!query.isAggregation() && StringUtils.isNotEmpty(query.getCursor())) {
+            return es.scroll(query.getCursor(), pagesize, scrollKeepAlive);
+        } else if (!query.isAggregation() && query.isScroll()) {
+            return es.queryScroll(indexName, indexType, pagesize, keywords, query.getFilter(), query.getField(),
+                                  query.getRanges(), scrollKeepAlive);
+        } else if (!query.isAggregation()) {
+            return es.query(indexName, indexType, pageno, pagesize, keywords, query.getFilter(), query.getField(),
+                            query.getRanges());
+        } else if (query.isPagedDistinct(pagedDistinct)) {
+            return es.aggrPage(indexName, indexType, keywords, query.getFilter(), query.getField(),
+                               query.getAggregation(), query.getRanges(), query.isTopOnly(), pageno, pagesize);
+        } else {
+            Map<String, Object> _result = es.aggr(indexName, indexType, keywords, query.getFilter(), //
+                                                  query.getField(), query.getAggregation(), query.getRanges(),
+                                                  query.isTopOnly());
+            return pagination(_result, pageno, pagesize);
+        }
+    }
+
+    /**
+     * 按indexName公平准入后查询
+     * 
+     * @param query
+     * @return
+     * @throws Exception
+     */
+    private Map<String, Object> admitSearch(SearchQuery query) throws Exception {
+        long start = enter(query.getIndexName(), cost(query));
+        Throwable error = null;
+        try {
+            return doSearch(query);
+        } catch (Exception e) {
+            error = e;
+            throw e;
+        } finally {
+            exit(query.getIndexName(), start, error);
+        }
+    }
+
+    /**
+     * 过载(排队数超过自适应上限)时直接拒绝,否则按indexName公平排队,放行后开始计时
+     * 
+     * @param indexName
+     * @param cost
+     * @return 开始时间,结束时传给{@link #exit}
+     */
+    private long enter(String indexName, int cost) {
+        return enter(Collections.singletonMap(indexName, cost));
+    }
+
+    /**
+     * 一次ES请求涉及多个indexName时,按indexName的顺序逐个准入
+     * 
+     * @param costs indexName -> 开销
+     * @return
+     */
+    private long enter(Map<String, Integer> costs) {
+        es.getSearchLimiter().check(es.getSearchScheduler().queued());
+        List<String> admitted = Lists.newArrayList();
+        try {
+            for (Map.Entry<String, Integer> cost : costs.entrySet()) {
+                es.getSearchScheduler().acquire(cost.getKey(), cost.getValue());
+                admitted.add(cost.getKey());
+            }
+            return es.getSearchLimiter().start();
+        } catch (RuntimeException e) {
+            for (String indexName : admitted)
+                es.getSearchScheduler().release(indexName);
+            throw e;
+        }
+    }
+
+    // 按耗时调整并发上限并释放准入
+    private void exit(String indexName, long start, Throwable error) {
+        exit(Collections.singleton(indexName), start, error);
+    }
+
+    private void exit(Collection<String> indexNames, long start, Throwable error) {
+        es.getSearchLimiter().finish(start, error);
+        for (String indexName : indexNames)
+            es.getSearchScheduler().release(indexName);
+    }
+
+    // 已准入的异步查询,完成后释放准入
+    private void doSearchAsync(final SearchQuery query, final String cacheKey, final long start,
+                               final ActionListener<Map<String, Object>> listener) {
+        ActionListener<Map<String, Object>> _listener = new ActionListener<Map<String, Object>>() {
+
+            @Override
+            public void onResponse(Map<String, Object> result) {
+                exit(query.getIndexName(), start, null);
+                if (query.isAggregation() && !query.isPagedDistinct(pagedDistinct)) {
+                    result = pagination(result, query.getPageno(), query.getPagesize());
+                }
+                if (cacheKey != null) es.getSearchCache().put(cacheKey, result);
+                listener.onResponse(result);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                exit(query.getIndexName(), start, e);
+                listener.onFailure(e);
+            }
+        };
+        if (!query.isAggregation()) {
+            es.queryAsync(query.getIndexName(), query.getIndexType(), query.getPageno(), query.getPagesize(),
+                          query.getKeywords(), query.getFilter(), query.getField(), query.getRanges(), _listener);
+        } else if (query.isPagedDistinct(pagedDistinct)) {
+            es.aggrPageAsync(query.getIndexName(), query.getIndexType(), query.getKeywords(), query.getFilter(),
+                             query.getField(), query.getAggregation(), query.getRanges(), query.isTopOnly(),
+                             query.getPageno(), query.getPagesize(), _listener);
+        } else {
+            es.aggrAsync(query.getIndexName(), query.getIndexType(), query.getKeywords(), query.getFilter(),
+                         query.getField(), query.getAggregation(), query.getRanges(), query.isTopOnly(), _listener);
+        }
+    }
+
+    // distinct聚合按aggrCost计算公平调度的开销
+    private int cost(SearchQuery query) {
+        return query.isAggregation() ? aggrCost : 1;
+    }
+
+    /**
+     * 结果缓存key,游标分页不缓存
+     * 
+     * @param query
+     * @return
+     */
+    private String cacheKey(SearchQuery query) {
+        if (query.isScroll() || StringUtils.isNotEmpty(query.getCursor())) return null;
+        String normalized = query.normalize() + "|paged=" + (query.isAggregation() && query.isPagedDistinct(pagedDistinct));
+        return es.getSearchCache().key(query.getIndexName(), normalized);
+    }
+
+    /**
+     * JSON查询参数转为请求参数格式,数组值对应同名多值参数
+     * 
+     * @param spec
+     * @return
+     */
+    static Map<String, String[]> params(Map<String, Object> spec) {
+        Map<String, String[]> params = Maps.newLinkedHashMap();
+        if (spec == null) return params;
+        for (Map.Entry<String, Object> entry : spec.entrySet()) {
+            Object value = entry.getValue();
+            if (value == null) continue;
+            if (value instanceof Collection) {
+                List<String> values = Lists.newArrayList();
+                for (Object _value : (Collection<?>) value)
+                    values.add(String.valueOf(_value));
+                params.put(entry.getKey(), values.toArray(new String[values.size()]));
+            } else {
+                params.put(entry.getKey(), new String[] { String.valueOf(value) });
+            }
+        }
+        return params;
+    }
+
+    private static void writeJSON(OutputStream out, JSON json) throws IOException {
+        out.write(json.toJSONString().getBytes(Charsets.UTF_8));
+    }
+
+    /**
+     * 聚合结果内存分页
+     * 
+     * @param _result
+     * @param pageno
+     * @param pagesize
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> pagination(Map<String, Object> _result, int pageno, int pagesize) {
+        Map<String, Object> result = Maps.newHashMap();
+        result.put("total", _result.get("total"));
+        if (_result.containsKey("searchType")) result.put("searchType", _result.get("searchType"));
+        result.put("pageno", pageno);
+        result.put("pagesize", pagesize);
+        Set<Map<String, Object>> _list = (Set<Map<String, Object>>) _result.get("list");
+        if (_list != null && _list.size() > 0) {
+            IteratorWrapper.pagination(_list, pagesize)//
+            .iterator(new IteratorHandler<Map<String, Object>>() {
+
+                @Override
+                public boolean handle(int pageNum, List<Map<String, Object>> subData, Object... params) {
+                    int pageno = ((Integer) params[0]).intValue();
+                    Map<String, Object> result = (Map<String, Object>) params[1];
+                    if (pageNum + 1 == pageno) {
+                        if (subData != null && subData.size() > 0) result.put("list", subData);
+                        return false;
+                    }
+                    return true;
+                }
+            }, pageno, result);
+        } else {
+            result.put("list", Lists.newArrayList());
+        }
+        return result;
     }
 }
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.rest.RestStatus;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.lamfire.logger.Logger;
+import com.lamfire.logger.LoggerFactory;
+
+/**
+ * 自适应bulk提交
+ *
+ * <pre>
+ * 重试: 只重试被拒绝的条目(bulk线程池队列满,EsRejectedExecutionException/429),按指数退避(带随机抖动)等待,
+ *      其它失败(mapping错误等)直接计为失败;整个bulk被拒绝时全部重试
+ * AIMD: 根据每次bulk的took和拒绝情况调整批次文档数和同时在途的bulk数
+ *      有拒绝: 批次文档数和并发数减半(乘性减)
+ *      took超过targetTook: 批次文档数减为3/4
+ *      每次减小后,在减小之前发出的bulk的返回不再触发减小,同时在途的多个bulk一起被拒绝时只减一次
+ *      took正常: 批次文档数加actionsStep(加性增),连续increaseWindow次正常后并发数加1
+ * 调用方按batchActions()切分批次,execute在并发数达到上限时等待
+ * </pre>
+ *
+ * @author zxc Dec 9, 2016 2:36:15 PM
+ */
+public class AdaptiveBulk {
+
+    private static final Logger _              = LoggerFactory.getLogger(AdaptiveBulk.class);
+
+    public static final String  EXECUTOR       = "bulk";
+
+    private final Client        client;
+    private final Random        random         = new Random();
+
+    private int                 minActions     = 100;
+    private int                 maxActions     = 10000;
+    private int                 actionsStep    = 100;
+    private int                 maxConcurrency = 8;
+    private long                targetTook     = 1000;
+    private int                 increaseWindow = 10;
+    private int                 maxRetries     = 5;
+    private long                backoff        = 100;
+    private long                maxBackoff     = 10000;
+
+    // AIMD状态,由this保护
+    private int                 batchActions   = 1000;
+    private int                 concurrency    = 2;
+    private int                 inflight       = 0;
+    private int                 good           = 0;
+    // 每次减小加1,bulk发出时记录,返回时不等于当前值说明发出后已经减小过
+    private long                epoch          = 0;
+
+    private final AtomicLong    bulks          = new AtomicLong();
+    private final AtomicLong    items          = new AtomicLong();
+    private final AtomicLong    rejected       = new AtomicLong();
+    private final AtomicLong    retried        = new AtomicLong();
+    private final AtomicLong    failed         = new AtomicLong();
+    private final AtomicLong    increases      = new AtomicLong();
+    private final AtomicLong    decreases      = new AtomicLong();
+    private volatile long       lastTook       = 0;
+
+    public AdaptiveBulk(Client client) {
+        this.client = client;
+    }
+
+    /**
+     * @param minActions 批次文档数下限
+     * @param maxActions 批次文档数上限
+     * @param actionsStep 批次文档数每次增加量
+     * @param maxConcurrency 同时在途的bulk数上限
+     * @param targetTook 期望的bulk耗时ms,超过时减小批次
+     * @param maxRetries 被拒绝条目的最大重试次数
+     * @param backoff 首次重试等待ms,之后每次翻倍
+     * @param maxBackoff 重试等待上限ms
+     */
+    public synchronized void configure(int minActions, int maxActions, int actionsStep, int maxConcurrency,
+                                       long targetTook, int maxRetries, long backoff, long maxBackoff) {
+        this.minActions = Math.max(1, minActions);
+        this.maxActions = Math.max(this.minActions, maxActions);
+        this.actionsStep = Math.max(1, actionsStep);
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.targetTook = targetTook;
+        this.maxRetries = maxRetries;
+        this.backoff = backoff;
+        this.maxBackoff = maxBackoff;
+        this.batchActions = Math.min(this.maxActions, Math.max(this.minActions, batchActions));
+        this.concurrency = Math.min(this.maxConcurrency, concurrency);
+    }
+
+    /**
+     * @return 当前建议的批次文档数
+     */
+    public synchronized int batchActions() {
+        return batchActions;
+    }
+
+    /**
+     * 同步执行一个bulk,被拒绝的条目按退避重试,直到全部完成或超过重试次数
+     *
+     * @param bulk
+     * @return 成功/失败/重试次数
+     * @throws InterruptedException
+     */
+    public Result execute(BulkRequest bulk) throws InterruptedException {
+        Result result = new Result();
+        List<ActionRequest<?>> pending = Lists.newArrayList();
+        for (ActionRequest<?> request : bulk.requests())
+            pending.add(request);
+        items.addAndGet(pending.size());
+        for (int attempt = 0;; attempt++) {
+            BulkResponse response = null;
+            Throwable error = null;
+            long _epoch = acquire();
+            try {
+                response = client.bulk(copy(bulk, pending)).actionGet(Timeouts.bulk());
+            } catch (Throwable e) {
+                error = e;
+            } finally {
+                release();
+            }
+            bulks.incrementAndGet();
+
+            List<ActionRequest<?>> retry = Lists.newArrayList();
+            if (error != null) {
+                if (!isRejected(error)) {
+                    result.requestFailed = true;
+                    result.fail(pending.size(), String.valueOf(error.getMessage()));
+                    failed.addAndGet(pending.size());
+                    _.error("bulk error, actions=" + pending.size(), error);
+                    break;
+                }
+                retry = pending;
+            } else {
+                result.took += response.getTookInMillis();
+                for (BulkItemResponse item : response.getItems()) {
+                    if (!item.isFailed()) {
+                        result.success++;
+                    } else if (isRejected(item)) {
+                        retry.add(pending.get(item.getItemId()));
+                    } else {
+                        result.fail(1, item.getFailureMessage());
+                        failed.incrementAndGet();
+                    }
+                }
+            }
+            rejected.addAndGet(retry.size());
+            adjust(response == null ? -1 : response.getTookInMillis(), retry.size(), _epoch);
+
+            if (retry.isEmpty()) break;
+            if (attempt >= maxRetries) {
+                result.rejected = retry.size();
+                result.fail(retry.size(), "rejected after " + attempt + " retries");
+                failed.addAndGet(retry.size());
+                _.error("bulk " + retry.size() + " items still rejected after " + attempt + " retries");
+                break;
+            }
+            result.retries++;
+            retried.addAndGet(retry.size());
+            Thread.sleep(backoff(attempt));
+            pending = retry;
+        }
+        return result;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = Maps.newLinkedHashMap();
+        synchronized (this) {
+            stats.put("batchActions", batchActions);
+            stats.put("concurrency", concurrency);
+            stats.put("inflight", inflight);
+            stats.put("epoch", epoch);
+        }
+        stats.put("lastTook", lastTook);
+        stats.put("bulks", bulks.get());
+        stats.put("items", items.get());
+        stats.put("rejected", rejected.get());
+        stats.put("retried", retried.get());
+        stats.put("failed", failed.get());
+        stats.put("increases", increases.get());
+        stats.put("decreases", decreases.get());
+        return stats;
+    }
+
+    // *********************************************** private method *******************************************//
+
+    // 返回发出时的epoch
+    private synchronized long acquire() throws InterruptedException {
+        while (inflight >= concurrency)
+            wait();
+        inflight++;
+        return epoch;
+    }
+
+    private synchronized void release() {
+        inflight--;
+        notifyAll();
+    }
+
+    // took为-1表示整个bulk失败,_epoch为bulk发出时的epoch
+    private synchronized void adjust(long took, int rejects, long _epoch) {
+        if (took >= 0) lastTook = took;
+        if (rejects > 0 || took > targetTook) {
+            good = 0;
+            // 发出后已经减小过,这次的拒绝/慢是减小之前的负载造成的
+            if (_epoch != epoch) return;
+            epoch++;
+            decreases.incrementAndGet();
+            if (rejects > 0) {
+                batchActions = Math.max(minActions, batchActions / 2);
+                concurrency = Math.max(1, concurrency / 2);
+                _.info("bulk rejected " + rejects + " items, batchActions=" + batchActions + ", concurrency="
+                       + concurrency);
+            } else {
+                batchActions = Math.max(minActions, batchActions * 3 / 4);
+            }
+        } else if (took >= 0) {
+            batchActions = Math.min(maxActions, batchActions + actionsStep);
+            if (++good >= increaseWindow && concurrency < maxConcurrency) {
+                concurrency++;
+                good = 0;
+                notifyAll();
+            }
+            increases.incrementAndGet();
+        }
+    }
+
+    private long backoff(int attempt) {
+        long delay = Math.min(maxBackoff, backoff << Math.min(attempt, 20));
+        return delay / 2 + (long) (random.nextDouble() * delay / 2);
+    }
+
+    // bulk线程池队列满被拒绝,可以重试
+    static boolean isRejected(BulkItemResponse item) {
+        BulkItemResponse.Failure failure = item.getFailure();
+        if (failure == null) return false;
+        return failure.getStatus() == RestStatus.TOO_MANY_REQUESTS
+               || String.valueOf(failure.getMessage()).contains("EsRejectedExecutionException");
+    }
+
+    private static boolean isRejected(Throwable e) {
+        return ExceptionsHelper.unwrapCause(e) instanceof EsRejectedExecutionException;
+    }
+
+    private static BulkRequest copy(BulkRequest bulk, List<ActionRequest<?>> requests) {
+        BulkRequest copy = new BulkRequest();
+        copy.consistencyLevel(bulk.consistencyLevel());
+        copy.refresh(bulk.refresh());
+        copy.timeout(bulk.timeout());
+        for (ActionRequest<?> request : requests) {
+            if (request instanceof IndexRequest) copy.add((IndexRequest) request);
+            else if (request instanceof DeleteRequest) copy.add((DeleteRequest) request);
+            else if (request instanceof UpdateRequest) copy.add((UpdateRequest) request);
+        }
+        return copy;
+    }
+
+    /**
+     * 一次execute的结果
+     */
+    public static class Result {
+
+        private int     success;
+        private int     failed;
+        private int     retries;
+        private long    took;
+        private String  error;
+        private boolean requestFailed;
+        private int     rejected;
+
+        private void fail(int count, String message) {
+            failed += count;
+            if (error == null) error = message;
+        }
+
+        public int getSuccess() {
+            return success;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public int getRetries() {
+            return retries;
+        }
+
+        public long getTook() {
+            return took;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        /**
+         * @return 整个bulk请求失败(ES不可用等),不是部分条目失败
+         */
+        public boolean isRequestFailed() {
+            return requestFailed;
+        }
+
+        /**
+         * @return 重试次数用完后仍被拒绝的条目数
+         */
+        public int getRejected() {
+            return rejected;
+        }
+    }
+}
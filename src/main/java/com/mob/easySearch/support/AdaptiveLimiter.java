@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+import com.google.common.collect.Maps;
+
+/**
+ * 按ES延迟自适应的查询并发上限(gradient)
+ *
+ * <pre>
+ * longRtt: 查询耗时的长期均值(约longWindow个样本),代表ES没有排队时的延迟
+ * 每个查询完成后: gradient = clamp(tolerance * longRtt / rtt, 0.5, 1)
+ *               limit = limit * (1 - smoothing) + (limit * gradient + sqrt(limit)) * smoothing
+ * ES变慢(rtt超过longRtt的tolerance倍)时limit按比例减小,延迟正常时每次增加约sqrt(limit)*smoothing
+ * ES超时或拒绝(搜索线程池队列满)时limit乘以backoff
+ * 在途查询不到limit一半时不增长,避免空闲时limit无限增大;longRtt远高于当前rtt时逐步回落
+ * 在途查询达到limit,或排队的查询超过limit时直接拒绝(OverloadedException),不再排队等待
+ * </pre>
+ *
+ * @author zxc Dec 19, 2016 2:45:10 PM
+ */
+public class AdaptiveLimiter {
+
+    private volatile boolean enabled    = true;
+    private int              minLimit   = 8;
+    private int              maxLimit   = 200;
+    private double           tolerance  = 1.5;
+    private double           smoothing  = 0.2;
+    private int              longWindow = 600;
+    private double           backoff    = 0.9;
+
+    // 由this保护
+    private double           limit      = 32;
+    private int              inflight   = 0;
+    private double           longRtt    = 0;
+    private double           lastRtt    = 0;
+    private double           gradient   = 1;
+
+    private final AtomicLong admitted   = new AtomicLong();
+    private final AtomicLong shed       = new AtomicLong();
+    private final AtomicLong dropped    = new AtomicLong();
+
+    /**
+     * @param enabled
+     * @param initialLimit 初始并发上限
+     * @param minLimit
+     * @param maxLimit
+     * @param tolerance rtt超过longRtt的倍数才开始减小limit
+     * @param smoothing 每次调整的平滑系数(0,1]
+     * @param longWindow longRtt的样本窗口
+     * @param backoff ES超时或拒绝时limit的乘数
+     */
+    public void configure(boolean enabled, int initialLimit, int minLimit, int maxLimit, double tolerance,
+                          double smoothing, int longWindow, double backoff) {
+        int _limit;
+        synchronized (this) {
+            this.enabled = enabled;
+            this.minLimit = Math.max(1, minLimit);
+            this.maxLimit = Math.max(this.minLimit, maxLimit);
+            this.tolerance = Math.max(1, tolerance);
+            this.smoothing = Math.min(1, Math.max(0.01, smoothing));
+            this.longWindow = Math.max(1, longWindow);
+            this.backoff = Math.min(1, Math.max(0.1, backoff));
+            this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+            _limit = (int) limit;
+        }
+        if (enabled) onLimit(_limit);
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * 排队的查询超过limit时拒绝
+     *
+     * @param queued 正在排队的查询数
+     * @throws OverloadedException
+     */
+    public void check(int queued) throws OverloadedException {
+        if (!enabled) return;
+        int _limit = getLimit();
+        if (queued >= _limit) {
+            shed.incrementAndGet();
+            throw new OverloadedException("search overloaded, queued=" + queued + ", limit=" + _limit);
+        }
+    }
+
+    /**
+     * 开始一次查询,必须调用{@link #finish(long, Throwable)}
+     *
+     * @return 开始时间
+     * @throws OverloadedException 在途查询已达到limit
+     */
+    public long start() throws OverloadedException {
+        if (!enabled) return System.nanoTime();
+        synchronized (this) {
+            if (inflight >= (int) limit) {
+                shed.incrementAndGet();
+                throw new OverloadedException("search overloaded, inflight=" + inflight + ", limit=" + (int) limit);
+            }
+            inflight++;
+        }
+        admitted.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * 查询结束,按耗时调整limit
+     *
+     * @param start {@link #start()}的返回值
+     * @param error 查询失败时的异常,成功为null
+     */
+    public void finish(long start, Throwable error) {
+        if (!enabled) return;
+        double rtt = Math.max(0.1, (System.nanoTime() - start) / 1000000.0);
+        int previous, _limit;
+        synchronized (this) {
+            previous = (int) limit;
+            inflight--;
+            if (isDropped(error)) {
+                dropped.incrementAndGet();
+                limit = Math.max(minLimit, limit * backoff);
+            } else if (error == null) {
+                update(rtt);
+            }
+            _limit = (int) limit;
+        }
+        if (_limit != previous) onLimit(_limit);
+    }
+
+    /**
+     * limit变化时回调,如调整公平调度的全局并发数
+     *
+     * @param limit
+     */
+    protected void onLimit(int limit) {
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = Maps.newLinkedHashMap();
+        stats.put("enabled", enabled);
+        synchronized (this) {
+            stats.put("limit", (int) limit);
+            stats.put("minLimit", minLimit);
+            stats.put("maxLimit", maxLimit);
+            stats.put("inflight", inflight);
+            stats.put("longRtt", Math.round(longRtt * 100) / 100.0);
+            stats.put("lastRtt", Math.round(lastRtt * 100) / 100.0);
+            stats.put("gradient", Math.round(gradient * 100) / 100.0);
+        }
+        stats.put("admitted", admitted.get());
+        stats.put("shed", shed.get());
+        stats.put("dropped", dropped.get());
+        return stats;
+    }
+
+    // *********************************************** private method *******************************************//
+
+    private void update(double rtt) {
+        lastRtt = rtt;
+        longRtt = longRtt == 0 ? rtt : longRtt + (rtt - longRtt) / longWindow;
+        // 负载下降后longRtt会长时间偏高,逐步回落
+        if (longRtt / rtt > 2) longRtt *= 0.95;
+        gradient = Math.max(0.5, Math.min(1.0, tolerance * longRtt / rtt));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        newLimit = limit * (1 - smoothing) + newLimit * smoothing;
+        if (newLimit > limit && inflight + 1 < limit / 2) return;
+        limit = Math.min(maxLimit, Math.max(minLimit, newLimit));
+    }
+
+    // ES超时或搜索线程池拒绝
+    static boolean isDropped(Throwable error) {
+        if (error == null) return false;
+        Throwable cause = ExceptionsHelper.unwrapCause(error);
+        return cause instanceof ElasticsearchTimeoutException || cause instanceof EsRejectedExecutionException
+               || String.valueOf(error.getMessage()).contains("EsRejectedExecutionException");
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.lamfire.logger.Logger;
+import com.lamfire.logger.LoggerFactory;
+
+/**
+ * 索引写缓冲,把单条index请求合并成bulk,交给AdaptiveBulk提交
+ *
+ * <pre>
+ * 满足任一条件即提交一次bulk:
+ * 1 缓冲的文档数达到AdaptiveBulk当前的batchActions(随took和拒绝情况调整)
+ * 2 缓冲的字节数达到bulkSize
+ * 3 距上次提交超过flushInterval
+ * 最多concurrentRequests个bulk已提交未返回,超过时add等待;实际同时在途的bulk数由AdaptiveBulk控制
+ * 被拒绝的条目由AdaptiveBulk按退避重试,其它失败计入failed
+ * </pre>
+ *
+ * @author zxc Nov 23, 2016 2:18:06 PM
+ */
+public class BulkIndexer {
+
+    private static final Logger _         = LoggerFactory.getLogger(BulkIndexer.class);
+
+    private final AdaptiveBulk  adaptiveBulk;
+    private final long          bulkSize;
+    private final long          flushInterval;
+    private final int           concurrentRequests;
+    private final Semaphore     inflight;
+
+    // 由this保护
+    private BulkRequest         bulk      = new BulkRequest();
+    private long                lastFlush = System.currentTimeMillis();
+    private volatile boolean    closed    = false;
+
+    private final AtomicLong    queued    = new AtomicLong();
+    private final AtomicLong    indexed   = new AtomicLong();
+    private final AtomicLong    failed    = new AtomicLong();
+    private final AtomicLong    bulks     = new AtomicLong();
+    private final AtomicLong    bulkError = new AtomicLong();
+    private final AtomicLong    retries   = new AtomicLong();
+
+    /**
+     * @param adaptiveBulk 决定批次文档数和在途bulk数,重试被拒绝的条目
+     * @param bulkSizeMb 每个bulk最大字节数(MB)
+     * @param flushInterval 定时提交间隔ms
+     * @param concurrentRequests 已提交未返回的bulk数上限
+     */
+    public BulkIndexer(AdaptiveBulk adaptiveBulk, int bulkSizeMb, long flushInterval, int concurrentRequests) {
+        this.adaptiveBulk = adaptiveBulk;
+        this.bulkSize = bulkSizeMb * 1024L * 1024L;
+        this.flushInterval = flushInterval;
+        this.concurrentRequests = Math.max(1, concurrentRequests);
+        this.inflight = new Semaphore(this.concurrentRequests);
+        if (flushInterval <= 0) return;
+        ThreadUtil.startThread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (!closed) {
+                    ThreadUtil.sleep(BulkIndexer.this.flushInterval);
+                    BulkRequest _bulk;
+                    synchronized (BulkIndexer.this) {
+                        if (System.currentTimeMillis() - lastFlush < BulkIndexer.this.flushInterval) continue;
+                        _bulk = take();
+                    }
+                    if (_bulk != null) submit(_bulk);
+                }
+            }
+        }, "BulkIndexer");
+    }
+
+    /**
+     * 加入缓冲,不等待ES返回;已提交未返回的bulk数达到上限时等待
+     *
+     * @param request
+     */
+    public void add(IndexRequest request) {
+        if (request == null) return;
+        BulkRequest _bulk = null;
+        synchronized (this) {
+            if (closed) throw new IllegalStateException("bulk indexer is closed");
+            bulk.add(request);
+            queued.incrementAndGet();
+            if (bulk.numberOfActions() >= adaptiveBulk.batchActions() || bulk.estimatedSizeInBytes() >= bulkSize) {
+                _bulk = take();
+            }
+        }
+        if (_bulk != null) submit(_bulk);
+    }
+
+    /**
+     * 提交剩余缓冲,等待全部bulk返回后关闭
+     */
+    public void close() {
+        BulkRequest _bulk;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            _bulk = take();
+        }
+        if (_bulk != null) submit(_bulk);
+        try {
+            inflight.acquire(concurrentRequests);
+            inflight.release(concurrentRequests);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 一个bulk返回后回调,参数为bulk中涉及的index
+     *
+     * @param indices
+     */
+    protected void onBulk(Set<String> indices) {
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = Maps.newLinkedHashMap();
+        stats.put("queued", queued.get());
+        stats.put("indexed", indexed.get());
+        stats.put("failed", failed.get());
+        stats.put("bulks", bulks.get());
+        stats.put("bulkError", bulkError.get());
+        stats.put("retries", retries.get());
+        stats.put("inflight", concurrentRequests - inflight.availablePermits());
+        return stats;
+    }
+
+    // *********************************************** private method *******************************************//
+
+    // 取出当前缓冲,为空时返回null,调用方持有this
+    private BulkRequest take() {
+        lastFlush = System.currentTimeMillis();
+        if (bulk.numberOfActions() == 0) return null;
+        BulkRequest _bulk = bulk;
+        bulk = new BulkRequest();
+        return _bulk;
+    }
+
+    // 占用一个名额后在bulk线程池中提交,不阻塞BulkIndexer的锁
+    private void submit(final BulkRequest _bulk) {
+        final int actions = _bulk.numberOfActions();
+        try {
+            inflight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed.addAndGet(actions);
+            _.error("bulk submit interrupted, actions=" + actions);
+            return;
+        }
+        try {
+            ThreadUtil.submitTask(AdaptiveBulk.EXECUTOR, new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        AdaptiveBulk.Result result = adaptiveBulk.execute(_bulk);
+                        bulks.incrementAndGet();
+                        indexed.addAndGet(result.getSuccess());
+                        failed.addAndGet(result.getFailed());
+                        retries.addAndGet(result.getRetries());
+                        if (result.isRequestFailed()) bulkError.incrementAndGet();
+                        if (result.getFailed() > 0) _.error("bulk has failures: " + result.getError());
+                    } catch (Throwable e) {
+                        bulkError.incrementAndGet();
+                        failed.addAndGet(actions);
+                        _.error("bulk error, actions=" + actions, e);
+                    } finally {
+                        inflight.release();
+                        onBulk(indices(_bulk));
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            inflight.release();
+            bulkError.incrementAndGet();
+            failed.addAndGet(actions);
+            _.error("bulk submit rejected, actions=" + actions, e);
+        }
+    }
+
+    private static Set<String> indices(BulkRequest request) {
+        Set<String> indices = Sets.newHashSet();
+        for (ActionRequest<?> req : request.requests()) {
+            if (req instanceof IndexRequest) indices.add(((IndexRequest) req).index());
+        }
+        return indices;
+    }
+}
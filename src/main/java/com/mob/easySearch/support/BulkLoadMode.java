@@ -0,0 +1,256 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.hppc.cursors.ObjectObjectCursor;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.lamfire.logger.Logger;
+import com.lamfire.logger.LoggerFactory;
+
+/**
+ * 大批量导入模式
+ *
+ * <pre>
+ * enter: 记录index原来的refresh_interval/number_of_replicas,改为-1/0
+ * exit: refresh,需要时optimize,最后恢复原来的设置(恢复放在finally中,refresh/optimize失败也会恢复)
+ * optimize在恢复副本之前执行,副本直接复制合并后的segment
+ * 同一个index可以同时有多个导入,按引用计数,最后一个导入结束时才恢复;锁只保护引用计数,refresh/optimize不持锁
+ * alias指向多个index时,其中一个进入失败会回滚本次已进入的index
+ * 传入alias时作用于alias指向的实际index
+ * 进程退出时restoreAll恢复所有还在导入模式中的index
+ * </pre>
+ *
+ * @author zxc Dec 8, 2016 4:12:37 PM
+ */
+public class BulkLoadMode {
+
+    private static final Logger       _               = LoggerFactory.getLogger(BulkLoadMode.class);
+
+    private static final String       REFRESH         = "index.refresh_interval";
+    private static final String       REPLICAS        = "index.number_of_replicas";
+    private static final String       DEFAULT_REFRESH = "1s";
+
+    private final Client              client;
+    // 实际index -> 导入前的设置
+    private final Map<String, Origin> loading         = Maps.newHashMap();
+    private volatile int              maxNumSegments  = 1;
+
+    public BulkLoadMode(Client client) {
+        this.client = client;
+    }
+
+    /**
+     * @param maxNumSegments optimize合并到的segment数
+     */
+    public void configure(int maxNumSegments) {
+        this.maxNumSegments = maxNumSegments;
+    }
+
+    /**
+     * 进入导入模式,其中一个index失败时回滚本次已进入的index
+     *
+     * @param indexName index或alias
+     * @return 实际的index,exit时传回
+     */
+    public synchronized List<String> enter(String indexName) {
+        GetSettingsResponse response = client.admin().indices().prepareGetSettings(indexName).execute()//
+        .actionGet(Timeouts.admin());
+        ImmutableOpenMap<String, Settings> indexToSettings = response.getIndexToSettings();
+        List<String> indices = Lists.newArrayList();
+        try {
+            for (ObjectObjectCursor<String, Settings> cursor : indexToSettings) {
+                String index = cursor.key;
+                Origin origin = awaitRestored(index);
+                if (origin == null) {
+                    origin = new Origin(cursor.value.get(REFRESH), cursor.value.get(REPLICAS));
+                    update(index, "-1", "0");
+                    loading.put(index, origin);
+                    _.info("bulk load '" + index + "' start, origin refresh=" + origin.refresh + ", replicas="
+                           + origin.replicas);
+                }
+                origin.count++;
+                indices.add(index);
+            }
+        } catch (RuntimeException e) {
+            rollback(indices);
+            throw e;
+        }
+        return indices;
+    }
+
+    /**
+     * 退出导入模式,最后一个导入结束时refresh/optimize并恢复设置
+     *
+     * <pre>
+     * 只有引用计数在锁内,refresh/optimize/恢复设置在锁外执行,不阻塞其他index的enter/exit/stats
+     * refresh/optimize期间又有导入进入时不恢复设置,由那次导入的exit恢复
+     * </pre>
+     *
+     * @param indices enter返回的index
+     * @param optimize 是否optimize
+     */
+    public void exit(List<String> indices, boolean optimize) {
+        RuntimeException error = null;
+        for (String index : release(indices)) {
+            try {
+                client.admin().indices().prepareRefresh(index).execute().actionGet(Timeouts.maintenance());
+                if (optimize) {
+                    long start = System.currentTimeMillis();
+                    client.admin().indices().prepareOptimize(index).setMaxNumSegments(maxNumSegments).execute()//
+                    .actionGet(Timeouts.maintenance());
+                    _.info("bulk load '" + index + "' optimized in " + (System.currentTimeMillis() - start) + "ms");
+                }
+            } catch (RuntimeException e) {
+                _.error("bulk load '" + index + "' refresh/optimize error!", e);
+                if (error == null) error = e;
+            } finally {
+                try {
+                    restore(index);
+                } catch (RuntimeException e) {
+                    _.error("bulk load '" + index + "' restore settings error!", e);
+                    if (error == null) error = e;
+                }
+            }
+        }
+        if (error != null) throw error;
+    }
+
+    /**
+     * 恢复所有还在导入模式中的index
+     */
+    public void restoreAll() {
+        List<String> indices;
+        synchronized (this) {
+            indices = Lists.newArrayList(loading.keySet());
+            for (String index : indices)
+                loading.get(index).count = 0;
+        }
+        for (String index : indices) {
+            try {
+                restore(index);
+            } catch (RuntimeException e) {
+                _.error("bulk load '" + index + "' restore settings error!", e);
+            }
+        }
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = Maps.newLinkedHashMap();
+        for (Map.Entry<String, Origin> entry : loading.entrySet()) {
+            Map<String, Object> stat = Maps.newLinkedHashMap();
+            stat.put("loads", entry.getValue().count);
+            stat.put("refresh", entry.getValue().refresh);
+            stat.put("replicas", entry.getValue().replicas);
+            stats.put(entry.getKey(), stat);
+        }
+        return stats;
+    }
+
+    // *********************************************** private method *******************************************//
+
+    /**
+     * 引用计数减一,返回计数归零需要结束导入的index
+     */
+    private synchronized List<String> release(List<String> indices) {
+        List<String> finished = Lists.newArrayList();
+        for (String index : indices) {
+            Origin origin = loading.get(index);
+            if (origin == null || origin.count <= 0) continue;
+            if (--origin.count == 0) finished.add(index);
+        }
+        return finished;
+    }
+
+    /**
+     * enter失败时回滚本次已进入的index,本次新进入的恢复原来的设置
+     */
+    private void rollback(List<String> indices) {
+        for (String index : indices) {
+            Origin origin = loading.get(index);
+            if (origin == null || --origin.count > 0) continue;
+            try {
+                update(index, origin.refresh == null ? DEFAULT_REFRESH : origin.refresh, origin.replicas);
+                loading.remove(index);
+                _.info("bulk load '" + index + "' rollback, restore refresh=" + origin.refresh + ", replicas="
+                       + origin.replicas);
+            } catch (RuntimeException e) {
+                // 留在loading中,由restoreAll恢复
+                _.error("bulk load '" + index + "' rollback settings error!", e);
+            }
+        }
+    }
+
+    /**
+     * 等待index正在进行的恢复结束
+     *
+     * @return 还在导入模式中的记录,没有时返回null
+     */
+    private Origin awaitRestored(String index) {
+        Origin origin = loading.get(index);
+        try {
+            while (origin != null && origin.restoring) {
+                wait();
+                origin = loading.get(index);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("wait bulk load '" + index + "' restore interrupted");
+        }
+        return origin;
+    }
+
+    private void restore(String index) {
+        Origin origin;
+        synchronized (this) {
+            origin = loading.get(index);
+            // 期间又有导入进入或者已被其他线程恢复
+            if (origin == null || origin.count > 0 || origin.restoring) return;
+            origin.restoring = true;
+        }
+        boolean restored = false;
+        try {
+            update(index, origin.refresh == null ? DEFAULT_REFRESH : origin.refresh, origin.replicas);
+            restored = true;
+            _.info("bulk load '" + index + "' finished, restore refresh=" + origin.refresh + ", replicas="
+                   + origin.replicas);
+        } finally {
+            synchronized (this) {
+                origin.restoring = false;
+                if (restored) loading.remove(index);
+                notifyAll();
+            }
+        }
+    }
+
+    private void update(String index, String refresh, String replicas) {
+        ImmutableSettings.Builder settings = ImmutableSettings.settingsBuilder().put(REFRESH, refresh);
+        if (replicas != null) settings.put(REPLICAS, replicas);
+        client.admin().indices().prepareUpdateSettings(index).setSettings(settings).execute()//
+        .actionGet(Timeouts.admin());
+    }
+
+    private static class Origin {
+
+        private final String refresh;
+        private final String replicas;
+        // 由BulkLoadMode.this保护
+        private int          count;
+        private boolean      restoring;
+
+        Origin(String refresh, String replicas) {
+            this.refresh = refresh;
+            this.replicas = replicas;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * 批量导入结果,记录每个批次的成功失败数
+ *
+ * @author zxc Nov 24, 2016 11:02:47 AM
+ */
+public class BulkResult {
+
+    private final AtomicLong                success   = new AtomicLong();
+    private final AtomicLong                failed    = new AtomicLong();
+    private final AtomicLong                bytes     = new AtomicLong();
+    private final AtomicLong                retries   = new AtomicLong();
+    private final List<Map<String, Object>> batches   = Collections.synchronizedList(Lists.<Map<String, Object>> newArrayList());
+    private final long                      startTime = System.currentTimeMillis();
+
+    /**
+     * 记录一个整体失败的批次
+     *
+     * @param batch
+     * @param actions
+     * @param size
+     * @param e
+     */
+    public void onFailure(int batch, int actions, long size, Throwable e) {
+        record(batch, 0, actions, size, -1, e.getMessage(), 0);
+    }
+
+    /**
+     * 记录一个经过重试的批次
+     *
+     * @param batch
+     * @param size
+     * @param result
+     */
+    public void onResult(int batch, long size, AdaptiveBulk.Result result) {
+        retries.addAndGet(result.getRetries());
+        record(batch, result.getSuccess(), result.getFailed(), size, result.getTook(), result.getError(),
+               result.getRetries());
+    }
+
+    public long getSuccess() {
+        return success.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public Map<String, Object> toMap() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        Map<String, Object> map = Maps.newLinkedHashMap();
+        map.put("total", success.get() + failed.get());
+        map.put("success", success.get());
+        map.put("failed", failed.get());
+        map.put("bytes", bytes.get());
+        map.put("retries", retries.get());
+        map.put("elapsed", elapsed);
+        map.put("docsPerSecond", (success.get() + failed.get()) * 1000 / elapsed);
+        synchronized (batches) {
+            map.put("batches", Lists.newArrayList(batches));
+        }
+        return map;
+    }
+
+    private void record(int batch, int _success, int _failed, long size, long took, String error, int _retries) {
+        success.addAndGet(_success);
+        failed.addAndGet(_failed);
+        bytes.addAndGet(size);
+        Map<String, Object> map = Maps.newLinkedHashMap();
+        map.put("batch", batch);
+        map.put("success", _success);
+        map.put("failed", _failed);
+        map.put("took", took);
+        if (_retries > 0) map.put("retries", _retries);
+        if (error != null) map.put("error", error);
+        batches.add(map);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.client.Client;
+
+import com.google.common.collect.Maps;
+
+/**
+ * 执行通道(舱壁):交互搜索、写入、导出、管理四类请求各用一个,互不占用对方的连接和线程
+ *
+ * <pre>
+ * 每个通道有自己的Client(transport模式下是独立的TransportClient,连接和transport线程池都不共享)
+ * 和并发上限:同时执行的请求数达到maxConcurrent时排队等待,排队数超过maxQueue或等待超过queueTimeout时
+ * 抛出RejectedExecutionException(返回429),大批量写入只会在写入通道排队,不会拖慢搜索
+ * 导出通道和写入通道共用Client,但并发数单独计算,长时间的导出不会占满写入的并发数
+ * 排队的请求占用一个Tomcat线程,所有通道的maxConcurrent+maxQueue之和不能超过Tomcat线程数(启动时检查),
+ * 否则一个通道排满时其他通道拿不到线程
+ * </pre>
+ *
+ * @author zxc Dec 15, 2016 10:26:41 AM
+ */
+public class Bulkhead {
+
+    public static final String SEARCH        = "search";
+    public static final String INGEST        = "ingest";
+    public static final String EXPORT        = "export";
+    public static final String ADMIN         = "admin";
+
+    private final String       name;
+    private final Client       client;
+
+    private int                maxConcurrent = 100;
+    private int                maxQueue      = 100;
+    private long               queueTimeout  = 1000;
+
+    // 由this保护
+    private int                active        = 0;
+    private int                waiting       = 0;
+    private int                peakActive    = 0;
+    private int                peakWaiting   = 0;
+
+    private final AtomicLong   admitted      = new AtomicLong();
+    private final AtomicLong   rejected      = new AtomicLong();
+    private final AtomicLong   timeouts      = new AtomicLong();
+    private final AtomicLong   waitTime      = new AtomicLong();
+    private final AtomicLong   maxWait       = new AtomicLong();
+
+    public Bulkhead(String name, Client client) {
+        this.name = name;
+        this.client = client;
+    }
+
+    /**
+     * @param maxConcurrent 同时执行的请求数上限
+     * @param maxQueue 排队等待的请求数上限
+     * @param queueTimeout 排队等待上限ms
+     */
+    public synchronized void configure(int maxConcurrent, int maxQueue, long queueTimeout) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxQueue = Math.max(0, maxQueue);
+        this.queueTimeout = queueTimeout;
+        notifyAll();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Client getClient() {
+        return client;
+    }
+
+    /**
+     * 进入通道,必须在finally中调用{@link #release()}
+     *
+     * @throws RejectedExecutionException 排队已满或等待超时
+     */
+    public void acquire() throws RejectedExecutionException {
+        long start = System.currentTimeMillis();
+        synchronized (this) {
+            if (active >= maxConcurrent) {
+                if (waiting >= maxQueue) {
+                    rejected.incrementAndGet();
+                    throw new RejectedExecutionException(name + " lane is full, active=" + active + ", waiting="
+                                                         + waiting);
+                }
+                waiting++;
+                peakWaiting = Math.max(peakWaiting, waiting);
+                try {
+                    long deadline = start + queueTimeout;
+                    while (active >= maxConcurrent) {
+                        long remain = deadline - System.currentTimeMillis();
+                        if (remain <= 0) {
+                            timeouts.incrementAndGet();
+                            throw new RejectedExecutionException(name + " lane wait timeout " + queueTimeout + "ms");
+                        }
+                        wait(remain);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(name + " lane wait interrupted");
+                } finally {
+                    waiting--;
+                }
+            }
+            active++;
+            peakActive = Math.max(peakActive, active);
+        }
+        long wait = System.currentTimeMillis() - start;
+        admitted.incrementAndGet();
+        waitTime.addAndGet(wait);
+        if (wait > maxWait.get()) maxWait.set(wait);
+    }
+
+    public synchronized void release() {
+        active--;
+        notifyAll();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = Maps.newLinkedHashMap();
+        stats.put("name", name);
+        synchronized (this) {
+            stats.put("maxConcurrent", maxConcurrent);
+            stats.put("maxQueue", maxQueue);
+            stats.put("queueTimeout", queueTimeout);
+            stats.put("active", active);
+            stats.put("waiting", waiting);
+            stats.put("peakActive", peakActive);
+            stats.put("peakWaiting", peakWaiting);
+        }
+        long _admitted = admitted.get();
+        stats.put("admitted", _admitted);
+        stats.put("rejected", rejected.get());
+        stats.put("timeouts", timeouts.get());
+        stats.put("avgWait", _admitted == 0 ? 0 : waitTime.get() / _admitted);
+        stats.put("maxWait", maxWait.get());
+        return stats;
+    }
+}
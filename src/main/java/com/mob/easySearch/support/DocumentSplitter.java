@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * 把请求体切分成单个文档的字节区间,不构造对象
+ *
+ * <pre>
+ * 支持JSON数组 [{..},{..}] 和NDJSON(每行一个对象,也允许多个对象以空白分隔)
+ * 用流式tokenizer扫描一遍:只读取顶层的id字段,其它字段跳过;
+ * 每个文档回调原始字节的起止位置,调用方直接作为IndexRequest.source(bytes, offset, length)
+ * </pre>
+ *
+ * @author zxc Dec 13, 2016 11:52:08 AM
+ */
+public class DocumentSplitter {
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    /**
+     * 文档回调
+     */
+    public interface Handler {
+
+        /**
+         * @param id 顶层id字段,没有时为null
+         * @param offset 文档在body中的起始位置
+         * @param length 文档字节数
+         */
+        void onDocument(String id, int offset, int length);
+    }
+
+    /**
+     * @param body UTF-8 JSON数组或NDJSON
+     * @param handler
+     * @return 文档数
+     * @throws IOException JSON格式错误或元素不是对象
+     */
+    public static int split(byte[] body, Handler handler) throws IOException {
+        JsonParser parser = FACTORY.createParser(body);
+        int count = 0;
+        try {
+            JsonToken token = parser.nextToken();
+            boolean array = token == JsonToken.START_ARRAY;
+            if (array) token = parser.nextToken();
+            while (token != null) {
+                if (array && token == JsonToken.END_ARRAY) {
+                    if (parser.nextToken() != null) throw error(parser, "unexpected content after array");
+                    break;
+                }
+                if (token != JsonToken.START_OBJECT) throw error(parser, "document must be an object");
+                int offset = (int) parser.getTokenLocation().getByteOffset();
+                String id = document(parser);
+                int end = (int) parser.getCurrentLocation().getByteOffset();
+                handler.onDocument(id, offset, end - offset);
+                count++;
+                token = parser.nextToken();
+            }
+        } finally {
+            parser.close();
+        }
+        return count;
+    }
+
+    // 从START_OBJECT扫描到对应的END_OBJECT,返回顶层id
+    private static String document(JsonParser parser) throws IOException {
+        String id = null;
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_OBJECT) {
+            if (token == null) throw error(parser, "unexpected end of document");
+            String name = parser.getCurrentName();
+            token = parser.nextToken();
+            if ("id".equals(name) && token.isScalarValue() && token != JsonToken.VALUE_NULL) {
+                id = parser.getText();
+            } else if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                parser.skipChildren();
+            }
+        }
+        return id;
+    }
+
+    private static IOException error(JsonParser parser, String msg) {
+        return new IOException(msg + " at " + parser.getTokenLocation().getByteOffset());
+    }
+}
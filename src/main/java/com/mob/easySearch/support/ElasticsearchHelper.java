@@ -5,13 +5,26 @@ package com.mob.easySearch.support;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
 import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.WriteConsistencyLevel;
+import org.elasticsearch.action.admin.cluster.shards.ClusterSearchShardsGroup;
+import org.elasticsearch.action.admin.cluster.shards.ClusterSearchShardsResponse;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesResponse;
 import org.elasticsearch.action.admin.indices.analyze.AnalyzeRequest;
 import org.elasticsearch.action.admin.indices.analyze.AnalyzeResponse;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
@@ -21,36 +34,48 @@ import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsRequest;
 import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsResponse;
 import org.elasticsearch.action.admin.indices.mapping.put.PutMappingRequest;
 import org.elasticsearch.action.bulk.BulkRequest;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.get.GetRequest;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.Requests;
 import org.elasticsearch.client.transport.TransportClient;
-import org.elasticsearch.common.hppc.ObjectLookupContainer;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
 import org.elasticsearch.common.hppc.cursors.ObjectCursor;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.ImmutableSettings.Builder;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.index.query.*;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
 import org.elasticsearch.search.aggregations.Aggregations;
 import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.search.aggregations.bucket.terms.TermsBuilder;
+import org.elasticsearch.search.aggregations.metrics.cardinality.Cardinality;
+import org.elasticsearch.search.aggregations.metrics.cardinality.CardinalityBuilder;
 import org.elasticsearch.search.aggregations.metrics.max.MaxBuilder;
 import org.elasticsearch.search.aggregations.metrics.tophits.TopHits;
 import org.elasticsearch.search.aggregations.metrics.tophits.TopHitsBuilder;
 import org.elasticsearch.search.sort.SortOrder;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -66,15 +91,67 @@ public class ElasticsearchHelper {
 
     private static final Logger _ = LoggerFactory.getLogger(ElasticsearchHelper.class);
 
-    private Client              client;
-    private String              clusterName;
+    private Client                            client;
+    // search/ingest/admin执行通道,admin通道使用client
+    private Map<String, Bulkhead>             lanes            = Maps.newLinkedHashMap();
+    // client/local模式下嵌入的节点
+    private Node                              node;
+    private String                            clusterName;
+    private MappingRegistry                   mappingRegistry  = new MappingRegistry(this);
+    private BulkIndexer                       bulkIndexer;
+    // ingest通道的client,旧index迁移到alias时暂停写入
+    private WriteGate                         writeGate;
+    // 按节点延迟选择时各通道共用的数据节点
+    private LatencyAwareClient.Nodes          dataNodes;
+    private SearchTypePolicy                  searchTypePolicy = new SearchTypePolicy(this);
+    private SearchCache                       searchCache      = new SearchCache();
+    private SingleFlight<Map<String, Object>> searchFlight     = new SingleFlight<Map<String, Object>>();
+    private FairScheduler                     searchScheduler  = new FairScheduler();
+    // 自适应的并发上限同时作为公平调度的全局并发数
+    private AdaptiveLimiter                   searchLimiter    = new AdaptiveLimiter() {
+
+                                                                   @Override
+                                                                   protected void onLimit(int limit) {
+                                                                       searchScheduler.setMaxConcurrent(limit);
+                                                                   }
+                                                               };
+    // alias -> 正在进行的(或最近一次)reindex
+    private ConcurrentMap<String, Reindexer>  reindexers       = Maps.newConcurrentMap();
+    private volatile int                      reindexBatchSize = 1000;
+    private volatile long                     reindexKeepAlive = 300000;
+    private volatile boolean                  dropOldVersion   = false;
+    private BulkLoadMode                      bulkLoadMode;
+    private AdaptiveBulk                      adaptiveBulk;
+    private IndexJournal                      journal;
+    private JournalReplayer                   journalReplayer;
 
     public ElasticsearchHelper(String clusterName, String host, int port) {
         this.client = makeClient(clusterName, host, port);
         this.clusterName = clusterName;
+        initLanes(client, client);
     }
 
     public ElasticsearchHelper(String clusterName, String[] nodes) {
+        this(clusterName, nodes, null);
+    }
+
+    /**
+     * @param clusterName
+     * @param nodes host:port
+     * @param selection 按节点延迟选择数据节点,为null时使用TransportClient的轮询
+     */
+    public ElasticsearchHelper(String clusterName, String[] nodes, LatencyAwareClient.Config selection) {
+        this(clusterName, nodes, selection, false);
+    }
+
+    /**
+     * @param clusterName
+     * @param nodes host:port
+     * @param selection 按节点延迟选择数据节点,为null时使用TransportClient的轮询
+     * @param isolated search/ingest通道各自创建TransportClient,不与admin共享连接和transport线程池
+     */
+    public ElasticsearchHelper(String clusterName, String[] nodes, LatencyAwareClient.Config selection,
+                               boolean isolated) {
         List<Map<String, Object>> _nodes = Lists.newArrayList();
         for (String node : nodes) {
             Map<String, Object> map = Maps.newHashMap();
@@ -82,13 +159,71 @@ public class ElasticsearchHelper {
             map.put("port", StringUtils.split(node, ":")[1]);
             _nodes.add(map);
         }
-        this.client = makeClient(clusterName, _nodes);
+        Settings settings = makeSettings(clusterName, selection);
+        TransportClient seed = makeClient(settings, _nodes);
         this.clusterName = clusterName;
+        if (selection == null) {
+            this.client = seed;
+            if (isolated) initLanes(makeClient(settings, _nodes), makeClient(settings, _nodes));
+            else initLanes(client, client);
+            return;
+        }
+        // 各通道共用一份数据节点和一个NodeSniffer线程,只有seed是各自的
+        this.dataNodes = new LatencyAwareClient.Nodes(seed, settings, selection);
+        this.client = new LatencyAwareClient(seed, dataNodes);
+        if (isolated) initLanes(new LatencyAwareClient(makeClient(settings, _nodes), dataNodes),
+                                new LatencyAwareClient(makeClient(settings, _nodes), dataNodes));
+        else initLanes(client, client);
+    }
+
+    /**
+     * 通过嵌入的节点访问集群
+     * 
+     * @param clusterName
+     * @param node makeClientNode/makeLocalNode创建的节点
+     */
+    public ElasticsearchHelper(String clusterName, Node node) {
+        this.node = node;
+        this.client = node.client();
+        this.clusterName = clusterName;
+        initLanes(client, client);
+    }
+
+    /**
+     * 按模式创建
+     * 
+     * <pre>
+     * transport: TransportClient连接es.nodes(默认),selection不为null时按节点延迟选择
+     * node: 启动不存数据、不参与选主的client节点加入集群,持有cluster state,直接把请求发到分片所在节点并在本地合并结果,
+     *       省去TransportClient到协调节点的一跳;es.nodes作为unicast hosts(transport端口)
+     * local: 启动JVM内的本地数据节点,不连接外部集群,用于测试
+     * node/local模式下各通道共用节点的client,只有并发上限是独立的
+     * </pre>
+     * 
+     * @param mode transport/node/local
+     * @param clusterName
+     * @param nodes host:port
+     * @param localData local模式的数据目录
+     * @param selection transport模式的节点选择
+     * @param isolated transport模式下search/ingest通道使用独立的TransportClient
+     * @return
+     */
+    public static ElasticsearchHelper create(String mode, String clusterName, String[] nodes, String localData,
+                                             LatencyAwareClient.Config selection, boolean isolated) {
+        if ("node".equalsIgnoreCase(mode)) return new ElasticsearchHelper(clusterName, makeClientNode(clusterName, nodes));
+        if ("local".equalsIgnoreCase(mode)) return new ElasticsearchHelper(clusterName, makeLocalNode(clusterName, localData));
+        return new ElasticsearchHelper(clusterName, nodes, selection, isolated);
+    }
+
+    public static ElasticsearchHelper create(String mode, String clusterName, String[] nodes, String localData,
+                                             LatencyAwareClient.Config selection) {
+        return create(mode, clusterName, nodes, localData, selection, false);
     }
 
     public ElasticsearchHelper(String clusterName, List<Map<String, Object>> nodes) {
         this.client = makeClient(clusterName, nodes);
         this.clusterName = clusterName;
+        initLanes(client, client);
     }
 
     public String getClusterName() {
@@ -99,6 +234,161 @@ public class ElasticsearchHelper {
         return this.client;
     }
 
+    /**
+     * @param lane Bulkhead.SEARCH/INGEST/EXPORT/ADMIN
+     * @return
+     */
+    public Client getClient(String lane) {
+        return getLane(lane).getClient();
+    }
+
+    public Bulkhead getLane(String lane) {
+        Bulkhead bulkhead = lanes.get(lane);
+        if (bulkhead == null) throw new IllegalArgumentException("unknown lane " + lane);
+        return bulkhead;
+    }
+
+    public List<Map<String, Object>> laneStats() {
+        List<Map<String, Object>> stats = Lists.newArrayList();
+        for (Bulkhead lane : lanes.values())
+            stats.add(lane.stats());
+        return stats;
+    }
+
+    /**
+     * @return 按节点延迟选择时search通道每个节点的统计,否则为null
+     */
+    public List<Map<String, Object>> nodeStats() {
+        Client search = getClient(Bulkhead.SEARCH);
+        if (!(search instanceof LatencyAwareClient)) return null;
+        return ((LatencyAwareClient) search).stats();
+    }
+
+    public void close() {
+        if (dataNodes != null) dataNodes.close();
+        // export通道和ingest通道共用client,只关闭一次
+        Set<Client> closed = Sets.newIdentityHashSet();
+        for (Bulkhead lane : lanes.values()) {
+            Client _client = lane.getClient() == writeGate ? writeGate.getClient() : lane.getClient();
+            if (_client != client && closed.add(_client)) _client.close();
+        }
+        client.close();
+        if (node != null) node.close();
+    }
+
+    public MappingRegistry getMappingRegistry() {
+        return this.mappingRegistry;
+    }
+
+    public SearchTypePolicy getSearchTypePolicy() {
+        return this.searchTypePolicy;
+    }
+
+    public SearchCache getSearchCache() {
+        return this.searchCache;
+    }
+
+    public AdaptiveBulk getAdaptiveBulk() {
+        return adaptiveBulk;
+    }
+
+    public BulkLoadMode getBulkLoadMode() {
+        return bulkLoadMode;
+    }
+
+    public SingleFlight<Map<String, Object>> getSearchFlight() {
+        return this.searchFlight;
+    }
+
+    public FairScheduler getSearchScheduler() {
+        return this.searchScheduler;
+    }
+
+    public AdaptiveLimiter getSearchLimiter() {
+        return this.searchLimiter;
+    }
+
+    /**
+     * @param batchSize reindex每个分片每页的文档数
+     * @param keepAlive reindex的scroll有效期ms
+     * @param dropOld 切换alias后是否删除旧版本index
+     */
+    public void configureReindex(int batchSize, long keepAlive, boolean dropOld) {
+        this.reindexBatchSize = batchSize;
+        this.reindexKeepAlive = keepAlive;
+        this.dropOldVersion = dropOld;
+    }
+
+    /**
+     * 开启索引写缓冲,批次文档数由AdaptiveBulk决定
+     * 
+     * @param bulkSizeMb 每个bulk最大字节数(MB)
+     * @param flushInterval 定时提交间隔ms
+     * @param concurrentRequests 已提交未返回的bulk数上限
+     */
+    public synchronized BulkIndexer startBulkIndexer(int bulkSizeMb, long flushInterval, int concurrentRequests) {
+        if (bulkIndexer == null) {
+            bulkIndexer = new BulkIndexer(adaptiveBulk, bulkSizeMb, flushInterval, concurrentRequests) {
+
+                @Override
+                protected void onBulk(Set<String> indices) {
+                    for (String indexName : indices)
+                        searchCache.invalidate(indexName);
+                }
+            };
+        }
+        return bulkIndexer;
+    }
+
+    /**
+     * 开启写前日志:indexAsync和spool先追加到本地日志再返回,由JournalReplayer写入ES
+     * 
+     * @param dir 日志目录
+     * @param segmentMb 每段MB
+     * @param batchActions 回放时每个bulk最多记录数
+     * @param batchMb 回放时每个bulk最多MB
+     * @param idleWait 没有新记录时的等待ms
+     * @param healthInterval 集群不可用时检查间隔ms
+     * @param fsyncInterval 日志刷盘间隔ms
+     * @throws IOException
+     */
+    public synchronized void startJournal(File dir, int segmentMb, int batchActions, int batchMb, long idleWait,
+                                          long healthInterval, long fsyncInterval) throws IOException {
+        if (journal != null) return;
+        journal = new IndexJournal(dir, segmentMb * 1024 * 1024);
+        journalReplayer = new JournalReplayer(journal, getClient(Bulkhead.INGEST), adaptiveBulk, batchActions,
+                                              batchMb * 1024L * 1024L, idleWait, healthInterval, fsyncInterval) {
+
+            @Override
+            protected BulkRequest prepare(BulkRequest bulk) {
+                return mirror(bulk);
+            }
+
+            @Override
+            protected void onBulk(Set<String> indices) {
+                for (String indexName : indices)
+                    searchCache.invalidate(indexName);
+            }
+        };
+        journalReplayer.start();
+    }
+
+    public synchronized void stopJournal() {
+        if (journalReplayer != null) journalReplayer.stop();
+    }
+
+    /**
+     * @return 没有开启写前日志时为null
+     */
+    public JournalReplayer getJournalReplayer() {
+        return journalReplayer;
+    }
+
+    public synchronized BulkIndexer getBulkIndexer() {
+        if (bulkIndexer == null) return startBulkIndexer(5, 1000, 8);
+        return bulkIndexer;
+    }
+
     /**
      * 创建elasticsearch客户端
      * 
@@ -121,9 +411,23 @@ public class ElasticsearchHelper {
      * @return
      */
     protected static Client makeClient(String clusterName, List<Map<String, Object>> nodes) {
-        Builder builder = ImmutableSettings.settingsBuilder();
-        if (StringUtils.isNotBlank(clusterName)) builder.put("cluster.name", clusterName);
-        Settings settings = builder.build();
+        return makeClient(clusterName, nodes, null);
+    }
+
+    /**
+     * 创建elasticsearch客户端
+     * 
+     * @param clusterName
+     * @param nodes
+     * @param selection 不为null时按节点选择的ping超时创建settings
+     * @return
+     */
+    protected static Client makeClient(String clusterName, List<Map<String, Object>> nodes,
+                                       LatencyAwareClient.Config selection) {
+        return makeClient(makeSettings(clusterName, selection), nodes);
+    }
+
+    protected static TransportClient makeClient(Settings settings, List<Map<String, Object>> nodes) {
         TransportClient client = new TransportClient(settings);
         for (Map<String, Object> addr : nodes) {
             client.addTransportAddress(new InetSocketTransportAddress((String) addr.get("host"),
@@ -132,6 +436,55 @@ public class ElasticsearchHelper {
         return client;
     }
 
+    protected static Settings makeSettings(String clusterName, LatencyAwareClient.Config selection) {
+        Builder builder = ImmutableSettings.settingsBuilder();
+        if (StringUtils.isNotBlank(clusterName)) builder.put("cluster.name", clusterName);
+        if (selection != null) {
+            builder.put("client.transport.ping_timeout", selection.getPingTimeout());
+            builder.put("client.transport.nodes_sampler_interval", selection.getPingTimeout());
+        }
+        return builder.build();
+    }
+
+    /**
+     * 启动client节点加入集群
+     * 
+     * @param clusterName
+     * @param nodes 集群节点的transport地址host:port,作为unicast hosts
+     * @return
+     */
+    public static Node makeClientNode(String clusterName, String[] nodes) {
+        Builder builder = ImmutableSettings.settingsBuilder()//
+        .put("http.enabled", false)//
+        .put("node.name", "easySearch-client")//
+        .put("discovery.zen.ping.multicast.enabled", false)//
+        .putArray("discovery.zen.ping.unicast.hosts", nodes);
+        Node node = NodeBuilder.nodeBuilder().clusterName(clusterName).client(true).settings(builder).node();
+        _.info("client node started, cluster=" + clusterName + ", unicast hosts=" + Arrays.toString(nodes));
+        return node;
+    }
+
+    /**
+     * 启动JVM内的本地数据节点(单分片无副本),等待状态为yellow
+     * 
+     * @param clusterName
+     * @param dataPath 数据目录
+     * @return
+     */
+    public static Node makeLocalNode(String clusterName, String dataPath) {
+        Builder builder = ImmutableSettings.settingsBuilder()//
+        .put("http.enabled", false)//
+        .put("node.name", "easySearch-local")//
+        .put("path.data", dataPath)//
+        .put("index.number_of_shards", 1)//
+        .put("index.number_of_replicas", 0);
+        Node node = NodeBuilder.nodeBuilder().clusterName(clusterName).local(true).data(true).settings(builder).node();
+        node.client().admin().cluster().prepareHealth().setWaitForYellowStatus().execute()//
+        .actionGet(Timeouts.maintenance());
+        _.info("local node started, cluster=" + clusterName + ", data=" + dataPath);
+        return node;
+    }
+
     /**
      * 全文检索,关键词查询
      * 
@@ -144,72 +497,113 @@ public class ElasticsearchHelper {
      * @param matchField
      * @return
      */
-    @SuppressWarnings("unchecked")
     public Map<String, Object> query(String indexName, String indexType, int pageno, int pagesize, String q,
                                      Map<String, Object[]> filters, Set<String> matchField,
                                      Table<String, String, Object> ranges) {
         _.info("search query start");
-        if (StringUtils.isEmpty(q)) q = "*";
-        Set<String> fields = matchField;
-        Set<String> allFields = Sets.newHashSet();
-        GetMappingsResponse mappingsRes = getMapping(indexName, indexType);
+        SearchRequestBuilder search = prepareQuery(indexName, indexType, pageno, pagesize, q, filters, matchField,
+                                                   ranges);
+        Map<String, Object> result = queryResult(search.execute().actionGet(Timeouts.search()), pageno, pagesize);
+        result.put("searchType", searchType(search));
+        return result;
+    }
+
+    /**
+     * 全文检索,命中文档的_source原始字节直接写到out,不解析成Map
+     * 
+     * @param out 输出格式同ok(result)
+     * @throws IOException
+     */
+    public void queryRaw(String indexName, String indexType, int pageno, int pagesize, String q,
+                         Map<String, Object[]> filters, Set<String> matchField, Table<String, String, Object> ranges,
+                         OutputStream out) throws IOException {
+        _.info("search query raw start");
+        SearchRequestBuilder search = prepareQuery(indexName, indexType, pageno, pagesize, q, filters, matchField,
+                                                   ranges);
+        SearchResponse response = search.execute().actionGet(Timeouts.search());
+        Map<String, Object> meta = Maps.newLinkedHashMap();
+        meta.put("total", response.getHits().getTotalHits());
+        meta.put("pageno", pageno);
+        meta.put("pagesize", pagesize);
+        meta.put("searchType", searchType(search));
+        SourceWriter.write(response, meta, out);
+    }
+
+    /**
+     * 异步全文检索,结果通过listener回调,不阻塞调用线程
+     * 
+     * @param listener
+     */
+    public void queryAsync(String indexName, String indexType, final int pageno, final int pagesize, String q,
+                           Map<String, Object[]> filters, Set<String> matchField,
+                           Table<String, String, Object> ranges, ActionListener<Map<String, Object>> listener) {
+        _.info("search query async start");
+        SearchRequestBuilder search = null;
         try {
-            Map<String, Object> sourceMap = mappingsRes.mappings().get(indexName).get(indexType).getSourceAsMap();
-            Map<String, Object> _sourceMap = (Map<String, Object>) sourceMap.get("properties");
-            allFields.addAll(_sourceMap.keySet());
+            search = prepareQuery(indexName, indexType, pageno, pagesize, q, filters, matchField, ranges);
         } catch (Exception e) {
-            _.error("queryString error!", e);
+            listener.onFailure(e);
+            return;
         }
+        final String searchType = searchType(search);
+        search.execute(new ResultListener(listener) {
 
-        // 分词查询
-        QueryStringQueryBuilder queryStringBuilder = new QueryStringQueryBuilder(q);
-        queryStringBuilder.useDisMax(true);
-        for (String field : fields)
-            queryStringBuilder.field(field);
-        // 过滤条件
-        BoolFilterBuilder boolFilter = null;
-        if (filters != null && filters.size() != 0) {
-            boolFilter = FilterBuilders.boolFilter();
-            for (Entry<String, Object[]> entry : filters.entrySet()) {
-                if (allFields.contains(entry.getKey())) {
-                    boolFilter.must(FilterBuilders.inFilter(entry.getKey(), entry.getValue()));
-                }
-            }
-        }
-        // 区间查询
-        List<RangeFilterBuilder> rangeList = Lists.newArrayList();
-        for (Entry<String, Map<String, Object>> range : ranges.rowMap().entrySet()) {
-            RangeFilterBuilder rangeFilter = new RangeFilterBuilder(range.getKey());
-            for (Entry<String, Object> row : range.getValue().entrySet()) {
-                if (StringUtils.equals(row.getKey(), "gt")) rangeFilter.gt(row.getValue());
-                if (StringUtils.equals(row.getKey(), "lt")) rangeFilter.lt(row.getValue());
-                if (StringUtils.equals(row.getKey(), "gte")) rangeFilter.gte(row.getValue());
-                if (StringUtils.equals(row.getKey(), "lte")) rangeFilter.lte(row.getValue());
+            @Override
+            protected Map<String, Object> convert(SearchResponse response) {
+                Map<String, Object> result = queryResult(response, pageno, pagesize);
+                result.put("searchType", searchType);
+                return result;
             }
-            rangeList.add(rangeFilter);
-        }
-        if (rangeList.size() > 0) {
-            if (boolFilter == null) boolFilter = FilterBuilders.boolFilter();
-            boolFilter.should(rangeList.toArray(new RangeFilterBuilder[] {}));
-        }
-        FilteredQueryBuilder query = QueryBuilders.filteredQuery(queryStringBuilder, boolFilter);
-
-        SearchRequestBuilder search = makeSearchRequestBuilder(indexName, indexType).setQuery(query)//
-        .setFrom((pageno - 1) * pagesize)//
-        .setSize(pagesize)//
-        .setSearchType(SearchType.DFS_QUERY_THEN_FETCH);
+        });
+    }
 
-        SearchResponse response = search.execute().actionGet();
-        long total = response.getHits().getTotalHits();
-        List<Map<String, Object>> list = result(response);
-        Map<String, Object> result = Maps.newHashMap();
-        result.put("list", (list != null && list.size() > 0) ? list : Lists.newArrayList());
-        result.put("pageno", pageno);
-        result.put("pagesize", pagesize);
-        result.put("total", total);
+    /**
+     * 游标分页:开启scroll上下文返回第一页,之后用返回的cursor调用{@link #scroll}翻页
+     * 
+     * <pre>
+     * from/size分页每个分片都要排序并返回from+size条,页数越深越慢;
+     * scroll保留了上下文,每页的开销固定,与翻到第几页无关
+     * </pre>
+     * 
+     * @param keepAlive 游标有效期ms,每次翻页都会续期
+     * @return list/total/pagesize/cursor,没有更多数据时不返回cursor
+     */
+    public Map<String, Object> queryScroll(String indexName, String indexType, int pagesize, String q,
+                                           Map<String, Object[]> filters, Set<String> matchField,
+                                           Table<String, String, Object> ranges, long keepAlive) {
+        _.info("search query scroll start");
+        SearchRequestBuilder search = prepareQuery(indexName, indexType, 1, pagesize, q, filters, matchField, ranges)//
+        .setScroll(TimeValue.timeValueMillis(keepAlive));
+        Map<String, Object> result = scrollResult(search.execute().actionGet(Timeouts.search()), pagesize);
+        result.put("searchType", searchType(search));
         return result;
     }
 
+    /**
+     * 按cursor取下一页
+     * 
+     * @param cursor 上一页返回的cursor
+     * @param pagesize 开启游标时的每页数量
+     * @param keepAlive 游标有效期ms
+     * @return
+     */
+    public Map<String, Object> scroll(String cursor, int pagesize, long keepAlive) {
+        SearchResponse response = getClient(Bulkhead.SEARCH).prepareSearchScroll(cursor)//
+        .setScroll(TimeValue.timeValueMillis(keepAlive))//
+        .execute().actionGet(Timeouts.search());
+        return scrollResult(response, pagesize);
+    }
+
+    /**
+     * 释放游标
+     * 
+     * @param cursor
+     */
+    public void clearScroll(String cursor) {
+        if (StringUtils.isBlank(cursor)) return;
+        getClient(Bulkhead.SEARCH).prepareClearScroll().addScrollId(cursor).execute();
+    }
+
     /**
      * 聚合查询
      * 
@@ -232,95 +626,358 @@ public class ElasticsearchHelper {
      * @param aggregation
      * @return
      */
-    @SuppressWarnings({ "unchecked" })
     public Map<String, Object> aggr(String indexName, String indexType, String q, Map<String, Object[]> filters,
                                     Set<String> matchField, Set<String> aggregation,
                                     Table<String, String, Object> ranges, boolean topOnly) {
         _.info("search aggregation start");
-        if (StringUtils.isEmpty(q)) q = "*";
-        Set<String> fields = matchField;
-        Set<String> allFields = Sets.newHashSet();
-        GetMappingsResponse mappingsRes = getMapping(indexName, indexType);
+        List<String> aggList = aggrFields(indexName, indexType, aggregation);
+        SearchRequestBuilder search = prepareAggr(indexName, indexType, q, filters, matchField, aggList, ranges,
+                                                  topOnly);
+        Map<String, Object> result = aggrResult(search.execute().actionGet(Timeouts.search()),
+                                                StringUtils.join(aggList, "-"), topOnly);
+        result.put("searchType", searchType(search));
+        return result;
+    }
+
+    /**
+     * 异步聚合查询,结果通过listener回调,不阻塞调用线程
+     * 
+     * @param listener
+     */
+    public void aggrAsync(String indexName, String indexType, String q, Map<String, Object[]> filters,
+                          Set<String> matchField, Set<String> aggregation, Table<String, String, Object> ranges,
+                          final boolean topOnly, ActionListener<Map<String, Object>> listener) {
+        _.info("search aggregation async start");
+        SearchRequestBuilder search = null;
+        String key = null;
         try {
-            Map<String, Object> sourceMap = mappingsRes.mappings().get(indexName).get(indexType).getSourceAsMap();
-            Map<String, Object> _sourceMap = (Map<String, Object>) sourceMap.get("properties");
-            allFields.addAll(_sourceMap.keySet());
+            List<String> aggList = aggrFields(indexName, indexType, aggregation);
+            key = StringUtils.join(aggList, "-");
+            search = prepareAggr(indexName, indexType, q, filters, matchField, aggList, ranges, topOnly);
         } catch (Exception e) {
-            _.error("queryString error!", e);
+            listener.onFailure(e);
+            return;
         }
+        final String _key = key;
+        final String searchType = searchType(search);
+        search.execute(new ResultListener(listener) {
 
-        // 分词查询
-        QueryStringQueryBuilder queryStringBuilder = new QueryStringQueryBuilder(q);
-        queryStringBuilder.useDisMax(true);
-        for (String field : fields)
-            queryStringBuilder.field(field);
-        // 过滤条件
-        BoolFilterBuilder boolFilter = null;
-        if (filters != null && filters.size() != 0) {
-            boolFilter = FilterBuilders.boolFilter();
-            for (Entry<String, Object[]> entry : filters.entrySet()) {
-                if (allFields.contains(entry.getKey())) {
-                    boolFilter.must(FilterBuilders.inFilter(entry.getKey(), entry.getValue()));
-                }
-            }
-        }
-        // 区间查询
-        List<RangeFilterBuilder> rangeList = Lists.newArrayList();
-        for (Entry<String, Map<String, Object>> range : ranges.rowMap().entrySet()) {
-            RangeFilterBuilder rangeFilter = new RangeFilterBuilder(range.getKey());
-            for (Entry<String, Object> row : range.getValue().entrySet()) {
-                if (StringUtils.equals(row.getKey(), "gt")) rangeFilter.gt(row.getValue());
-                if (StringUtils.equals(row.getKey(), "lt")) rangeFilter.lt(row.getValue());
-                if (StringUtils.equals(row.getKey(), "gte")) rangeFilter.gte(row.getValue());
-                if (StringUtils.equals(row.getKey(), "lte")) rangeFilter.lte(row.getValue());
+            @Override
+            protected Map<String, Object> convert(SearchResponse response) {
+                Map<String, Object> result = aggrResult(response, _key, topOnly);
+                result.put("searchType", searchType);
+                return result;
             }
-            rangeList.add(rangeFilter);
+        });
+    }
+
+    /**
+     * 分页聚合查询,只取当前页的bucket和文档,内存占用与字段基数无关
+     * 
+     * <pre>
+     * 1 只请求到当前页为止的bucket key(不带文档),同时用cardinality统计去重总数
+     * 2 只对当前页的bucket key取top hits
+     * 返回的total为近似值
+     * </pre>
+     * 
+     * @param topOnly(true=仅显示一个,false=显示多个)
+     * @param pageno
+     * @param pagesize
+     * @return
+     */
+    public Map<String, Object> aggrPage(String indexName, String indexType, String q, Map<String, Object[]> filters,
+                                        Set<String> matchField, Set<String> aggregation,
+                                        Table<String, String, Object> ranges, boolean topOnly, int pageno,
+                                        int pagesize) {
+        _.info("search aggregation page start");
+        AggrPage page = new AggrPage(indexName, indexType, q, filters, matchField, aggregation, ranges, topOnly,
+                                     pageno, pagesize);
+        if (page.keysRequest == null) return page.result;
+        SearchRequestBuilder pageRequest = page.onKeys(page.keysRequest.execute().actionGet(Timeouts.search()));
+        if (pageRequest == null) return page.result;
+        return page.onPage(pageRequest.execute().actionGet(Timeouts.search()));
+    }
+
+    /**
+     * 异步分页聚合查询,两步请求都不阻塞调用线程
+     * 
+     * @param listener
+     */
+    public void aggrPageAsync(String indexName, String indexType, String q, Map<String, Object[]> filters,
+                              Set<String> matchField, Set<String> aggregation, Table<String, String, Object> ranges,
+                              boolean topOnly, int pageno, int pagesize,
+                              final ActionListener<Map<String, Object>> listener) {
+        _.info("search aggregation page async start");
+        final AggrPage page;
+        try {
+            page = new AggrPage(indexName, indexType, q, filters, matchField, aggregation, ranges, topOnly, pageno,
+                                pagesize);
+        } catch (Exception e) {
+            listener.onFailure(e);
+            return;
         }
-        if (rangeList.size() > 0) {
-            if (boolFilter == null) boolFilter = FilterBuilders.boolFilter();
-            boolFilter.should(rangeList.toArray(new RangeFilterBuilder[] {}));
+        if (page.keysRequest == null) {
+            listener.onResponse(page.result);
+            return;
         }
-        FilteredQueryBuilder query = QueryBuilders.filteredQuery(queryStringBuilder, boolFilter);
+        page.keysRequest.execute(new ActionListener<SearchResponse>() {
 
-        SearchRequestBuilder search = makeSearchRequestBuilder(indexName, indexType).setQuery(query)//
-        .setSize(0)// size为0,结果返回全部聚合查询数据,也就是Global
-        .setSearchType(SearchType.DFS_QUERY_THEN_FETCH);
+            @Override
+            public void onResponse(SearchResponse response) {
+                SearchRequestBuilder pageRequest;
+                try {
+                    pageRequest = page.onKeys(response);
+                } catch (Exception e) {
+                    listener.onFailure(e);
+                    return;
+                }
+                if (pageRequest == null) {
+                    listener.onResponse(page.result);
+                    return;
+                }
+                pageRequest.execute(new ResultListener(listener) {
 
-        // 聚合的key
-        String key = "";
-        // 按字段去重
-        List<String> aggList = Lists.newArrayList();
-        for (String agg : aggregation) {
-            if (allFields.contains(agg)) aggList.add(agg);
+                    @Override
+                    protected Map<String, Object> convert(SearchResponse response) {
+                        return page.onPage(response);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    /**
+     * 按查询条件导出,每个分片并行scan,以NDJSON(每行一个_source)写到out
+     * 
+     * @param batchSize 每个分片每页的文档数
+     * @param keepAlive scroll有效期ms
+     * @param queueSize 等待写出的页数上限,决定内存占用
+     * @param out
+     * @return 导出文档数/字节数/耗时
+     * @throws IOException
+     */
+    public Map<String, Object> export(String indexName, String indexType, String q, Map<String, Object[]> filters,
+                                      Set<String> matchField, Table<String, String, Object> ranges, int batchSize,
+                                      long keepAlive, int queueSize, OutputStream out) throws IOException {
+        _.info("export '" + indexName + "/" + indexType + "' start");
+        Set<String> allFields = mappingRegistry.fields(indexName, indexType);
+        FilteredQueryBuilder query = buildQuery(q, matchField, allFields, filters, ranges);
+        return new ScrollExporter(getClient(Bulkhead.EXPORT), indexName, indexType, query, batchSize, keepAlive)//
+        .export(shardIds(indexName), queueSize, out);
+    }
+
+    /**
+     * index的全部分片号
+     * 
+     * @param indexName
+     * @return
+     */
+    public List<Integer> shardIds(String indexName) {
+        Set<Integer> shardIds = Sets.newTreeSet();
+        ClusterSearchShardsResponse response = getClient().admin().cluster().prepareSearchShards(indexName)//
+        .execute().actionGet(Timeouts.admin());
+        for (ClusterSearchShardsGroup group : response.getGroups())
+            shardIds.add(group.getShardId());
+        return Lists.newArrayList(shardIds);
+    }
+
+    /**
+     * 批量搜索,多个查询合并为一次MultiSearchRequest
+     * 
+     * <pre>
+     * 每个查询按/search的规则构建,结果按请求顺序返回;游标分页(cursor/scroll)的查询返回错误;
+     * 单个查询构建或执行失败时,对应位置返回 {"error": 错误信息},不影响其它查询;
+     * 分页聚合和{@link #aggrPage}一样分两步,两步分别合并为一次MultiSearchRequest,返回当前页;
+     * 其它聚合查询返回全部bucket,由调用方分页
+     * </pre>
+     * 
+     * @param queries
+     * @param pagedDistinct 查询未指定时是否分页聚合
+     * @return
+     */
+    public List<Map<String, Object>> multiSearch(List<SearchQuery> queries, boolean pagedDistinct) {
+        _.info("search multi start, queries=" + queries.size());
+        List<Map<String, Object>> results = Lists.newArrayList();
+        List<String> keys = Lists.newArrayList();
+        List<String> searchTypes = Lists.newArrayList();
+        List<Integer> slots = Lists.newArrayList();
+        Map<Integer, AggrPage> pages = Maps.newHashMap();
+        MultiSearchRequestBuilder multi = getClient(Bulkhead.SEARCH).prepareMultiSearch();
+        for (SearchQuery query : queries) {
+            results.add(null);
+            int slot = results.size() - 1;
+            if (query.isScroll() || StringUtils.isNotEmpty(query.getCursor())) {
+                results.set(slot, error("msearch不支持游标分页"));
+                continue;
+            }
+            try {
+                SearchRequestBuilder search;
+                String key = null;
+                if (query.isAggregation() && query.isPagedDistinct(pagedDistinct)) {
+                    AggrPage page = new AggrPage(query.getIndexName(), query.getIndexType(), query.getKeywords(),
+                                                 query.getFilter(), query.getField(), query.getAggregation(),
+                                                 query.getRanges(), query.isTopOnly(), query.getPageno(),
+                                                 query.getPagesize());
+                    if (page.keysRequest == null) {
+                        results.set(slot, page.result);
+                        continue;
+                    }
+                    pages.put(slot, page);
+                    search = page.keysRequest;
+                } else if (query.isAggregation()) {
+                    List<String> aggList = aggrFields(query.getIndexName(), query.getIndexType(), query.getAggregation());
+                    key = StringUtils.join(aggList, "-");
+                    search = prepareAggr(query.getIndexName(), query.getIndexType(), query.getKeywords(),
+                                         query.getFilter(), query.getField(), aggList, query.getRanges(),
+                                         query.isTopOnly());
+                } else {
+                    search = prepareQuery(query.getIndexName(), query.getIndexType(), query.getPageno(),
+                                          query.getPagesize(), query.getKeywords(), query.getFilter(),
+                                          query.getField(), query.getRanges());
+                }
+                multi.add(search);
+                keys.add(key);
+                searchTypes.add(searchType(search));
+                slots.add(slot);
+            } catch (Exception e) {
+                _.error("search multi prepare error!", e);
+                results.set(slot, error(e.getMessage()));
+            }
         }
-        TermsBuilder termsBuilder = AggregationBuilders.terms("top-tags").size(0);
-        // 使用term field聚合
-        if (aggList.size() == 1) {
-            key = aggList.get(0);
-            termsBuilder.field(key);
+        if (slots.isEmpty()) return results;
+
+        // 分页聚合的第二步
+        List<Integer> pageSlots = Lists.newArrayList();
+        MultiSearchRequestBuilder pageMulti = getClient(Bulkhead.SEARCH).prepareMultiSearch();
+        MultiSearchResponse.Item[] items = multi.execute().actionGet(Timeouts.search()).getResponses();
+        for (int i = 0; i < items.length; i++) {
+            int slot = slots.get(i);
+            SearchQuery query = queries.get(slot);
+            if (items[i].isFailure()) {
+                results.set(slot, error(items[i].getFailureMessage()));
+                continue;
+            }
+            try {
+                AggrPage page = pages.get(slot);
+                if (page != null) {
+                    SearchRequestBuilder pageRequest = page.onKeys(items[i].getResponse());
+                    if (pageRequest == null) {
+                        results.set(slot, page.result);
+                    } else {
+                        pageMulti.add(pageRequest);
+                        pageSlots.add(slot);
+                    }
+                    continue;
+                }
+                Map<String, Object> result;
+                if (query.isAggregation()) {
+                    result = aggrResult(items[i].getResponse(), keys.get(i), query.isTopOnly());
+                } else {
+                    result = queryResult(items[i].getResponse(), query.getPageno(), query.getPagesize());
+                }
+                result.put("searchType", searchTypes.get(i));
+                results.set(slot, result);
+            } catch (Exception e) {
+                _.error("search multi result error!", e);
+                results.set(slot, error(e.getMessage()));
+            }
         }
-        // 使用term script聚合
-        if (aggList.size() > 1) {
-            List<String> _aggList = Lists.newArrayList();
-            for (String aggStr : aggList) {
-                _aggList.add("doc." + aggStr + ".value");
+        if (pageSlots.isEmpty()) return results;
+
+        items = pageMulti.execute().actionGet(Timeouts.search()).getResponses();
+        for (int i = 0; i < items.length; i++) {
+            int slot = pageSlots.get(i);
+            if (items[i].isFailure()) {
+                results.set(slot, error(items[i].getFailureMessage()));
+                continue;
+            }
+            try {
+                results.set(slot, pages.get(slot).onPage(items[i].getResponse()));
+            } catch (Exception e) {
+                _.error("search multi page error!", e);
+                results.set(slot, error(e.getMessage()));
             }
-            key = StringUtils.join(aggList, "-");
-            termsBuilder.script("[" + StringUtils.join(_aggList, ",") + "].join(\"-\")");
         }
-        // terms sort by max_score
-        termsBuilder.order(Terms.Order.aggregation("max_score", false));
+        return results;
+    }
 
-        TopHitsBuilder topHitsBuilder = AggregationBuilders.topHits("top-tags-record")//
-        .setFetchSource(allFields.toArray(new String[] {}), null);
-        if (topOnly) topHitsBuilder.setSize(1);
-        if (!topOnly) topHitsBuilder.setSize(320);
-        MaxBuilder maxBuilder = AggregationBuilders.max("max_score").script("_score");
-        termsBuilder.subAggregation(topHitsBuilder);
-        termsBuilder.subAggregation(maxBuilder);
+    /**
+     * 构建全文检索请求
+     */
+    protected SearchRequestBuilder prepareQuery(String indexName, String indexType, int pageno, int pagesize,
+                                                String q, Map<String, Object[]> filters, Set<String> matchField,
+                                                Table<String, String, Object> ranges) {
+        Set<String> allFields = mappingRegistry.fields(indexName, indexType);
+        FilteredQueryBuilder query = buildQuery(q, matchField, allFields, filters, ranges);
+
+        return makeSearchRequestBuilder(indexName, indexType).setQuery(query)//
+        .setFrom((pageno - 1) * pagesize)//
+        .setSize(pagesize)//
+        .setSearchType(searchTypePolicy.choose(indexName, false));
+    }
+
+    /**
+     * 全文检索结果转换
+     */
+    protected Map<String, Object> queryResult(SearchResponse response, int pageno, int pagesize) {
+        long total = response.getHits().getTotalHits();
+        List<Map<String, Object>> list = result(response);
+        Map<String, Object> result = Maps.newHashMap();
+        result.put("list", (list != null && list.size() > 0) ? list : Lists.newArrayList());
+        result.put("pageno", pageno);
+        result.put("pagesize", pagesize);
+        result.put("total", total);
+        return result;
+    }
+
+    /**
+     * 游标分页结果转换,最后一页时释放游标
+     */
+    protected Map<String, Object> scrollResult(SearchResponse response, int pagesize) {
+        List<Map<String, Object>> list = result(response);
+        Map<String, Object> result = Maps.newHashMap();
+        result.put("list", list);
+        result.put("pagesize", pagesize);
+        result.put("total", response.getHits().getTotalHits());
+        if (list.size() > 0 && list.size() >= pagesize) {
+            result.put("cursor", response.getScrollId());
+        } else {
+            clearScroll(response.getScrollId());
+        }
+        return result;
+    }
+
+    /**
+     * 构建聚合请求
+     */
+    protected SearchRequestBuilder prepareAggr(String indexName, String indexType, String q,
+                                               Map<String, Object[]> filters, Set<String> matchField,
+                                               List<String> aggList, Table<String, String, Object> ranges,
+                                               boolean topOnly) {
+        Set<String> allFields = mappingRegistry.fields(indexName, indexType);
+        FilteredQueryBuilder query = buildQuery(q, matchField, allFields, filters, ranges);
+
+        SearchRequestBuilder search = makeSearchRequestBuilder(indexName, indexType).setQuery(query)//
+        .setSize(0)// size为0,结果返回全部聚合查询数据,也就是Global
+        .setSearchType(searchTypePolicy.choose(indexName, true));
+
+        TermsBuilder termsBuilder = makeTerms(aggList).size(0);
+        termsBuilder.subAggregation(makeTopHits(allFields, topOnly));
         search.addAggregation(termsBuilder);
+        return search;
+    }
 
-        SearchResponse response = search.execute().actionGet();
+    /**
+     * 聚合结果转换
+     * 
+     * @param key 聚合的key
+     */
+    protected Map<String, Object> aggrResult(SearchResponse response, String key, boolean topOnly) {
         long total = 0l;
 
         Aggregations agg = response.getAggregations();
@@ -335,29 +992,32 @@ public class ElasticsearchHelper {
             if (topOnly) {
                 list.addAll(result(topHits));
             } else {
-                Map<String, Object> _data = Maps.newHashMap();
-                _data.put(key, bucket.getKey());
-                _data.put("hits", result(topHits));
-                list.add(_data);
-            }
-        }
-
-        // 集合去重
-        Set<String> hashcode = Sets.newHashSet();
-        Set<Map<String, Object>> sets = Sets.newLinkedHashSet();
-        for (Map<String, Object> _ : list) {
-            boolean contains = _ != null && hashcode.contains(_.toString());
-            if (_ != null && !contains) {
-                hashcode.add(_.toString());
-                sets.add(_);
+                Map<String, Object> _data = Maps.newHashMap();
+                _data.put(key, bucket.getKey());
+                _data.put("hits", result(topHits));
+                list.add(_data);
             }
         }
+
+        Set<Map<String, Object>> sets = distinct(list);
         Map<String, Object> result = Maps.newHashMap();
         result.put("total", (sets != null && sets.size() > 0) ? sets.size() : 0);
         result.put("list", (sets != null && sets.size() > 0) ? sets : Sets.newHashSet());
         return result;
     }
 
+    /**
+     * 按字段去重,过滤掉mapping中不存在的字段
+     */
+    protected List<String> aggrFields(String indexName, String indexType, Set<String> aggregation) {
+        Set<String> allFields = mappingRegistry.fields(indexName, indexType);
+        List<String> aggList = Lists.newArrayList();
+        for (String agg : aggregation) {
+            if (allFields.contains(agg)) aggList.add(agg);
+        }
+        return aggList;
+    }
+
     /**
      * match查询
      * 
@@ -381,7 +1041,7 @@ public class ElasticsearchHelper {
         .setFrom((pageno - 1) * pagesize)//
         .setSize(pagesize)//
         .addSort("createat", SortOrder.DESC)//
-        .execute().actionGet();
+        .execute().actionGet(Timeouts.search());
 
         long total = response.getHits().getTotalHits();
         List<Map<String, Object>> list = result(response);
@@ -408,29 +1068,30 @@ public class ElasticsearchHelper {
      */
     public GetMappingsResponse getMapping(String indexName, String indexType) {
         GetMappingsRequest mappingsRequest = new GetMappingsRequest().indices(indexName).types(indexType);
-        return getClient().admin().indices().getMappings(mappingsRequest).actionGet();
+        return getClient().admin().indices().getMappings(mappingsRequest).actionGet(Timeouts.admin());
     }
 
     public GetMappingsResponse getMapping() {
         GetMappingsRequest mappingsRequest = new GetMappingsRequest();
-        return getClient().admin().indices().getMappings(mappingsRequest).actionGet();
+        return getClient().admin().indices().getMappings(mappingsRequest).actionGet(Timeouts.admin());
+    }
+
+    public GetMappingsResponse getMapping(String indexName) {
+        GetMappingsRequest mappingsRequest = new GetMappingsRequest().indices(indexName);
+        return getClient().admin().indices().getMappings(mappingsRequest).actionGet(Timeouts.admin());
     }
 
-    @SuppressWarnings("unchecked")
     public Map<String, Object> allMapping() {
         Map<String, Object> map = Maps.newLinkedHashMap();
         try {
-            GetMappingsResponse mappingsRes = getMapping();
-            ObjectLookupContainer<String> indexNames = mappingsRes.mappings().keys();
-            for (ObjectCursor<String> indexName : indexNames) {
-                if (com.lamfire.utils.StringUtils.contains(indexName.value, "marvel")) continue;
-                map.put(indexName.value, Maps.newLinkedHashMap());
-                ObjectLookupContainer<String> indexTypes = mappingsRes.mappings().get(indexName.value).keys();
-                for (ObjectCursor<String> indexType : indexTypes) {
-                    if (com.lamfire.utils.StringUtils.contains(indexType.value, "marvel")) continue;
-                    Map<String, Object> sourceMap = mappingsRes.mappings().get(indexName.value).get(indexType.value).getSourceAsMap();
-                    ((Map<String, Object>) map.get(indexName.value)).put(indexType.value, sourceMap.get("properties"));
+            for (Entry<String, Map<String, Map<String, Object>>> index : mappingRegistry.all().entrySet()) {
+                if (com.lamfire.utils.StringUtils.contains(index.getKey(), "marvel")) continue;
+                Map<String, Object> types = Maps.newLinkedHashMap();
+                for (Entry<String, Map<String, Object>> indexType : index.getValue().entrySet()) {
+                    if (com.lamfire.utils.StringUtils.contains(indexType.getKey(), "marvel")) continue;
+                    types.put(indexType.getKey(), indexType.getValue());
                 }
+                map.put(index.getKey(), types);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -446,7 +1107,238 @@ public class ElasticsearchHelper {
      */
     public void deleteMapping(String indexName, String indexType) {
         DeleteMappingRequest mappingRequest = Requests.deleteMappingRequest(indexName).types(indexType);
-        getClient().admin().indices().deleteMapping(mappingRequest);
+        getClient().admin().indices().deleteMapping(mappingRequest).actionGet(Timeouts.admin());
+        mappingRegistry.refresh(indexName);
+        searchCache.invalidate(indexName);
+    }
+
+    /**
+     * 修改schema,不停服务
+     * 
+     * <pre>
+     * 实际的index为indexName_vN,indexName是指向当前版本的alias,/search和/index都通过alias访问
+     * 1 创建indexName_v(N+1)并写入新的mapping(同index下其它type的mapping一并复制)
+     * 2 后台按分片并行把当前版本的数据复制到新版本,期间对indexName的写入同时写到新版本
+     * 3 复制完成后在一个请求中把alias从旧版本切换到新版本(原子操作)
+     * indexName还没有alias时直接创建_v1并建立alias;
+     * indexName是旧的实体index时,复制完成后删除旧index再建alias,两步之间有短暂不可用;
+     * 期间暂停对indexName的写入(等待已发出的写入返回,新的写入在发出前等待),否则写入会自动创建同名index
+     * 复制失败时alias保持不变,新版本index保留以便排查
+     * </pre>
+     * 
+     * @param indexName 对外的index名称(alias)
+     * @param indexType
+     * @param fields
+     * @return alias/新版本index/是否在后台reindex
+     */
+    public synchronized Map<String, Object> changeSchema(final String indexName, String indexType,
+                                                         Map<String, Map<String, Object>> fields) {
+        Reindexer running = reindexers.get(indexName);
+        if (running != null && (running.getState() == Reindexer.State.RUNNING
+                                || running.getState() == Reindexer.State.SWAPPING)) {
+            throw new IllegalStateException("reindex '" + indexName + "' is running: " + running.getTarget());
+        }
+        final String current = aliasTarget(indexName);
+        final boolean legacy = current == null && existsIndex(indexName);
+        final String target = indexName + "_v" + (maxVersion(indexName) + 1);
+        createIndex(target);
+        createMapping(target, indexType, fields);
+
+        Map<String, Object> result = Maps.newLinkedHashMap();
+        result.put("alias", indexName);
+        result.put("index", target);
+        if (current == null && !legacy) {
+            swapAlias(indexName, null, target);
+            result.put("reindex", false);
+            return result;
+        }
+
+        final String source = legacy ? indexName : current;
+        copyMappings(source, target, indexType);
+        final Reindexer reindexer = new Reindexer(getClient(Bulkhead.INGEST), indexName, source, target,
+                                                  reindexBatchSize, reindexKeepAlive);
+        reindexers.put(indexName, reindexer);
+        ThreadUtil.startThread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    reindexer.copy(shardIds(source));
+                    if (reindexer.getFailed() > 0) {
+                        throw new IllegalStateException(reindexer.getFailed() + " docs failed to copy");
+                    }
+                    reindexer.setState(Reindexer.State.SWAPPING);
+                    if (legacy) {
+                        writeGate.pause(indexName, Timeouts.bulk().millis());
+                        try {
+                            dropIndex(source);
+                            swapAlias(indexName, null, target);
+                        } finally {
+                            writeGate.resume(indexName);
+                        }
+                    } else {
+                        swapAlias(indexName, source, target);
+                        if (dropOldVersion) dropIndex(source);
+                    }
+                    reindexer.setState(Reindexer.State.DONE);
+                    _.info("reindex '" + indexName + "' done: " + reindexer.stats());
+                } catch (Throwable e) {
+                    _.error("reindex '" + indexName + "' " + source + " -> " + target + " failed!", e);
+                    reindexer.fail(e);
+                } finally {
+                    mappingRegistry.invalidate(indexName);
+                    searchCache.invalidate(indexName);
+                }
+            }
+        }, "Reindex-" + indexName);
+        result.put("reindex", true);
+        result.put("source", source);
+        return result;
+    }
+
+    /**
+     * reindex进度
+     * 
+     * @param indexName alias
+     * @return 没有reindex时返回null
+     */
+    public Map<String, Object> reindexStats(String indexName) {
+        Reindexer reindexer = reindexers.get(indexName);
+        return reindexer == null ? null : reindexer.stats();
+    }
+
+    public List<Map<String, Object>> reindexStats() {
+        List<Map<String, Object>> stats = Lists.newArrayList();
+        for (Reindexer reindexer : reindexers.values())
+            stats.add(reindexer.stats());
+        return stats;
+    }
+
+    /**
+     * alias指向的index
+     * 
+     * @param alias
+     * @return 不是alias时返回null
+     */
+    public String aliasTarget(String alias) {
+        GetAliasesResponse response = getClient().admin().indices().prepareGetAliases(alias).execute()//
+        .actionGet(Timeouts.admin());
+        Set<String> indices = Sets.newTreeSet();
+        for (ObjectCursor<String> index : response.getAliases().keys())
+            indices.add(index.value);
+        return indices.isEmpty() ? null : Iterables.getLast(indices);
+    }
+
+    /**
+     * 原子切换alias:在同一个请求中从from移除并加到to
+     * 
+     * @param alias
+     * @param from 为null时只添加
+     * @param to
+     */
+    public void swapAlias(String alias, String from, String to) {
+        IndicesAliasesRequestBuilder request = getClient().admin().indices().prepareAliases();
+        if (from != null) request.removeAlias(from, alias);
+        request.addAlias(to, alias);
+        request.execute().actionGet(Timeouts.admin());
+        mappingRegistry.invalidate(alias);
+        searchCache.invalidate(alias);
+        _.info("alias '" + alias + "' -> " + to + (from == null ? "" : " (from " + from + ")"));
+    }
+
+    /**
+     * indexName的全部版本(indexName_vN)
+     * 
+     * @param indexName
+     * @return 版本号 -> index
+     */
+    public SortedMap<Integer, String> versions(String indexName) {
+        SortedMap<Integer, String> versions = new TreeMap<Integer, String>();
+        String prefix = indexName + "_v";
+        String[] indices = getClient().admin().cluster().prepareState().clear().setMetaData(true)//
+        .execute().actionGet(Timeouts.admin()).getState().metaData().concreteAllIndices();
+        for (String index : indices) {
+            if (!index.startsWith(prefix)) continue;
+            String version = index.substring(prefix.length());
+            if (StringUtils.isNumeric(version) && StringUtils.isNotEmpty(version)) {
+                versions.put(Integer.parseInt(version), index);
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * 删除indexName的全部版本及alias
+     * 
+     * @param indexName
+     */
+    public void dropVersions(String indexName) {
+        if (aliasTarget(indexName) == null && existsIndex(indexName)) dropIndex(indexName);
+        for (String index : versions(indexName).values())
+            dropIndex(index);
+        reindexers.remove(indexName);
+        mappingRegistry.invalidate(indexName);
+        searchCache.invalidate(indexName);
+    }
+
+    private int maxVersion(String indexName) {
+        SortedMap<Integer, String> versions = versions(indexName);
+        return versions.isEmpty() ? 0 : versions.lastKey();
+    }
+
+    // 复制source中除indexType外其它type的mapping
+    private void copyMappings(String source, String target, String indexType) {
+        ImmutableOpenMap<String, MappingMetaData> types = getMapping(source).mappings().get(source);
+        if (types == null) return;
+        for (ObjectCursor<String> type : types.keys()) {
+            if (StringUtils.equals(type.value, indexType)) continue;
+            try {
+                PutMappingRequest mappingRequest = new PutMappingRequest(target).type(type.value)//
+                .source(types.get(type.value).source().string());
+                getClient().admin().indices().putMapping(mappingRequest).actionGet(Timeouts.admin());
+            } catch (IOException e) {
+                throw new IllegalStateException("copy mapping " + source + "/" + type.value + " error", e);
+            }
+        }
+    }
+
+    // reindex期间写入的同时写到新版本
+    private String mirrorTarget(String indexName) {
+        Reindexer reindexer = mirroring(indexName);
+        return reindexer == null ? null : reindexer.getTarget();
+    }
+
+    private Reindexer mirroring(String indexName) {
+        Reindexer reindexer = reindexers.get(indexName);
+        if (reindexer == null) return null;
+        Reindexer.State state = reindexer.getState();
+        return state == Reindexer.State.RUNNING || state == Reindexer.State.SWAPPING ? reindexer : null;
+    }
+
+    // 需要双写的请求复制一份到新版本,没有id的先生成id保证两边一致;删除先记录到reindexer,快照中的旧文档不再复制
+    private BulkRequest mirror(BulkRequest bulk) {
+        if (reindexers.isEmpty()) return bulk;
+        List<ActionRequest<?>> copies = Lists.newArrayList();
+        for (ActionRequest<?> req : bulk.requests()) {
+            if (req instanceof IndexRequest) {
+                IndexRequest request = (IndexRequest) req;
+                String mirror = mirrorTarget(request.index());
+                if (mirror == null) continue;
+                if (request.id() == null) request.id(Strings.randomBase64UUID());
+                copies.add(new IndexRequest(mirror, request.type(), request.id()).source(request.source(), false));
+            } else if (req instanceof DeleteRequest) {
+                DeleteRequest request = (DeleteRequest) req;
+                Reindexer reindexer = mirroring(request.index());
+                if (reindexer == null) continue;
+                reindexer.delete(request.type(), request.id());
+                copies.add(new DeleteRequest(reindexer.getTarget(), request.type(), request.id()));
+            }
+        }
+        for (ActionRequest<?> copy : copies) {
+            if (copy instanceof IndexRequest) bulk.add((IndexRequest) copy);
+            else bulk.add((DeleteRequest) copy);
+        }
+        return bulk;
     }
 
     /**
@@ -455,7 +1347,9 @@ public class ElasticsearchHelper {
      * @param indexName
      */
     public void createIndex(String indexName) {
-        getClient().admin().indices().prepareCreate(indexName).execute().actionGet();
+        getClient().admin().indices().prepareCreate(indexName).execute().actionGet(Timeouts.admin());
+        mappingRegistry.invalidate(indexName);
+        searchCache.invalidate(indexName);
     }
 
     /**
@@ -466,7 +1360,7 @@ public class ElasticsearchHelper {
      */
     public boolean existsIndex(String indexName) {
         IndicesExistsRequest request = new IndicesExistsRequest(indexName);
-        return getClient().admin().indices().exists(request).actionGet().isExists();
+        return getClient().admin().indices().exists(request).actionGet(Timeouts.admin()).isExists();
     }
 
     /**
@@ -479,7 +1373,7 @@ public class ElasticsearchHelper {
      */
     public GetResponse get(String indexName, String indexType, String id) {
         GetRequest request = new GetRequest(indexName, indexType, id);
-        return getClient().get(request).actionGet();
+        return getClient(Bulkhead.SEARCH).get(request).actionGet(Timeouts.search());
     }
 
     /**
@@ -489,7 +1383,8 @@ public class ElasticsearchHelper {
      * @return
      */
     public SearchRequestBuilder makeSearchRequestBuilder(String indexName, String indexType) {
-        return getClient().prepareSearch(indexName).setTypes(indexType);
+        return getClient(Bulkhead.SEARCH).prepareSearch(indexName).setTypes(indexType)//
+        .setTimeout(Timeouts.search());
     }
 
     /**
@@ -501,7 +1396,67 @@ public class ElasticsearchHelper {
      * @param source
      */
     public void index(String indexName, String indexType, String id, Map<String, Object> source) {
-        getIndexRequestBuilder(indexName, indexType, id, source).execute().actionGet();
+        getIndexRequestBuilder(indexName, indexType, id, source).execute().actionGet(Timeouts.bulk());
+        String mirror = mirrorTarget(indexName);
+        if (mirror != null) getIndexRequestBuilder(mirror, indexType, id, source).execute().actionGet(Timeouts.bulk());
+        searchCache.invalidate(indexName);
+    }
+
+    /**
+     * 索引数据,写入缓冲后立即返回,由BulkIndexer合并成bulk提交;
+     * 开启写前日志时追加到日志后返回,由JournalReplayer提交
+     * 
+     * @param indexName
+     * @param indexType
+     * @param id
+     * @param source
+     */
+    public void indexAsync(String indexName, String indexType, String id, Map<String, Object> source) {
+        if (journal != null) {
+            if (id == null || StringUtils.isBlank(id)) return;
+            try {
+                XContentBuilder builder = XContentFactory.contentBuilder(Requests.INDEX_CONTENT_TYPE).map(source);
+                journal.append(indexName, indexType, id, builder.bytes().toBytes());
+            } catch (IOException e) {
+                throw new IllegalStateException("journal append error", e);
+            }
+            return;
+        }
+        IndexRequestBuilder builder = getIndexRequestBuilder(indexName, indexType, id, source);
+        if (builder != null) getBulkIndexer().add(builder.request());
+        String mirror = mirrorTarget(indexName);
+        if (builder != null && mirror != null) {
+            getBulkIndexer().add(getIndexRequestBuilder(mirror, indexType, id, source).request());
+        }
+        searchCache.invalidate(indexName);
+    }
+
+    /**
+     * 按原始字节索引一个文档,不解析成Map;与indexAsync一样写入缓冲或写前日志后返回
+     * 
+     * @param indexName
+     * @param indexType
+     * @param id
+     * @param source JSON字节,可以是请求体的一部分
+     * @param offset
+     * @param length
+     */
+    public void indexRaw(String indexName, String indexType, String id, byte[] source, int offset, int length) {
+        if (journal != null) {
+            try {
+                journal.append(indexName, indexType, id, Arrays.copyOfRange(source, offset, offset + length));
+            } catch (IOException e) {
+                throw new IllegalStateException("journal append error", e);
+            }
+            return;
+        }
+        getBulkIndexer().add(new IndexRequest(indexName, indexType, id).source(source, offset, length)//
+        .consistencyLevel(WriteConsistencyLevel.ONE));
+        String mirror = mirrorTarget(indexName);
+        if (mirror != null) {
+            getBulkIndexer().add(new IndexRequest(mirror, indexType, id).source(source, offset, length)//
+            .consistencyLevel(WriteConsistencyLevel.ONE));
+        }
     }
 
     /**
@@ -522,23 +1477,103 @@ public class ElasticsearchHelper {
     }
 
     public int bulk(String indexName, String indexType, File file) throws Exception {
-        FileReader fr = new FileReader(file);
-        BufferedReader br = new BufferedReader(fr);
-        String line = null;
-        BulkRequestBuilder bulkRequest = client.prepareBulk();
-        int count = 0;
-        while ((line = br.readLine()) != null) {
-            try {
-                bulkRequest.add(client.prepareIndex("test", "article").setSource(line));
-                if (count % 10 == 0) bulkRequest.execute().actionGet();
-                count++;
-            } catch (Exception e) {
-                _.error("bulk error!", e);
+        Map<String, Object> result = bulk(indexName, indexType, new FileInputStream(file), 5 * 1024 * 1024, 2);
+        return ((Long) result.get("total")).intValue();
+    }
+
+    /**
+     * 流式批量导入,每行一个JSON文档
+     * 
+     * <pre>
+     * 边读边按字节数切分成bulk批次,最多concurrent个批次同时在途,
+     * 内存占用只和batchBytes*concurrent有关,与文件大小无关
+     * </pre>
+     * 
+     * @param indexName
+     * @param indexType
+     * @param in 数据流,读完后关闭
+     * @param batchBytes 每个批次的最大字节数
+     * @param concurrent 同时在途的批次数
+     * @return 总数/成功数/失败数以及每个批次的明细
+     * @throws Exception
+     */
+    public Map<String, Object> bulk(String indexName, String indexType, InputStream in, long batchBytes,
+                                    int concurrent) throws Exception {
+        BulkResult result = new BulkResult();
+        Semaphore inflight = new Semaphore(Math.max(1, concurrent));
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charsets.UTF_8));
+        int batch = 0;
+        try {
+            BulkRequest bulk = Requests.bulkRequest();
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                if (StringUtils.isBlank(line)) continue;
+                bulk.add(Requests.indexRequest(indexName).type(indexType).source(line));
+                if (bulk.estimatedSizeInBytes() >= batchBytes || bulk.numberOfActions() >= adaptiveBulk.batchActions()) {
+                    submitBulk(batch++, mirror(bulk), inflight, result);
+                    bulk = Requests.bulkRequest();
+                }
+            }
+            if (bulk.numberOfActions() > 0) submitBulk(batch++, mirror(bulk), inflight, result);
+            // 等待全部批次返回
+            inflight.acquire(Math.max(1, concurrent));
+            inflight.release(Math.max(1, concurrent));
+        } finally {
+            reader.close();
+            searchCache.invalidate(indexName);
+        }
+        _.info("bulk '" + indexName + "/" + indexType + "' finished, batches=" + batch + ", success="
+               + result.getSuccess() + ", failed=" + result.getFailed());
+        return result.toMap();
+    }
+
+    /**
+     * 流式导入到写前日志,每行一个JSON文档,追加完成即返回,由JournalReplayer写入ES
+     * 
+     * @param indexName
+     * @param indexType
+     * @param in
+     * @return 追加的文档数/日志未回放的字节数
+     * @throws IOException
+     */
+    public Map<String, Object> spool(String indexName, String indexType, InputStream in) throws IOException {
+        if (journal == null) throw new IllegalStateException("journal is not enabled");
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charsets.UTF_8));
+        long spooled = 0;
+        try {
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                if (StringUtils.isBlank(line)) continue;
+                // 生成id,回放重复时覆盖为同一文档
+                journal.append(indexName, indexType, Strings.randomBase64UUID(), line.getBytes(Charsets.UTF_8));
+                spooled++;
             }
+        } finally {
+            reader.close();
+        }
+        Map<String, Object> result = Maps.newLinkedHashMap();
+        result.put("spooled", spooled);
+        result.put("pendingBytes", journal.pending());
+        return result;
+    }
+
+    /**
+     * 以导入模式执行大批量导入:导入期间关闭refresh、副本数为0,结束后(包括失败)refresh、按需optimize并恢复原设置
+     * 
+     * @param indexName index或alias
+     * @param optimize 结束后是否optimize
+     * @param ingest 导入过程
+     * @return ingest的返回值
+     * @throws Exception ingest的异常
+     */
+    public <T> T bulkLoad(String indexName, boolean optimize, Callable<T> ingest) throws Exception {
+        List<String> indices = bulkLoadMode.enter(indexName);
+        try {
+            return ingest.call();
+        } finally {
+            bulkLoadMode.exit(indices, optimize);
+            searchCache.invalidate(indexName);
         }
-        bulkRequest.execute().actionGet();
-        br.close();
-        return count;
     }
 
     /**
@@ -547,7 +1582,15 @@ public class ElasticsearchHelper {
      * @param indexName
      */
     public void clearIndex(String indexName) {
-        getClient().prepareDelete().setIndex(indexName).execute().actionGet();
+        // reindex期间同时清空新版本,并停止复制快照中的旧数据
+        Reindexer reindexer = mirroring(indexName);
+        if (reindexer != null) reindexer.clear();
+        getClient(Bulkhead.INGEST).prepareDelete().setIndex(indexName).execute().actionGet(Timeouts.bulk());
+        if (reindexer != null) {
+            getClient(Bulkhead.INGEST).prepareDelete().setIndex(reindexer.getTarget()).execute()//
+            .actionGet(Timeouts.bulk());
+        }
+        searchCache.invalidate(indexName);
     }
 
     /**
@@ -557,11 +1600,33 @@ public class ElasticsearchHelper {
      */
     public void dropIndex(String indexName) {
         DeleteIndexRequest request = new DeleteIndexRequest(indexName);
-        getClient().admin().indices().delete(request);
+        getClient().admin().indices().delete(request).actionGet(Timeouts.admin());
+        mappingRegistry.invalidate(indexName);
+        searchCache.invalidate(indexName);
     }
 
+    /**
+     * 同步提交bulk,被拒绝的条目按退避重试
+     * 
+     * @param req
+     * @throws IllegalStateException 重试后仍有失败的条目
+     */
     public void bulk(BulkRequest req) {
-        getClient().bulk(req).actionGet();
+        AdaptiveBulk.Result result;
+        try {
+            result = adaptiveBulk.execute(mirror(req));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("bulk interrupted", e);
+        } finally {
+            for (ActionRequest<?> _req : req.requests()) {
+                if (_req instanceof IndexRequest) searchCache.invalidate(((IndexRequest) _req).index());
+            }
+        }
+        if (result.getFailed() > 0) {
+            throw new IllegalStateException("bulk " + result.getFailed() + " of " + req.numberOfActions()
+                                            + " failed: " + result.getError());
+        }
     }
 
     public void bulk(List<IndexRequestBuilder> requests) {
@@ -576,11 +1641,23 @@ public class ElasticsearchHelper {
         if (StringUtils.isNotBlank(analyzer)) {
             request.analyzer(analyzer);
         }
-        return getClient().admin().indices().analyze(request).actionGet();
+        return getClient().admin().indices().analyze(request).actionGet(Timeouts.admin());
     }
 
     // *********************************************** private method *******************************************//
 
+    // 写入相关的组件都使用ingest通道的client,export通道共用ingest的client但单独限制并发,BulkLoadMode修改index设置属于admin
+    private void initLanes(Client search, Client ingest) {
+        this.writeGate = new WriteGate(ingest);
+        ingest = writeGate;
+        lanes.put(Bulkhead.SEARCH, new Bulkhead(Bulkhead.SEARCH, search));
+        lanes.put(Bulkhead.INGEST, new Bulkhead(Bulkhead.INGEST, ingest));
+        lanes.put(Bulkhead.EXPORT, new Bulkhead(Bulkhead.EXPORT, ingest));
+        lanes.put(Bulkhead.ADMIN, new Bulkhead(Bulkhead.ADMIN, client));
+        this.bulkLoadMode = new BulkLoadMode(client);
+        this.adaptiveBulk = new AdaptiveBulk(ingest);
+    }
+
     private synchronized XContentBuilder getMapping(String indexName, String indexType,
                                                     Map<String, Map<String, Object>> fields) {
         try {
@@ -611,12 +1688,117 @@ public class ElasticsearchHelper {
         return null;
     }
 
+    private FilteredQueryBuilder buildQuery(String q, Set<String> matchField, Set<String> allFields,
+                                            Map<String, Object[]> filters, Table<String, String, Object> ranges) {
+        if (StringUtils.isEmpty(q)) q = "*";
+        // 分词查询
+        QueryStringQueryBuilder queryStringBuilder = new QueryStringQueryBuilder(q);
+        queryStringBuilder.useDisMax(true);
+        for (String field : matchField)
+            queryStringBuilder.field(field);
+        // 过滤条件
+        BoolFilterBuilder boolFilter = null;
+        if (filters != null && filters.size() != 0) {
+            boolFilter = FilterBuilders.boolFilter();
+            for (Entry<String, Object[]> entry : filters.entrySet()) {
+                if (allFields.contains(entry.getKey())) {
+                    boolFilter.must(FilterBuilders.inFilter(entry.getKey(), entry.getValue()));
+                }
+            }
+        }
+        // 区间查询
+        List<RangeFilterBuilder> rangeList = Lists.newArrayList();
+        for (Entry<String, Map<String, Object>> range : ranges.rowMap().entrySet()) {
+            RangeFilterBuilder rangeFilter = new RangeFilterBuilder(range.getKey());
+            for (Entry<String, Object> row : range.getValue().entrySet()) {
+                if (StringUtils.equals(row.getKey(), "gt")) rangeFilter.gt(row.getValue());
+                if (StringUtils.equals(row.getKey(), "lt")) rangeFilter.lt(row.getValue());
+                if (StringUtils.equals(row.getKey(), "gte")) rangeFilter.gte(row.getValue());
+                if (StringUtils.equals(row.getKey(), "lte")) rangeFilter.lte(row.getValue());
+            }
+            rangeList.add(rangeFilter);
+        }
+        if (rangeList.size() > 0) {
+            if (boolFilter == null) boolFilter = FilterBuilders.boolFilter();
+            boolFilter.should(rangeList.toArray(new RangeFilterBuilder[] {}));
+        }
+        return QueryBuilders.filteredQuery(queryStringBuilder, boolFilter);
+    }
+
+    private static String searchType(SearchRequestBuilder search) {
+        return search.request().searchType().name().toLowerCase();
+    }
+
+    // 按单字段或多字段脚本聚合,按bucket内最高分排序
+    private TermsBuilder makeTerms(List<String> aggList) {
+        TermsBuilder termsBuilder = AggregationBuilders.terms("top-tags");
+        // 使用term field聚合
+        if (aggList.size() == 1) {
+            termsBuilder.field(aggList.get(0));
+        }
+        // 使用term script聚合
+        if (aggList.size() > 1) {
+            termsBuilder.script(aggrScript(aggList));
+        }
+        // terms sort by max_score
+        termsBuilder.order(Terms.Order.aggregation("max_score", false));
+        MaxBuilder maxBuilder = AggregationBuilders.max("max_score").script("_score");
+        termsBuilder.subAggregation(maxBuilder);
+        return termsBuilder;
+    }
+
+    // 去重总数(近似值)
+    private CardinalityBuilder makeCardinality(List<String> aggList) {
+        CardinalityBuilder cardinality = AggregationBuilders.cardinality("distinct-total");
+        if (aggList.size() == 1) cardinality.field(aggList.get(0));
+        if (aggList.size() > 1) cardinality.script(aggrScript(aggList));
+        return cardinality;
+    }
+
+    private String aggrScript(List<String> aggList) {
+        List<String> _aggList = Lists.newArrayList();
+        for (String aggStr : aggList) {
+            _aggList.add("doc." + aggStr + ".value");
+        }
+        return "[" + StringUtils.join(_aggList, ",") + "].join(\"-\")";
+    }
+
+    private TopHitsBuilder makeTopHits(Set<String> allFields, boolean topOnly) {
+        TopHitsBuilder topHitsBuilder = AggregationBuilders.topHits("top-tags-record")//
+        .setFetchSource(allFields.toArray(new String[] {}), null);
+        if (topOnly) topHitsBuilder.setSize(1);
+        if (!topOnly) topHitsBuilder.setSize(320);
+        return topHitsBuilder;
+    }
+
+    // 集合去重
+    private Set<Map<String, Object>> distinct(List<Map<String, Object>> list) {
+        Set<String> hashcode = Sets.newHashSet();
+        Set<Map<String, Object>> sets = Sets.newLinkedHashSet();
+        for (Map<String, Object> _ : list) {
+            boolean contains = _ != null && hashcode.contains(_.toString());
+            if (_ != null && !contains) {
+                hashcode.add(_.toString());
+                sets.add(_);
+            }
+        }
+        return sets;
+    }
+
     private void createMapping(String indexName, String indexType, XContentBuilder mapping) {
         if (mapping == null) return;
         PutMappingRequest mappingRequest = new PutMappingRequest(indexName);
         mappingRequest.type(indexType);
         mappingRequest.source(mapping);
-        getClient().admin().indices().putMapping(mappingRequest).actionGet();
+        getClient().admin().indices().putMapping(mappingRequest).actionGet(Timeouts.admin());
+        mappingRegistry.refresh(indexName);
+        searchCache.invalidate(indexName);
+    }
+
+    private static Map<String, Object> error(String msg) {
+        Map<String, Object> error = Maps.newHashMap();
+        error.put("error", StringUtils.defaultString(msg, "unknown error"));
+        return error;
     }
 
     private List<Map<String, Object>> result(SearchResponse res) {
@@ -637,10 +1819,37 @@ public class ElasticsearchHelper {
         return result;
     }
 
+    // 占用一个在途名额后在bulk线程池中提交(被拒绝的条目重试),返回时释放
+    private void submitBulk(final int batch, final BulkRequest bulk, final Semaphore inflight, final BulkResult result)
+                                                                                                                    throws InterruptedException {
+        final int actions = bulk.numberOfActions();
+        final long size = bulk.estimatedSizeInBytes();
+        inflight.acquire();
+        try {
+            ThreadUtil.submitTask(AdaptiveBulk.EXECUTOR, new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        result.onResult(batch, size, adaptiveBulk.execute(bulk));
+                    } catch (Throwable e) {
+                        _.error("bulk batch[" + batch + "] error!", e);
+                        result.onFailure(batch, actions, size, e);
+                    } finally {
+                        inflight.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            inflight.release();
+            result.onFailure(batch, actions, size, e);
+        }
+    }
+
     private IndexRequestBuilder getIndexRequestBuilder(String indexName, String indexType, Object id,
                                                        Map<String, Object> source) {
         if (id == null || StringUtils.isBlank(id.toString())) return null;
-        return getClient()//
+        return getClient(Bulkhead.INGEST)//
         .prepareIndex(indexName, indexType, id.toString())//
         .setConsistencyLevel(WriteConsistencyLevel.ONE)//
         .setSource(source);
@@ -652,4 +1861,136 @@ public class ElasticsearchHelper {
         Pattern p = Pattern.compile(pattern);
         return p.matcher(value).matches();
     }
+
+    /**
+     * 分页聚合的两步请求,同步和异步共用
+     */
+    private class AggrPage {
+
+        private final String               indexName;
+        private final String               indexType;
+        private final boolean              topOnly;
+        private final int                  from;
+        private final Set<String>          allFields;
+        private final List<String>         aggList;
+        private final String               key;
+        private final Map<String, Object>  result = Maps.newHashMap();
+        private final SearchType           searchType;
+        private final FilteredQueryBuilder query;
+        // 第一步:到当前页为止的bucket key,没有聚合字段时为null
+        private final SearchRequestBuilder keysRequest;
+        private List<String>               keys;
+
+        AggrPage(String indexName, String indexType, String q, Map<String, Object[]> filters,
+                 Set<String> matchField, Set<String> aggregation, Table<String, String, Object> ranges,
+                 boolean topOnly, int pageno, int pagesize) {
+            this.indexName = indexName;
+            this.indexType = indexType;
+            this.topOnly = topOnly;
+            this.from = (pageno - 1) * pagesize;
+            this.allFields = mappingRegistry.fields(indexName, indexType);
+            this.aggList = aggrFields(indexName, indexType, aggregation);
+            this.key = StringUtils.join(aggList, "-");
+            result.put("pageno", pageno);
+            result.put("pagesize", pagesize);
+            result.put("total", 0);
+            result.put("list", Lists.newArrayList());
+            if (aggList.isEmpty()) {
+                this.searchType = null;
+                this.query = null;
+                this.keysRequest = null;
+                return;
+            }
+            this.query = buildQuery(q, matchField, allFields, filters, ranges);
+            this.searchType = searchTypePolicy.choose(indexName, true);
+            result.put("searchType", searchType.name().toLowerCase());
+            this.keysRequest = makeSearchRequestBuilder(indexName, indexType).setQuery(query)//
+            .setSize(0)//
+            .setSearchType(searchType)//
+            .addAggregation(makeTerms(aggList).size(from + pagesize))//
+            .addAggregation(makeCardinality(aggList));
+        }
+
+        // 记录总数和当前页的key,返回第二步的请求,当前页没有bucket时返回null
+        SearchRequestBuilder onKeys(SearchResponse keysResponse) {
+            Terms keysTerms = keysResponse.getAggregations().get("top-tags");
+            Cardinality cardinality = keysResponse.getAggregations().get("distinct-total");
+            result.put("total", cardinality.getValue());
+            keys = Lists.newArrayList();
+            int i = 0;
+            for (Terms.Bucket bucket : keysTerms.getBuckets()) {
+                if (i++ >= from) keys.add(bucket.getKey());
+            }
+            if (keys.isEmpty()) return null;
+
+            // 第二步:只取当前页bucket的文档
+            TermsBuilder pageTermsBuilder = makeTerms(aggList).size(keys.size());
+            FilteredQueryBuilder pageQuery = query;
+            if (aggList.size() == 1) {
+                pageQuery = QueryBuilders.filteredQuery(query, FilterBuilders.termsFilter(aggList.get(0), keys));
+            } else {
+                List<String> patterns = Lists.newArrayList();
+                for (String _key : keys)
+                    patterns.add(Pattern.quote(_key));
+                pageTermsBuilder.include(StringUtils.join(patterns, "|"));
+            }
+            pageTermsBuilder.subAggregation(makeTopHits(allFields, topOnly));
+            return makeSearchRequestBuilder(indexName, indexType).setQuery(pageQuery)//
+            .setSize(0)//
+            .setSearchType(searchType)//
+            .addAggregation(pageTermsBuilder);
+        }
+
+        // 按第一步的顺序输出
+        Map<String, Object> onPage(SearchResponse pageResponse) {
+            Terms pageTerms = pageResponse.getAggregations().get("top-tags");
+            List<Map<String, Object>> list = Lists.newArrayList();
+            for (String _key : keys) {
+                Terms.Bucket bucket = pageTerms.getBucketByKey(_key);
+                if (bucket == null) continue;
+                TopHits topHits = bucket.getAggregations().get("top-tags-record");
+                if (topOnly) {
+                    list.addAll(result(topHits));
+                } else {
+                    Map<String, Object> _data = Maps.newHashMap();
+                    _data.put(key, bucket.getKey());
+                    _data.put("hits", result(topHits));
+                    list.add(_data);
+                }
+            }
+            result.put("list", Lists.newArrayList(distinct(list)));
+            return result;
+        }
+    }
+
+    /**
+     * SearchResponse转换为结果Map后回调
+     */
+    private static abstract class ResultListener implements ActionListener<SearchResponse> {
+
+        private final ActionListener<Map<String, Object>> listener;
+
+        ResultListener(ActionListener<Map<String, Object>> listener) {
+            this.listener = listener;
+        }
+
+        protected abstract Map<String, Object> convert(SearchResponse response);
+
+        @Override
+        public void onResponse(SearchResponse response) {
+            Map<String, Object> result = null;
+            try {
+                result = convert(response);
+            } catch (Exception e) {
+                listener.onFailure(e);
+                return;
+            }
+            listener.onResponse(result);
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+            listener.onFailure(e);
+        }
+    }
 }
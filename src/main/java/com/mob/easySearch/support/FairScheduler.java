@@ -0,0 +1,428 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.lamfire.utils.StringUtils;
+
+/**
+ * 按租户(indexName)加权公平的查询准入
+ *
+ * <pre>
+ * 全局最多maxConcurrent个查询同时访问ES,每个租户最多tenantConcurrent个;超出的查询进入租户自己的队列
+ * 有空位时按deficit round robin出队:轮到一个租户时deficit加quantum*weight,队头查询的cost不超过deficit就放行并扣减,
+ * 否则轮到下一个租户;队列空了deficit清零。distinct聚合的cost更高,一个租户发大量聚合查询只能占到按权重分到的份额
+ * 租户队列满时直接拒绝,排队超过queueTimeout的查询超时,都抛出RejectedExecutionException
+ * 全局并发占满时不会出队,由后台线程按deadline让超时的异步查询失败;入队前先移除超时的查询,不占用队列长度
+ * weights格式: indexA:4,indexB:2,未配置的租户权重为1
+ * </pre>
+ *
+ * @author zxc Dec 16, 2016 2:18:37 PM
+ */
+public class FairScheduler {
+
+    private volatile boolean          enabled          = true;
+    private int                       maxConcurrent    = 64;
+    private int                       tenantConcurrent = 32;
+    private int                       maxQueue         = 100;
+    private long                      queueTimeout     = 1000;
+    private int                       quantum          = 1;
+    private Map<String, Integer>      weights          = Maps.newHashMap();
+
+    // 以下状态由this保护
+    private final Map<String, Tenant> tenants          = Maps.newHashMap();
+    // 有排队查询的租户,队头为当前轮到的租户
+    private final ArrayDeque<Tenant>  active           = new ArrayDeque<Tenant>();
+    private int                       inflight         = 0;
+    private volatile boolean          running          = false;
+
+    /**
+     * @param enabled
+     * @param maxConcurrent 全局同时访问ES的查询数
+     * @param tenantConcurrent 每个租户同时访问ES的查询数
+     * @param maxQueue 每个租户排队上限
+     * @param queueTimeout 排队超时ms
+     * @param quantum 每轮每单位权重增加的deficit
+     * @param weights indexName:weight,...
+     */
+    public synchronized void configure(boolean enabled, int maxConcurrent, int tenantConcurrent, int maxQueue,
+                                       long queueTimeout, int quantum, String weights) {
+        this.enabled = enabled;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.tenantConcurrent = Math.max(1, tenantConcurrent);
+        this.maxQueue = Math.max(1, maxQueue);
+        this.queueTimeout = queueTimeout;
+        this.quantum = Math.max(1, quantum);
+        Map<String, Integer> _weights = Maps.newHashMap();
+        for (String item : StringUtils.split(StringUtils.trimToEmpty(weights), ",")) {
+            String[] pair = StringUtils.split(item.trim(), ":");
+            if (pair.length == 2) _weights.put(pair[0].trim(), Math.max(1, Integer.parseInt(pair[1].trim())));
+        }
+        this.weights = _weights;
+        for (Tenant tenant : tenants.values())
+            tenant.weight = weight(tenant.name);
+    }
+
+    /**
+     * 修改全局并发数,有空位时立即出队
+     *
+     * @param maxConcurrent
+     */
+    public void setMaxConcurrent(int maxConcurrent) {
+        List<Waiter> done;
+        synchronized (this) {
+            this.maxConcurrent = Math.max(1, maxConcurrent);
+            done = dispatch();
+        }
+        complete(done);
+    }
+
+    public synchronized int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * @return 全部租户正在排队的查询数
+     */
+    public synchronized int queued() {
+        int queued = 0;
+        for (Tenant tenant : active)
+            queued += tenant.queue.size();
+        return queued;
+    }
+
+    /**
+     * 同步准入,放行后必须在finally中调用{@link #release(String)}
+     *
+     * @param tenant indexName
+     * @param cost 查询的相对开销
+     * @throws RejectedExecutionException 队列已满或排队超时
+     */
+    public void acquire(String tenant, int cost) throws RejectedExecutionException {
+        if (!enabled) return;
+        Waiter waiter = new Waiter(cost, null);
+        List<Waiter> done = Lists.newArrayList();
+        RejectedExecutionException rejected = null;
+        synchronized (this) {
+            try {
+                enqueue(tenant, waiter, done);
+                done.addAll(dispatch());
+            } catch (RejectedExecutionException e) {
+                rejected = e;
+            }
+        }
+        complete(done);
+        if (rejected != null) throw rejected;
+        synchronized (this) {
+            try {
+                while (!waiter.granted && !waiter.expired) {
+                    long remain = waiter.deadline - System.currentTimeMillis();
+                    if (remain <= 0) {
+                        waiter.tenant.queue.remove(waiter);
+                        expire(waiter);
+                        break;
+                    }
+                    wait(remain);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (!waiter.granted) {
+                    waiter.tenant.queue.remove(waiter);
+                    throw new RejectedExecutionException("search admission interrupted");
+                }
+            }
+            if (!waiter.granted) throw timeout(waiter.tenant);
+        }
+    }
+
+    /**
+     * 异步准入,放行时在释放空位的线程上调用admission.run,不阻塞调用线程
+     *
+     * @param tenant indexName
+     * @param cost 查询的相对开销
+     * @param admission 放行后必须调用{@link #release(String)}
+     */
+    public void acquireAsync(String tenant, int cost, Admission admission) {
+        if (!enabled) {
+            admission.run();
+            return;
+        }
+        Waiter waiter = new Waiter(cost, admission);
+        List<Waiter> done = Lists.newArrayList();
+        RejectedExecutionException rejected = null;
+        synchronized (this) {
+            try {
+                enqueue(tenant, waiter, done);
+                done.addAll(dispatch());
+            } catch (RejectedExecutionException e) {
+                rejected = e;
+            }
+        }
+        complete(done);
+        if (rejected != null) admission.reject(rejected);
+    }
+
+    public void release(String tenant) {
+        if (!enabled) return;
+        List<Waiter> done;
+        synchronized (this) {
+            Tenant _tenant = tenants.get(tenant);
+            if (_tenant == null || _tenant.inflight == 0) return;
+            _tenant.inflight--;
+            inflight--;
+            done = dispatch();
+        }
+        complete(done);
+    }
+
+    /**
+     * 启动后台线程,全局并发占满时也按deadline让超时的异步查询失败
+     */
+    public synchronized void startSweeper() {
+        if (running) return;
+        running = true;
+        ThreadUtil.startThread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        complete(sweep());
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "FairScheduler");
+    }
+
+    public synchronized void stopSweeper() {
+        running = false;
+        notifyAll();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = Maps.newLinkedHashMap();
+        stats.put("enabled", enabled);
+        synchronized (this) {
+            stats.put("maxConcurrent", maxConcurrent);
+            stats.put("tenantConcurrent", tenantConcurrent);
+            stats.put("inflight", inflight);
+            List<Map<String, Object>> _tenants = Lists.newArrayList();
+            for (Tenant tenant : tenants.values())
+                _tenants.add(tenant.stats());
+            stats.put("tenants", _tenants);
+        }
+        return stats;
+    }
+
+    // *********************************************** private method *******************************************//
+
+    private void enqueue(String name, Waiter waiter, List<Waiter> done) {
+        Tenant tenant = tenants.get(name);
+        if (tenant == null) {
+            tenant = new Tenant(name, weight(name));
+            tenants.put(name, tenant);
+        }
+        waiter.tenant = tenant;
+        // 已超时的查询不占用队列长度
+        expire(tenant, waiter.enqueued, done);
+        if (tenant.queue.size() >= maxQueue) throw rejected(tenant, "queue is full");
+        waiter.deadline = waiter.enqueued + queueTimeout;
+        if (!tenant.scheduled) {
+            active.addLast(tenant);
+            tenant.scheduled = true;
+        }
+        tenant.queue.addLast(waiter);
+        tenant.peakQueue = Math.max(tenant.peakQueue, tenant.queue.size());
+    }
+
+    // deficit round robin出队,返回放行或超时的查询
+    private List<Waiter> dispatch() {
+        List<Waiter> done = Lists.newArrayList();
+        long now = System.currentTimeMillis();
+        int blocked = 0;
+        while (inflight < maxConcurrent && !active.isEmpty() && blocked < active.size()) {
+            Tenant tenant = active.peekFirst();
+            expire(tenant, now, done);
+            if (tenant.queue.isEmpty()) {
+                active.pollFirst();
+                tenant.scheduled = false;
+                tenant.deficit = 0;
+                tenant.credited = false;
+                continue;
+            }
+            if (tenant.inflight >= tenantConcurrent) {
+                // 达到租户并发上限,跳过这一轮
+                active.addLast(active.pollFirst());
+                tenant.credited = false;
+                blocked++;
+                continue;
+            }
+            blocked = 0;
+            if (!tenant.credited) {
+                tenant.deficit += quantum * tenant.weight;
+                tenant.credited = true;
+            }
+            Waiter head = tenant.queue.peekFirst();
+            if (head.cost <= tenant.deficit) {
+                tenant.queue.pollFirst();
+                tenant.deficit -= head.cost;
+                tenant.inflight++;
+                inflight++;
+                tenant.admitted++;
+                long wait = now - head.enqueued;
+                tenant.queueTime += wait;
+                tenant.maxQueueTime = Math.max(tenant.maxQueueTime, wait);
+                head.granted = true;
+                done.add(head);
+                continue;
+            }
+            // deficit不够,轮到下一个租户
+            active.addLast(active.pollFirst());
+            tenant.credited = false;
+        }
+        if (!done.isEmpty()) notifyAll();
+        return done;
+    }
+
+    // 移除所有租户中超时的查询,没有超时的则等到最早的deadline
+    private synchronized List<Waiter> sweep() throws InterruptedException {
+        List<Waiter> done = Lists.newArrayList();
+        long now = System.currentTimeMillis();
+        long next = now + Math.max(1, queueTimeout);
+        for (Tenant tenant : active) {
+            expire(tenant, now, done);
+            Waiter head = tenant.queue.peekFirst();
+            if (head != null) next = Math.min(next, head.deadline);
+        }
+        if (done.isEmpty() && running) wait(Math.max(1, next - now));
+        return done;
+    }
+
+    private void expire(Tenant tenant, long now, List<Waiter> done) {
+        Iterator<Waiter> it = tenant.queue.iterator();
+        while (it.hasNext()) {
+            Waiter waiter = it.next();
+            if (waiter.deadline > now) break;
+            it.remove();
+            expire(waiter);
+            done.add(waiter);
+        }
+    }
+
+    private void expire(Waiter waiter) {
+        waiter.expired = true;
+        waiter.tenant.timeouts++;
+        notifyAll();
+    }
+
+    // 在锁外回调异步查询
+    private void complete(List<Waiter> done) {
+        for (Waiter waiter : done) {
+            if (waiter.admission == null) continue;
+            if (waiter.granted) {
+                try {
+                    waiter.admission.run();
+                } catch (RuntimeException e) {
+                    release(waiter.tenant.name);
+                    waiter.admission.reject(e);
+                }
+            } else {
+                waiter.admission.reject(timeout(waiter.tenant));
+            }
+        }
+    }
+
+    private RejectedExecutionException rejected(Tenant tenant, String reason) {
+        tenant.rejected++;
+        return new RejectedExecutionException("search admission for " + tenant.name + " rejected, " + reason);
+    }
+
+    private RejectedExecutionException timeout(Tenant tenant) {
+        return new RejectedExecutionException("search admission for " + tenant.name + " queue timeout " + queueTimeout
+                                              + "ms");
+    }
+
+    private int weight(String tenant) {
+        Integer weight = weights.get(tenant);
+        return weight == null ? 1 : weight;
+    }
+
+    /**
+     * 异步准入的回调
+     */
+    public interface Admission {
+
+        /**
+         * 已放行,开始查询
+         */
+        void run();
+
+        /**
+         * 队列已满或排队超时
+         */
+        void reject(Throwable e);
+    }
+
+    private static class Waiter {
+
+        private final int       cost;
+        private final Admission admission;
+        private final long      enqueued = System.currentTimeMillis();
+        private long            deadline;
+        private Tenant          tenant;
+        private boolean         granted;
+        private boolean         expired;
+
+        Waiter(int cost, Admission admission) {
+            this.cost = Math.max(1, cost);
+            this.admission = admission;
+        }
+    }
+
+    private static class Tenant {
+
+        private final String             name;
+        private final ArrayDeque<Waiter> queue = new ArrayDeque<Waiter>();
+        private int                      weight;
+        private boolean                  scheduled;
+        private int                      deficit;
+        private boolean                  credited;
+        private int                      inflight;
+        private int                      peakQueue;
+        private long                     admitted;
+        private long                     rejected;
+        private long                     timeouts;
+        private long                     queueTime;
+        private long                     maxQueueTime;
+
+        Tenant(String name, int weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+
+        Map<String, Object> stats() {
+            Map<String, Object> stats = Maps.newLinkedHashMap();
+            stats.put("indexName", name);
+            stats.put("weight", weight);
+            stats.put("inflight", inflight);
+            stats.put("queued", queue.size());
+            stats.put("peakQueue", peakQueue);
+            stats.put("admitted", admitted);
+            stats.put("rejected", rejected);
+            stats.put("timeouts", timeouts);
+            stats.put("avgQueueTime", admitted == 0 ? 0 : queueTime / admitted);
+            stats.put("maxQueueTime", maxQueueTime);
+            return stats;
+        }
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.lamfire.logger.Logger;
+import com.lamfire.logger.LoggerFactory;
+
+/**
+ * 文件批量导入流水线,每行一个JSON文档
+ *
+ * <pre>
+ * read   单线程,按mapWindow内存映射文件,在换行处切成chunkBytes大小的块
+ * parse  parsers个线程,逐行用流式parser只取顶层的id字段(没有时生成),原始字节直接作为source,
+ *        按batchBytes和AdaptiveBulk当前的batchActions(不超过batchActions)组成bulk
+ * send   senders个线程,通过AdaptiveBulk同步提交bulk,被拒绝的条目按AdaptiveBulk的退避策略重试,
+ *        每个文档都有id,重试不会产生重复文档;有文档最终失败时run抛出异常
+ * 各阶段之间是有界队列,下游慢时上游阻塞;
+ * 每个阶段统计处理量/busy(处理耗时)/blocked(等下游)/idle(等上游),busy占比最高的阶段就是瓶颈
+ * </pre>
+ *
+ * @author zxc Dec 6, 2016 2:44:09 PM
+ */
+public class ImportPipeline {
+
+    private static final Logger              _              = LoggerFactory.getLogger(ImportPipeline.class);
+
+    public static final String               PARSER         = "import-parser";
+    public static final String               SENDER         = "import-sender";
+
+    private static final Chunk               CHUNK_EOF      = new Chunk(new byte[0], 0);
+    private static final BulkRequest         BULK_EOF       = new BulkRequest();
+
+    private final AdaptiveBulk               adaptiveBulk;
+    private final String                     indexName;
+    private final String                     indexType;
+
+    private int                              mapWindow      = 64 * 1024 * 1024;
+    private int                              chunkBytes     = 1024 * 1024;
+    private int                              parsers        = 4;
+    private int                              senders        = 4;
+    private long                             batchBytes     = 5 * 1024 * 1024;
+    private int                              batchActions   = 5000;
+    private long                             reportInterval = 10000;
+
+    private final Stage                      read           = new Stage("read");
+    private final Stage                      parse          = new Stage("parse");
+    private final Stage                      send           = new Stage("send");
+    private final AtomicLong                 docs           = new AtomicLong();
+    private final AtomicLong                 parseErrors    = new AtomicLong();
+    private final AtomicLong                 indexed        = new AtomicLong();
+    private final AtomicLong                 failed         = new AtomicLong();
+    private final AtomicLong                 retries        = new AtomicLong();
+    private final AtomicReference<Throwable> error          = new AtomicReference<Throwable>();
+    private volatile boolean                 running        = false;
+
+    /**
+     * @param adaptiveBulk 提交bulk,决定批次文档数和在途bulk数,重试被拒绝的条目
+     * @param indexName
+     * @param indexType
+     */
+    public ImportPipeline(AdaptiveBulk adaptiveBulk, String indexName, String indexType) {
+        this.adaptiveBulk = adaptiveBulk;
+        this.indexName = indexName;
+        this.indexType = indexType;
+    }
+
+    /**
+     * @param parsers 解析线程数
+     * @param senders 提交线程数,同时在途的bulk数不超过它和AdaptiveBulk的并发数
+     * @return
+     */
+    public ImportPipeline threads(int parsers, int senders) {
+        this.parsers = Math.max(1, parsers);
+        this.senders = Math.max(1, senders);
+        return this;
+    }
+
+    /**
+     * @param batchBytes 每个bulk的最大字节数
+     * @param batchActions 每个bulk的最大文档数,实际取AdaptiveBulk当前的batchActions和它的较小值
+     * @return
+     */
+    public ImportPipeline batch(long batchBytes, int batchActions) {
+        this.batchBytes = batchBytes;
+        this.batchActions = batchActions;
+        return this;
+    }
+
+    /**
+     * @param mapWindow 每次内存映射的字节数,需大于最长的一行
+     * @param chunkBytes 每块的字节数
+     * @return
+     */
+    public ImportPipeline chunk(int mapWindow, int chunkBytes) {
+        this.mapWindow = mapWindow;
+        this.chunkBytes = chunkBytes;
+        return this;
+    }
+
+    public ImportPipeline reportInterval(long reportInterval) {
+        this.reportInterval = reportInterval;
+        return this;
+    }
+
+    /**
+     * 导入文件,全部完成后返回
+     *
+     * @param file
+     * @return 文档数/成功数/失败数/各阶段统计
+     * @throws Exception 任一阶段出错,或重试后仍有文档写入失败
+     */
+    public Map<String, Object> run(File file) throws Exception {
+        final long start = System.currentTimeMillis();
+        final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<Chunk>(parsers * 2);
+        final BlockingQueue<BulkRequest> bulks = new ArrayBlockingQueue<BulkRequest>(senders * 2);
+        final CountDownLatch parsed = new CountDownLatch(parsers);
+        final CountDownLatch sent = new CountDownLatch(senders);
+        running = true;
+
+        ThreadUtil.newExecutor(PARSER, parsers, parsers, parsers, "abort");
+        ThreadUtil.newExecutor(SENDER, senders, senders, senders, "abort");
+        for (int i = 0; i < parsers; i++) {
+            ThreadUtil.submitTask(PARSER, new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        parse(chunks, bulks);
+                    } catch (Throwable e) {
+                        fail("parse", e);
+                    } finally {
+                        parsed.countDown();
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < senders; i++) {
+            ThreadUtil.submitTask(SENDER, new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        send(bulks);
+                    } catch (Throwable e) {
+                        fail("send", e);
+                    } finally {
+                        sent.countDown();
+                    }
+                }
+            });
+        }
+        ThreadUtil.startThread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (running) {
+                    ThreadUtil.sleep(reportInterval);
+                    if (running) _.info("import '" + indexName + "/" + indexType + "' progress: " + stats(start));
+                }
+            }
+        }, "import-progress");
+
+        try {
+            try {
+                read(file, chunks);
+            } catch (Throwable e) {
+                fail("read", e);
+            } finally {
+                for (int i = 0; i < parsers; i++)
+                    put(chunks, CHUNK_EOF, null);
+            }
+            parsed.await();
+            for (int i = 0; i < senders; i++)
+                put(bulks, BULK_EOF, null);
+            sent.await();
+        } finally {
+            running = false;
+            ThreadUtil.executor(PARSER).shutdown();
+            ThreadUtil.executor(SENDER).shutdown();
+        }
+        Map<String, Object> result = stats(start);
+        _.info("import '" + indexName + "/" + indexType + "' finished: " + result);
+        if (error.get() != null) throw new IOException("import '" + file + "' failed", error.get());
+        if (failed.get() > 0) throw new IOException("import '" + file + "' finished with " + failed.get()
+                                                    + " failed docs: " + result);
+        return result;
+    }
+
+    public Map<String, Object> stats(long start) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        Map<String, Object> stats = Maps.newLinkedHashMap();
+        stats.put("docs", docs.get());
+        stats.put("indexed", indexed.get());
+        stats.put("failed", failed.get());
+        stats.put("parseErrors", parseErrors.get());
+        stats.put("retries", retries.get());
+        stats.put("elapsed", elapsed);
+        stats.put("docsPerSecond", indexed.get() * 1000 / elapsed);
+        stats.put("bytesPerSecond", read.bytes.get() * 1000 / elapsed);
+        List<Map<String, Object>> stages = Lists.newArrayList(read.stats(1), parse.stats(parsers), send.stats(senders));
+        stats.put("stages", stages);
+        stats.put("bottleneck", bottleneck(stages));
+        return stats;
+    }
+
+    // *********************************************** stages *******************************************//
+
+    // 按窗口映射文件,在换行处切块,块之间不跨行
+    private void read(File file, BlockingQueue<Chunk> chunks) throws IOException, InterruptedException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size(), position = 0, lineNo = 0;
+            while (position < size && error.get() == null) {
+                long begin = System.nanoTime();
+                int length = (int) Math.min(mapWindow, size - position);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                boolean last = position + length >= size;
+                int consumed = 0;
+                while (consumed < length) {
+                    int end = Math.min(consumed + chunkBytes, length);
+                    if (end < length || !last) {
+                        int newline = lastNewline(buffer, consumed, end);
+                        if (newline < 0) newline = firstNewline(buffer, end, length);
+                        if (newline >= 0) {
+                            end = newline + 1;
+                        } else if (last) {
+                            end = length;
+                        } else if (consumed == 0) {
+                            throw new IOException("line longer than mapWindow at " + position);
+                        } else {
+                            break; // 不完整的行留到下一个窗口
+                        }
+                    }
+                    byte[] bytes = new byte[end - consumed];
+                    buffer.position(consumed);
+                    buffer.get(bytes);
+                    Chunk chunk = new Chunk(bytes, lineNo);
+                    lineNo += chunk.lines();
+                    read.busy(begin, 1, bytes.length);
+                    if (!put(chunks, chunk, read)) return;
+                    begin = System.nanoTime();
+                    consumed = end;
+                }
+                position += consumed;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    // 逐行取id组成bulk
+    private void parse(BlockingQueue<Chunk> chunks, BlockingQueue<BulkRequest> bulks) throws InterruptedException {
+        BulkRequest bulk = new BulkRequest();
+        while (true) {
+            Chunk chunk = take(chunks, parse);
+            if (chunk == null) return;
+            if (chunk == CHUNK_EOF) break;
+            long begin = System.nanoTime();
+            byte[] bytes = chunk.bytes;
+            int lineStart = 0, lines = 0;
+            for (int i = 0; i <= bytes.length; i++) {
+                if (i < bytes.length && bytes[i] != '\n') continue;
+                int lineEnd = i;
+                if (lineEnd > lineStart && bytes[lineEnd - 1] == '\r') lineEnd--;
+                if (!blank(bytes, lineStart, lineEnd)) {
+                    lines++;
+                    try {
+                        String id = extractId(bytes, lineStart, lineEnd - lineStart);
+                        // 没有id时生成,bulk超时重试不会重复写入
+                        if (id == null) id = Strings.randomBase64UUID();
+                        IndexRequest request = new IndexRequest(indexName, indexType, id)//
+                        .source(bytes, lineStart, lineEnd - lineStart);
+                        bulk.add(request);
+                    } catch (Exception e) {
+                        if (parseErrors.incrementAndGet() <= 10) {
+                            _.error("import parse error at line " + (chunk.lineNo + lines) + "!", e);
+                        }
+                    }
+                }
+                lineStart = i + 1;
+                int actions = Math.min(batchActions, adaptiveBulk.batchActions());
+                if (bulk.numberOfActions() >= actions || bulk.estimatedSizeInBytes() >= batchBytes) {
+                    parse.busy(begin, 0, 0);
+                    if (!put(bulks, bulk, parse)) return;
+                    bulk = new BulkRequest();
+                    begin = System.nanoTime();
+                }
+            }
+            docs.addAndGet(lines);
+            parse.busy(begin, lines, bytes.length);
+        }
+        if (bulk.numberOfActions() > 0) put(bulks, bulk, parse);
+    }
+
+    // 交给AdaptiveBulk同步提交,被拒绝的条目由AdaptiveBulk按退避重试
+    private void send(BlockingQueue<BulkRequest> bulks) throws InterruptedException {
+        while (true) {
+            BulkRequest bulk = take(bulks, send);
+            if (bulk == null || bulk == BULK_EOF) break;
+            long begin = System.nanoTime();
+            AdaptiveBulk.Result result = adaptiveBulk.execute(bulk);
+            indexed.addAndGet(result.getSuccess());
+            failed.addAndGet(result.getFailed());
+            retries.addAndGet(result.getRetries());
+            if (result.getFailed() > 0) {
+                _.error("import bulk has " + result.getFailed() + " failures: " + result.getError());
+            }
+            send.busy(begin, 1, bulk.estimatedSizeInBytes());
+        }
+    }
+
+    // *********************************************** private method *******************************************//
+
+    // 只读到顶层id字段为止
+    private static String extractId(byte[] bytes, int offset, int length) throws IOException {
+        XContentParser parser = XContentFactory.xContent(XContentType.JSON).createParser(bytes, offset, length);
+        try {
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT) throw new IOException("not a json object");
+            XContentParser.Token token;
+            while ((token = parser.nextToken()) == XContentParser.Token.FIELD_NAME) {
+                String name = parser.currentName();
+                token = parser.nextToken();
+                if ("id".equals(name) && token.isValue()) return parser.text();
+                parser.skipChildren();
+            }
+            return null;
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static boolean blank(byte[] bytes, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] != ' ' && bytes[i] != '\t') return false;
+        }
+        return true;
+    }
+
+    private static int lastNewline(MappedByteBuffer buffer, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (buffer.get(i) == '\n') return i;
+        }
+        return -1;
+    }
+
+    private static int firstNewline(MappedByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == '\n') return i;
+        }
+        return -1;
+    }
+
+    // 队列满时等待,任一阶段出错后放弃
+    private <T> boolean put(BlockingQueue<T> queue, T item, Stage stage) throws InterruptedException {
+        long begin = System.nanoTime();
+        try {
+            while (true) {
+                if (queue.offer(item, 1, TimeUnit.SECONDS)) return true;
+                if (error.get() != null) return false;
+            }
+        } finally {
+            if (stage != null) stage.blocked(begin);
+        }
+    }
+
+    // 队列空时等待,任一阶段出错后返回null
+    private <T> T take(BlockingQueue<T> queue, Stage stage) throws InterruptedException {
+        long begin = System.nanoTime();
+        try {
+            while (true) {
+                T item = queue.poll(1, TimeUnit.SECONDS);
+                if (item != null) return item;
+                if (error.get() != null) return null;
+            }
+        } finally {
+            stage.idle(begin);
+        }
+    }
+
+    private void fail(String stage, Throwable e) {
+        _.error("import stage[" + stage + "] error!", e);
+        error.compareAndSet(null, e);
+    }
+
+    private static String bottleneck(List<Map<String, Object>> stages) {
+        String name = null;
+        double max = -1;
+        for (Map<String, Object> stage : stages) {
+            double utilization = (Double) stage.get("utilization");
+            if (utilization > max) {
+                max = utilization;
+                name = (String) stage.get("name");
+            }
+        }
+        return name;
+    }
+
+    /**
+     * 一块完整的行
+     */
+    private static class Chunk {
+
+        private final byte[] bytes;
+        private final long   lineNo;
+
+        Chunk(byte[] bytes, long lineNo) {
+            this.bytes = bytes;
+            this.lineNo = lineNo;
+        }
+
+        int lines() {
+            int lines = 0;
+            for (byte b : bytes) {
+                if (b == '\n') lines++;
+            }
+            return lines;
+        }
+    }
+
+    /**
+     * 阶段统计,时间单位ns
+     */
+    private static class Stage {
+
+        private final String     name;
+        private final AtomicLong items   = new AtomicLong();
+        private final AtomicLong bytes   = new AtomicLong();
+        private final AtomicLong busy    = new AtomicLong();
+        private final AtomicLong blocked = new AtomicLong();
+        private final AtomicLong idle    = new AtomicLong();
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        void busy(long begin, long items, long bytes) {
+            this.busy.addAndGet(System.nanoTime() - begin);
+            this.items.addAndGet(items);
+            this.bytes.addAndGet(bytes);
+        }
+
+        void blocked(long begin) {
+            blocked.addAndGet(System.nanoTime() - begin);
+        }
+
+        void idle(long begin) {
+            idle.addAndGet(System.nanoTime() - begin);
+        }
+
+        Map<String, Object> stats(int threads) {
+            long _busy = busy.get(), total = Math.max(1, _busy + blocked.get() + idle.get());
+            Map<String, Object> stats = Maps.newLinkedHashMap();
+            stats.put("name", name);
+            stats.put("threads", threads);
+            stats.put("items", items.get());
+            stats.put("bytes", bytes.get());
+            stats.put("busyMs", TimeUnit.NANOSECONDS.toMillis(_busy));
+            stats.put("blockedMs", TimeUnit.NANOSECONDS.toMillis(blocked.get()));
+            stats.put("idleMs", TimeUnit.NANOSECONDS.toMillis(idle.get()));
+            stats.put("utilization", (double) _busy / total);
+            return stats;
+        }
+    }
+}
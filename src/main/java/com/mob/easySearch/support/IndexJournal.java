@@ -0,0 +1,377 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.lamfire.logger.Logger;
+import com.lamfire.logger.LoggerFactory;
+
+/**
+ * 本地写前日志,index请求先追加到日志再返回,由JournalReplayer异步写入ES
+ *
+ * <pre>
+ * 目录结构: dir/journal-0000000000.log ... dir/checkpoint
+ * 1 日志按segmentBytes分段,每段预先分配并内存映射,追加只是一次内存拷贝;写满后切换下一段
+ * 2 记录格式: [length:int][crc32:int][index,type,id,source],length最后写入,读到0表示后面还没有数据
+ * 3 checkpoint记录已写入ES的位置(段号/偏移),先写临时文件再rename;checkpoint之前的段删除
+ * 4 启动时从最后一段开头逐条校验crc,第一个不完整的记录处即为追加位置(进程在写一半时退出);
+ *   checkpoint每次都刷盘而段数据按间隔刷盘,掉电后追加位置可能在checkpoint之前,此时从checkpoint继续追加
+ * 进程退出时已追加的数据在page cache中不会丢;按fsyncInterval定时force到磁盘,机器掉电最多丢失一个间隔的数据
+ * 记录都带id,checkpoint保存前退出导致的重复写入会覆盖为相同的文档
+ * </pre>
+ *
+ * @author zxc Dec 12, 2016 10:41:27 AM
+ */
+public class IndexJournal {
+
+    private static final Logger _                 = LoggerFactory.getLogger(IndexJournal.class);
+
+    private static final String CHECKPOINT        = "checkpoint";
+    private static final int    HEADER            = 8;
+
+    private final File          dir;
+    private final int           segmentBytes;
+
+    // 写位置,append由this保护,volatile供读线程获取已提交的位置
+    private MappedByteBuffer    writeBuffer;
+    private volatile long       writeSegment;
+    private volatile int        writeOffset;
+    private final CRC32         crc               = new CRC32();
+
+    // 读位置,只由JournalReplayer线程访问
+    private MappedByteBuffer    readBuffer;
+    private long                readBufferSegment = -1;
+    private volatile long       readSegment;
+    private volatile int        readOffset;
+
+    private final AtomicLong    appended          = new AtomicLong();
+    private final AtomicLong    committed         = new AtomicLong();
+    private final AtomicLong    bytes             = new AtomicLong();
+
+    /**
+     * @param dir 日志目录
+     * @param segmentBytes 每段字节数
+     * @throws IOException
+     */
+    public IndexJournal(File dir, int segmentBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        open();
+    }
+
+    /**
+     * 追加一条记录,返回时已写入映射内存
+     *
+     * @param index
+     * @param type
+     * @param id
+     * @param source JSON
+     * @throws IOException 记录超过段大小或创建新段失败
+     */
+    public void append(String index, String type, String id, byte[] source) throws IOException {
+        byte[] payload = encode(index, type, id, source);
+        int length = HEADER + payload.length;
+        if (length > segmentBytes) throw new IOException("journal record too large: " + length);
+        synchronized (this) {
+            if (writeOffset + length > segmentBytes) roll();
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            writeBuffer.position(writeOffset + HEADER);
+            writeBuffer.put(payload);
+            writeBuffer.putInt(writeOffset + 4, (int) crc.getValue());
+            writeBuffer.putInt(writeOffset, payload.length);
+            writeOffset += length;
+        }
+        appended.incrementAndGet();
+        bytes.addAndGet(length);
+    }
+
+    /**
+     * 把映射内存刷到磁盘
+     */
+    public synchronized void force() {
+        writeBuffer.force();
+    }
+
+    /**
+     * 从checkpoint读取最多maxRecords条记录,不移动checkpoint
+     *
+     * @param maxRecords
+     * @param maxBytes
+     * @return 没有新数据时为空
+     * @throws IOException
+     */
+    public List<Record> read(int maxRecords, long maxBytes) throws IOException {
+        long endSegment;
+        int endOffset;
+        synchronized (this) {
+            endSegment = writeSegment;
+            endOffset = writeOffset;
+        }
+        List<Record> records = Lists.newArrayList();
+        long segment = readSegment, size = 0;
+        int offset = readOffset;
+        while (records.size() < maxRecords && size < maxBytes) {
+            if (segment == endSegment && offset >= endOffset) break;
+            MappedByteBuffer buffer = readBuffer(segment);
+            int length = offset + HEADER > segmentBytes ? 0 : buffer.getInt(offset);
+            if (length <= 0) {
+                // 当前段已读完(剩余不足一个记录头时也是),切换下一段
+                if (segment >= endSegment) break;
+                segment++;
+                offset = 0;
+                continue;
+            }
+            if (length > segmentBytes - offset - HEADER) {
+                throw new IOException("journal segment " + segment + " corrupted at " + offset + ", length=" + length);
+            }
+            byte[] payload = new byte[length];
+            buffer.position(offset + HEADER);
+            buffer.get(payload);
+            CRC32 _crc = new CRC32();
+            _crc.update(payload, 0, length);
+            if ((int) _crc.getValue() != buffer.getInt(offset + 4)) {
+                throw new IOException("journal segment " + segment + " corrupted at " + offset);
+            }
+            offset += HEADER + length;
+            size += HEADER + length;
+            records.add(decode(payload, segment, offset));
+        }
+        return records;
+    }
+
+    /**
+     * 记录已写入ES,移动checkpoint并删除已读完的段
+     *
+     * @param last 最后一条已写入的记录
+     * @param count 已写入的记录数
+     * @throws IOException
+     */
+    public void commit(Record last, int count) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("segment", String.valueOf(last.segment));
+        props.setProperty("offset", String.valueOf(last.offset));
+        File file = new File(dir, CHECKPOINT), tmp = new File(dir, CHECKPOINT + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            props.store(out, null);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) throw new IOException("can't rename " + tmp + " to " + file);
+        long previous = readSegment;
+        readSegment = last.segment;
+        readOffset = last.offset;
+        committed.addAndGet(count);
+        for (long segment = previous; segment < readSegment; segment++) {
+            if (!segment(segment).delete()) _.error("can't delete journal segment " + segment(segment));
+        }
+    }
+
+    /**
+     * @return 未写入ES的字节数(近似)
+     */
+    public long pending() {
+        long segment, offset;
+        synchronized (this) {
+            segment = writeSegment;
+            offset = writeOffset;
+        }
+        return (segment - readSegment) * segmentBytes + offset - readOffset;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = Maps.newLinkedHashMap();
+        stats.put("dir", dir.getAbsolutePath());
+        stats.put("writeSegment", writeSegment);
+        stats.put("writeOffset", writeOffset);
+        stats.put("readSegment", readSegment);
+        stats.put("readOffset", readOffset);
+        stats.put("pendingBytes", pending());
+        stats.put("appended", appended.get());
+        stats.put("committed", committed.get());
+        stats.put("bytes", bytes.get());
+        return stats;
+    }
+
+    // *********************************************** private method *******************************************//
+
+    private void open() throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("can't create dir " + dir);
+        SortedMap<Long, File> segments = new TreeMap<Long, File>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith("journal-") && name.endsWith(".log")) {
+                    segments.put(Long.parseLong(name.substring(8, name.length() - 4)), file);
+                }
+            }
+        }
+        File checkpoint = new File(dir, CHECKPOINT);
+        if (checkpoint.exists()) {
+            Properties props = new Properties();
+            InputStream in = new FileInputStream(checkpoint);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+            readSegment = Long.parseLong(props.getProperty("segment", "0"));
+            readOffset = Integer.parseInt(props.getProperty("offset", "0"));
+        } else if (!segments.isEmpty()) {
+            readSegment = segments.firstKey();
+        }
+        if (!segments.isEmpty() && segments.firstKey() > readSegment) {
+            readSegment = segments.firstKey();
+            readOffset = 0;
+        }
+
+        writeSegment = segments.isEmpty() ? readSegment : Math.max(readSegment, segments.lastKey());
+        writeBuffer = map(writeSegment);
+        writeOffset = recover(writeBuffer);
+        if (writeSegment == readSegment && writeOffset < readOffset) {
+            // 掉电丢失了已写入ES的数据,从checkpoint继续追加,读线程不会从记录中间开始解析
+            _.error("journal segment " + writeSegment + " recovered to " + writeOffset + " before checkpoint "
+                    + readOffset);
+            writeOffset = readOffset;
+            if (writeOffset + 4 <= segmentBytes) writeBuffer.putInt(writeOffset, 0);
+        }
+        _.info("journal " + dir + " opened, read=" + readSegment + ":" + readOffset + ", write=" + writeSegment + ":"
+               + writeOffset);
+    }
+
+    // 逐条校验,返回第一个不完整记录的位置
+    private int recover(MappedByteBuffer buffer) {
+        int offset = 0;
+        CRC32 _crc = new CRC32();
+        while (offset + HEADER <= segmentBytes) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || length > segmentBytes - offset - HEADER) break;
+            byte[] payload = new byte[length];
+            buffer.position(offset + HEADER);
+            buffer.get(payload);
+            _crc.reset();
+            _crc.update(payload, 0, length);
+            if ((int) _crc.getValue() != buffer.getInt(offset + 4)) {
+                _.error("journal segment " + writeSegment + " truncated at " + offset);
+                break;
+            }
+            offset += HEADER + length;
+        }
+        // 清掉不完整记录的长度,读线程不会把它当成数据
+        if (offset + 4 <= segmentBytes) buffer.putInt(offset, 0);
+        return offset;
+    }
+
+    private void roll() throws IOException {
+        if (writeOffset + 4 <= segmentBytes) writeBuffer.putInt(writeOffset, 0);
+        writeBuffer.force();
+        MappedByteBuffer buffer = map(writeSegment + 1);
+        writeBuffer = buffer;
+        writeOffset = 0;
+        writeSegment++;
+    }
+
+    private MappedByteBuffer readBuffer(long segment) throws IOException {
+        if (readBufferSegment != segment) {
+            readBuffer = map(segment);
+            readBufferSegment = segment;
+        }
+        return readBuffer;
+    }
+
+    private MappedByteBuffer map(long segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment(segment), "rw");
+        try {
+            if (file.length() < segmentBytes) file.setLength(segmentBytes);
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        } finally {
+            file.close();
+        }
+    }
+
+    private File segment(long segment) {
+        return new File(dir, String.format("journal-%010d.log", segment));
+    }
+
+    private static byte[] encode(String index, String type, String id, byte[] source) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(source.length + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(index);
+        out.writeUTF(type);
+        out.writeUTF(id);
+        out.writeInt(source.length);
+        out.write(source);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Record decode(byte[] payload, long segment, int offset) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        Record record = new Record(segment, offset);
+        record.index = in.readUTF();
+        record.type = in.readUTF();
+        record.id = in.readUTF();
+        record.source = new byte[in.readInt()];
+        in.readFully(record.source);
+        return record;
+    }
+
+    /**
+     * 日志中的一条index请求,segment/offset为这条记录之后的位置
+     */
+    public static class Record {
+
+        private final long segment;
+        private final int  offset;
+        private String     index;
+        private String     type;
+        private String     id;
+        private byte[]     source;
+
+        Record(long segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        public String getIndex() {
+            return index;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public byte[] getSource() {
+            return source;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.lamfire.logger.Logger;
+import com.lamfire.logger.LoggerFactory;
+
+/**
+ * 把IndexJournal中的记录按bulk写入ES
+ *
+ * <pre>
+ * 1 从checkpoint读取一批记录组成bulk,经AdaptiveBulk提交(被拒绝的条目退避重试)
+ * 2 全部写入(或因mapping等错误确定无法写入)后移动checkpoint;确定无法写入的记录计入dropped并记录日志
+ * 3 整个bulk失败(ES不可用)或重试后仍被拒绝时不移动checkpoint,标记集群不可用,
+ *   之后每healthInterval检查一次cluster health,不是red时恢复回放,从checkpoint重新提交这一批
+ * 4 另一个线程按fsyncInterval把日志force到磁盘
+ * </pre>
+ *
+ * @author zxc Dec 12, 2016 3:27:50 PM
+ */
+public class JournalReplayer {
+
+    private static final Logger _          = LoggerFactory.getLogger(JournalReplayer.class);
+
+    private final IndexJournal  journal;
+    private final Client        client;
+    private final AdaptiveBulk  adaptiveBulk;
+    private final int           batchActions;
+    private final long          batchBytes;
+    private final long          idleWait;
+    private final long          healthInterval;
+    private final long          fsyncInterval;
+
+    private volatile boolean    running    = false;
+    private volatile boolean    available  = true;
+    private final AtomicLong    replayed   = new AtomicLong();
+    private final AtomicLong    dropped    = new AtomicLong();
+    private final AtomicLong    bulks      = new AtomicLong();
+    private final AtomicLong    outages    = new AtomicLong();
+    private volatile String     lastError;
+
+    /**
+     * @param journal
+     * @param client
+     * @param adaptiveBulk
+     * @param batchActions 每个bulk最多记录数
+     * @param batchBytes 每个bulk最多字节数
+     * @param idleWait 没有新记录时的等待ms
+     * @param healthInterval 集群不可用时检查间隔ms
+     * @param fsyncInterval 日志刷盘间隔ms
+     */
+    public JournalReplayer(IndexJournal journal, Client client, AdaptiveBulk adaptiveBulk, int batchActions,
+                           long batchBytes, long idleWait, long healthInterval, long fsyncInterval) {
+        this.journal = journal;
+        this.client = client;
+        this.adaptiveBulk = adaptiveBulk;
+        this.batchActions = batchActions;
+        this.batchBytes = batchBytes;
+        this.idleWait = idleWait;
+        this.healthInterval = healthInterval;
+        this.fsyncInterval = fsyncInterval;
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        ThreadUtil.startThread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        if (!replay()) ThreadUtil.sleep(idleWait);
+                    } catch (Throwable e) {
+                        lastError = String.valueOf(e.getMessage());
+                        _.error("journal replay error!", e);
+                        ThreadUtil.sleep(healthInterval);
+                    }
+                }
+            }
+        }, "JournalReplayer");
+        ThreadUtil.startThread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (running) {
+                    ThreadUtil.sleep(fsyncInterval);
+                    try {
+                        journal.force();
+                    } catch (Throwable e) {
+                        _.error("journal force error!", e);
+                    }
+                }
+                journal.force();
+            }
+        }, "JournalFlusher");
+    }
+
+    public synchronized void stop() {
+        running = false;
+    }
+
+    /**
+     * bulk写入前的处理,如reindex期间的双写
+     *
+     * @param bulk
+     * @return
+     */
+    protected BulkRequest prepare(BulkRequest bulk) {
+        return bulk;
+    }
+
+    /**
+     * 一批记录写入后回调,参数为涉及的index
+     *
+     * @param indices
+     */
+    protected void onBulk(Set<String> indices) {
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = Maps.newLinkedHashMap();
+        stats.put("running", running);
+        stats.put("available", available);
+        stats.put("replayed", replayed.get());
+        stats.put("dropped", dropped.get());
+        stats.put("bulks", bulks.get());
+        stats.put("outages", outages.get());
+        if (lastError != null) stats.put("lastError", lastError);
+        stats.put("journal", journal.stats());
+        return stats;
+    }
+
+    // *********************************************** private method *******************************************//
+
+    // 提交一批,没有新记录或集群不可用时返回false
+    private boolean replay() throws Exception {
+        if (!available && !checkHealth()) return false;
+        List<IndexJournal.Record> records = journal.read(batchActions, batchBytes);
+        if (records.isEmpty()) return false;
+
+        BulkRequest bulk = new BulkRequest();
+        Set<String> indices = Sets.newHashSet();
+        for (IndexJournal.Record record : records) {
+            bulk.add(new IndexRequest(record.getIndex(), record.getType(), record.getId()).source(record.getSource()));
+            indices.add(record.getIndex());
+        }
+        AdaptiveBulk.Result result = adaptiveBulk.execute(prepare(bulk));
+        bulks.incrementAndGet();
+        if (result.isRequestFailed() || result.getRejected() > 0) {
+            available = false;
+            outages.incrementAndGet();
+            lastError = result.getError();
+            _.error("journal replay paused, cluster unavailable: " + result.getError());
+            return false;
+        }
+        if (result.getFailed() > 0) {
+            dropped.addAndGet(result.getFailed());
+            lastError = result.getError();
+            _.error("journal replay dropped " + result.getFailed() + " records: " + result.getError());
+        }
+        journal.commit(records.get(records.size() - 1), records.size());
+        replayed.addAndGet(records.size() - result.getFailed());
+        onBulk(indices);
+        return true;
+    }
+
+    private boolean checkHealth() {
+        try {
+            ClusterHealthStatus status = client.admin().cluster().prepareHealth()//
+            .setTimeout(TimeValue.timeValueMillis(healthInterval))//
+            .execute().actionGet(TimeValue.timeValueMillis(healthInterval * 2)).getStatus();
+            if (status != ClusterHealthStatus.RED) {
+                available = true;
+                _.info("journal replay resumed, cluster status=" + status + ", pending=" + journal.pending());
+                return true;
+            }
+        } catch (Throwable e) {
+            lastError = String.valueOf(e.getMessage());
+        }
+        ThreadUtil.sleep(healthInterval);
+        return false;
+    }
+}
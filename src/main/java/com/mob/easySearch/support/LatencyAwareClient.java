@@ -0,0 +1,439 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.FilterClient;
+import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.hppc.cursors.ObjectObjectCursor;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.transport.ConnectTransportException;
+import org.elasticsearch.transport.NodeDisconnectedException;
+import org.elasticsearch.transport.NodeNotConnectedException;
+import org.elasticsearch.transport.ReceiveTimeoutTransportException;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.lamfire.logger.Logger;
+import com.lamfire.logger.LoggerFactory;
+
+/**
+ * 按节点延迟选择数据节点的Client
+ *
+ * <pre>
+ * 1 seed为es.nodes配置的TransportClient,数据节点为sniffInterval从cluster state获取的{@link Nodes},
+ *   每个数据节点一个只连接该节点的TransportClient;各通道的LatencyAwareClient共用同一个Nodes,只有seed是各自的
+ * 2 记录每个节点响应时间的EWMA和在途请求数,score = (ewma + 1) * (inflight + 1);
+ *   每个请求随机取两个可用节点,发给score小的(power of two choices,避免所有请求同时涌向同一个节点)
+ * 3 请求没有发出去(连接失败/节点断开/没有可用连接)时重试一次:另一个候选节点可用就发给它,否则发给seed,
+ *   seed连接es.nodes的全部地址,由TransportClient自己在地址之间重试;响应超时不重试,请求可能已经执行
+ * 4 连续ejectFailures次连接类失败(节点断开/超时)的节点摘除,probeInterval后用cluster health探测,成功后恢复
+ * 5 sniff时ping每个节点并计入EWMA,长时间没被选中的节点延迟也能更新
+ * 没有可用节点时退回seed
+ * </pre>
+ *
+ * @author zxc Dec 14, 2016 2:08:33 PM
+ */
+public class LatencyAwareClient extends FilterClient {
+
+    private final TransportClient seed;
+    private final Nodes           nodes;
+
+    /**
+     * @param seed es.nodes配置的客户端,没有可用节点或重试时使用
+     * @param nodes 各通道共用的数据节点
+     */
+    public LatencyAwareClient(TransportClient seed, Nodes nodes) {
+        super(seed);
+        this.seed = seed;
+        this.nodes = nodes;
+    }
+
+    @Override
+    public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, Client>> ActionFuture<Response> execute(Action<Request, Response, RequestBuilder> action,
+                                                                                                                                                                                              Request request) {
+        PlainActionFuture<Response> future = PlainActionFuture.newFuture();
+        execute(action, request, future);
+        return future;
+    }
+
+    @Override
+    public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, Client>> void execute(Action<Request, Response, RequestBuilder> action,
+                                                                                                                                                                                Request request,
+                                                                                                                                                                                ActionListener<Response> listener) {
+        Node[] candidates = nodes.select();
+        if (candidates == null) {
+            seed.execute(action, request, listener);
+            return;
+        }
+        execute(action, request, listener, candidates[0], candidates[1], true);
+    }
+
+    /**
+     * @return 每个节点的地址/EWMA延迟/在途请求数/请求数/失败数/是否摘除
+     */
+    public List<Map<String, Object>> stats() {
+        return nodes.stats();
+    }
+
+    // *********************************************** private method *******************************************//
+
+    // retry为true时请求没有发出去会重试一次:发给other,other为null或已摘除时发给seed
+    private <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, Client>> void execute(final Action<Request, Response, RequestBuilder> action,
+                                                                                                                                                                                 final Request request,
+                                                                                                                                                                                 final ActionListener<Response> listener,
+                                                                                                                                                                                 final Node node,
+                                                                                                                                                                                 final Node other,
+                                                                                                                                                                                 final boolean retry) {
+        final long start = System.nanoTime();
+        node.inflight.incrementAndGet();
+        try {
+            node.client.execute(action, request, new ActionListener<Response>() {
+
+                @Override
+                public void onResponse(Response response) {
+                    node.inflight.decrementAndGet();
+                    node.onSuccess(System.nanoTime() - start, nodes.config.alpha);
+                    listener.onResponse(response);
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    node.inflight.decrementAndGet();
+                    nodes.onNodeFailure(node, System.nanoTime() - start, e);
+                    if (retry && isNotSent(e)) retry(action, request, listener, node, other);
+                    else listener.onFailure(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            node.inflight.decrementAndGet();
+            nodes.onNodeFailure(node, System.nanoTime() - start, e);
+            if (!retry || !isNotSent(e)) throw e;
+            retry(action, request, listener, node, other);
+        }
+    }
+
+    private <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, Client>> void retry(Action<Request, Response, RequestBuilder> action,
+                                                                                                                                                                               Request request,
+                                                                                                                                                                               ActionListener<Response> listener,
+                                                                                                                                                                               Node failed,
+                                                                                                                                                                               Node other) {
+        if (other != null && other != failed && !other.ejected) execute(action, request, listener, other, null, false);
+        else seed.execute(action, request, listener);
+    }
+
+    // 连接类失败,节点不可用
+    private static boolean isConnectFailure(Throwable e) {
+        Throwable cause = ExceptionsHelper.unwrapCause(e);
+        return cause instanceof ConnectTransportException || cause instanceof NodeNotConnectedException
+               || cause instanceof NodeDisconnectedException || cause instanceof ReceiveTimeoutTransportException
+               || cause instanceof NoNodeAvailableException;
+    }
+
+    // 连接类失败中请求肯定没有发到节点的,可以安全重试
+    private static boolean isNotSent(Throwable e) {
+        Throwable cause = ExceptionsHelper.unwrapCause(e);
+        return isConnectFailure(e) && !(cause instanceof ReceiveTimeoutTransportException);
+    }
+
+    /**
+     * 数据节点:发现、EWMA、摘除和探测,由各通道的LatencyAwareClient共用,只有一个NodeSniffer线程
+     */
+    public static class Nodes {
+
+        private static final Logger               _         = LoggerFactory.getLogger(Nodes.class);
+
+        private final TransportClient             seed;
+        private final Settings                    settings;
+        private final Config                      config;
+        private final ConcurrentMap<String, Node> nodes     = Maps.newConcurrentMap();
+        private final Random                      random    = new Random();
+        private volatile List<Node>               available = Lists.newArrayList();
+        private volatile boolean                  running   = true;
+        private long                              lastSniff = 0;
+
+        /**
+         * @param seed 用于sniff的客户端(admin通道的seed)
+         * @param settings 创建节点客户端的settings(cluster.name/ping超时等)
+         * @param config
+         */
+        public Nodes(TransportClient seed, Settings settings, Config config) {
+            this.seed = seed;
+            this.settings = settings;
+            this.config = config;
+            sniff();
+            ThreadUtil.startThread(new Runnable() {
+
+                @Override
+                public void run() {
+                    while (running) {
+                        ThreadUtil.sleep(Math.min(Nodes.this.config.sniffInterval, Nodes.this.config.probeInterval));
+                        try {
+                            maintain();
+                        } catch (Throwable e) {
+                            _.error("node sniff error!", e);
+                        }
+                    }
+                }
+            }, "NodeSniffer");
+        }
+
+        public void close() {
+            running = false;
+            for (Node node : nodes.values())
+                node.client.close();
+            nodes.clear();
+            refreshAvailable();
+        }
+
+        public List<Map<String, Object>> stats() {
+            List<Map<String, Object>> stats = Lists.newArrayList();
+            for (Node node : nodes.values())
+                stats.add(node.stats());
+            return stats;
+        }
+
+        // 随机取两个可用节点,score小的在前;只有一个节点时第二个为null,没有可用节点时返回null
+        private Node[] select() {
+            List<Node> candidates = available;
+            int size = candidates.size();
+            if (size == 0) return null;
+            if (size == 1) return new Node[] { candidates.get(0), null };
+            Node a = candidates.get(random.nextInt(size));
+            Node b = candidates.get(random.nextInt(size - 1));
+            if (b == a) b = candidates.get(size - 1);
+            return a.score() <= b.score() ? new Node[] { a, b } : new Node[] { b, a };
+        }
+
+        private void onNodeFailure(Node node, long nanos, Throwable e) {
+            if (!isConnectFailure(e)) {
+                // 查询本身的错误,节点是正常的
+                node.onSuccess(nanos, config.alpha);
+                return;
+            }
+            if (node.onFailure() >= config.ejectFailures && !node.ejected) {
+                node.ejected = true;
+                node.probeAt = System.currentTimeMillis() + config.probeInterval;
+                _.error("node " + node.address + " ejected after " + config.ejectFailures + " failures: "
+                        + e.getMessage());
+                refreshAvailable();
+            }
+        }
+
+        private void maintain() {
+            long now = System.currentTimeMillis();
+            if (now - lastSniff >= config.sniffInterval) {
+                sniff();
+                lastSniff = now;
+                for (Node node : nodes.values()) {
+                    if (!node.ejected) ping(node);
+                }
+            }
+            for (Node node : nodes.values()) {
+                if (node.ejected && now >= node.probeAt) probe(node);
+            }
+        }
+
+        // 从cluster state获取数据节点,增加新节点,关闭已离开的节点;不sniff时只用es.nodes配置的节点
+        private synchronized void sniff() {
+            if (!running) return;
+            if (!config.sniff) {
+                for (TransportAddress address : seed.transportAddresses()) {
+                    if (nodes.containsKey(address.toString())) continue;
+                    TransportClient client = new TransportClient(settings).addTransportAddress(address);
+                    nodes.put(address.toString(), new Node(address.toString(), address.toString(), client));
+                }
+                refreshAvailable();
+                return;
+            }
+            ImmutableOpenMap<String, DiscoveryNode> dataNodes;
+            try {
+                dataNodes = seed.admin().cluster().prepareState().clear().setNodes(true)//
+                .execute().actionGet(config.pingTimeout).getState().nodes().dataNodes();
+            } catch (Throwable e) {
+                _.error("sniff nodes error: " + e.getMessage());
+                return;
+            }
+            Set<String> alive = Sets.newHashSet();
+            for (ObjectObjectCursor<String, DiscoveryNode> cursor : dataNodes) {
+                alive.add(cursor.key);
+                if (nodes.containsKey(cursor.key)) continue;
+                TransportClient client = new TransportClient(settings).addTransportAddress(cursor.value.address());
+                nodes.put(cursor.key, new Node(cursor.key, cursor.value.address().toString(), client));
+                _.info("node " + cursor.value.name() + "[" + cursor.value.address() + "] added");
+            }
+            for (String id : Lists.newArrayList(nodes.keySet())) {
+                if (alive.contains(id)) continue;
+                Node node = nodes.remove(id);
+                if (node != null) {
+                    node.client.close();
+                    _.info("node " + node.address + " removed");
+                }
+            }
+            refreshAvailable();
+        }
+
+        private void ping(Node node) {
+            long start = System.nanoTime();
+            try {
+                node.client.admin().cluster().prepareHealth().execute().actionGet(config.pingTimeout);
+                node.onSuccess(System.nanoTime() - start, config.alpha);
+            } catch (Throwable e) {
+                onNodeFailure(node, System.nanoTime() - start, e);
+            }
+        }
+
+        // 摘除的节点探测成功后恢复,EWMA重置为当前可用节点的平均值,避免恢复后一下子接收全部请求
+        private void probe(Node node) {
+            long start = System.nanoTime();
+            try {
+                node.client.admin().cluster().prepareHealth().execute().actionGet(config.pingTimeout);
+                double sum = 0;
+                List<Node> _available = available;
+                for (Node _node : _available)
+                    sum += _node.ewma;
+                node.reset(_available.isEmpty() ? (System.nanoTime() - start) / 1e6 : sum / _available.size());
+                _.info("node " + node.address + " recovered");
+                refreshAvailable();
+            } catch (Throwable e) {
+                node.probeAt = System.currentTimeMillis() + config.probeInterval;
+            }
+        }
+
+        private synchronized void refreshAvailable() {
+            List<Node> _available = Lists.newArrayList();
+            for (Node node : nodes.values()) {
+                if (!node.ejected) _available.add(node);
+            }
+            available = _available;
+        }
+    }
+
+    /**
+     * 一个数据节点
+     */
+    private static class Node {
+
+        private final String          id;
+        private final String          address;
+        private final TransportClient client;
+        private final AtomicInteger   inflight = new AtomicInteger();
+        private final AtomicLong      requests = new AtomicLong();
+        private final AtomicLong      failures = new AtomicLong();
+        private volatile double       ewma     = 0;
+        private volatile int          consecutiveFailures;
+        private volatile boolean      ejected  = false;
+        private volatile long         probeAt;
+
+        Node(String id, String address, TransportClient client) {
+            this.id = id;
+            this.address = address;
+            this.client = client;
+        }
+
+        double score() {
+            return (ewma + 1) * (inflight.get() + 1);
+        }
+
+        synchronized void onSuccess(long nanos, double alpha) {
+            double millis = nanos / 1e6;
+            ewma = ewma == 0 ? millis : alpha * millis + (1 - alpha) * ewma;
+            consecutiveFailures = 0;
+            requests.incrementAndGet();
+        }
+
+        synchronized int onFailure() {
+            requests.incrementAndGet();
+            failures.incrementAndGet();
+            return ++consecutiveFailures;
+        }
+
+        synchronized void reset(double _ewma) {
+            ewma = _ewma;
+            consecutiveFailures = 0;
+            ejected = false;
+        }
+
+        Map<String, Object> stats() {
+            Map<String, Object> stats = Maps.newLinkedHashMap();
+            stats.put("id", id);
+            stats.put("address", address);
+            stats.put("ewma", Math.round(ewma * 100) / 100d);
+            stats.put("inflight", inflight.get());
+            stats.put("requests", requests.get());
+            stats.put("failures", failures.get());
+            stats.put("ejected", ejected);
+            return stats;
+        }
+    }
+
+    /**
+     * 节点选择参数
+     */
+    public static class Config {
+
+        private boolean   sniff         = true;
+        private long      sniffInterval = 30000;
+        private double    alpha         = 0.3;
+        private int       ejectFailures = 3;
+        private long      probeInterval = 5000;
+        private TimeValue pingTimeout   = TimeValue.timeValueSeconds(5);
+
+        /**
+         * @param sniff 是否从集群发现数据节点,否则只用seed
+         * @param sniffInterval 发现节点/ping的间隔ms
+         */
+        public Config sniff(boolean sniff, long sniffInterval) {
+            this.sniff = sniff;
+            this.sniffInterval = sniffInterval;
+            return this;
+        }
+
+        /**
+         * @param alpha EWMA中新样本的权重
+         */
+        public Config alpha(double alpha) {
+            this.alpha = alpha;
+            return this;
+        }
+
+        /**
+         * @param ejectFailures 连续失败多少次摘除
+         * @param probeInterval 摘除后的探测间隔ms
+         * @param pingTimeout 探测超时ms
+         */
+        public Config eject(int ejectFailures, long probeInterval, long pingTimeout) {
+            this.ejectFailures = ejectFailures;
+            this.probeInterval = probeInterval;
+            this.pingTimeout = TimeValue.timeValueMillis(pingTimeout);
+            return this;
+        }
+
+        public String getPingTimeout() {
+            return pingTimeout.toString();
+        }
+    }
+}
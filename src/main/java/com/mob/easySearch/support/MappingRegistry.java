@@ -0,0 +1,224 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsResponse;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.hppc.cursors.ObjectCursor;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.lamfire.logger.Logger;
+import com.lamfire.logger.LoggerFactory;
+
+/**
+ * 进程内的mapping注册表,缓存每个index/type的字段定义,避免每次搜索都请求GetMappings
+ *
+ * <pre>
+ * 1 schema写操作(createMapping/dropIndex/deleteMapping)后主动刷新对应index
+ * 2 后台线程按间隔比较cluster state version,变化时全量刷新
+ * 3 按alias访问时,缓存在alias名下的是其指向的index的mapping,全量刷新时重新解析alias
+ * 4 不存在的index/type在missTtl内不再重复加载,避免每次搜索都请求ES
+ * </pre>
+ *
+ * @author zxc Nov 21, 2016 3:12:40 PM
+ */
+public class MappingRegistry {
+
+    private static final Logger                                                      _            = LoggerFactory.getLogger(MappingRegistry.class);
+
+    private final ElasticsearchHelper                                                es;
+    // indexName -> indexType -> properties
+    private final ConcurrentMap<String, ConcurrentMap<String, Map<String, Object>>> mappings     = Maps.newConcurrentMap();
+    // indexName#indexType -> 不存在的结果过期时间
+    private final ConcurrentMap<String, Long>                                        misses       = Maps.newConcurrentMap();
+    private volatile long                                                            missTtl      = 5000;
+    private volatile long                                                            stateVersion = -1;
+    private volatile boolean                                                         loaded       = false;
+    private volatile boolean                                                         running      = false;
+
+    public MappingRegistry(ElasticsearchHelper es) {
+        this.es = es;
+    }
+
+    /**
+     * @param missTtl 不存在的index/type缓存时间ms,0不缓存
+     */
+    public void configure(long missTtl) {
+        this.missTtl = missTtl;
+    }
+
+    /**
+     * 获取index/type下的全部字段名,本地没有则加载该index
+     *
+     * @param indexName
+     * @param indexType
+     * @return
+     */
+    public Set<String> fields(String indexName, String indexType) {
+        return ImmutableSet.copyOf(properties(indexName, indexType).keySet());
+    }
+
+    /**
+     * 获取index/type的properties定义
+     *
+     * @param indexName
+     * @param indexType
+     * @return
+     */
+    public Map<String, Object> properties(String indexName, String indexType) {
+        Map<String, Map<String, Object>> types = mappings.get(indexName);
+        if (types == null || !types.containsKey(indexType)) {
+            String key = indexName + "#" + indexType;
+            Long expire = misses.get(key);
+            if (expire != null && expire > System.currentTimeMillis()) return Collections.emptyMap();
+            refresh(indexName);
+            types = mappings.get(indexName);
+            if ((types == null || !types.containsKey(indexType)) && missTtl > 0) {
+                misses.put(key, System.currentTimeMillis() + missTtl);
+            }
+        }
+        if (types == null || types.get(indexType) == null) return Collections.emptyMap();
+        return types.get(indexType);
+    }
+
+    /**
+     * 全部index的mapping(indexName -> indexType -> properties)
+     *
+     * @return
+     */
+    public Map<String, Map<String, Map<String, Object>>> all() {
+        if (!loaded) refresh();
+        Map<String, Map<String, Map<String, Object>>> all = Maps.newTreeMap();
+        for (Map.Entry<String, ConcurrentMap<String, Map<String, Object>>> entry : mappings.entrySet()) {
+            all.put(entry.getKey(), new TreeMap<String, Map<String, Object>>(entry.getValue()));
+        }
+        return all;
+    }
+
+    /**
+     * 全量刷新
+     */
+    public synchronized void refresh() {
+        try {
+            GetMappingsResponse res = es.getMapping();
+            ConcurrentMap<String, ConcurrentMap<String, Map<String, Object>>> _mappings = parse(res);
+            // 不是实际index的key是alias,重新解析其指向的index;alias已删除时refresh(alias)会移除
+            Set<String> aliases = Sets.newHashSet(mappings.keySet());
+            aliases.removeAll(_mappings.keySet());
+            mappings.putAll(_mappings);
+            misses.clear();
+            for (String alias : aliases)
+                refresh(alias);
+            loaded = true;
+            _.info("mapping registry refreshed, indices=" + mappings.size());
+        } catch (Exception e) {
+            _.error("mapping registry refresh error!", e);
+        }
+    }
+
+    /**
+     * 刷新单个index,index不存在时移除
+     *
+     * @param indexName
+     */
+    public void refresh(String indexName) {
+        clearMisses(indexName);
+        try {
+            if (!es.existsIndex(indexName)) {
+                mappings.remove(indexName);
+                return;
+            }
+            ConcurrentMap<String, ConcurrentMap<String, Map<String, Object>>> _mappings = parse(es.getMapping(indexName));
+            ConcurrentMap<String, Map<String, Object>> types = _mappings.get(indexName);
+            if (types == null) {
+                // indexName是alias,返回的是实际index的mapping
+                types = Maps.newConcurrentMap();
+                for (ConcurrentMap<String, Map<String, Object>> _types : _mappings.values())
+                    types.putAll(_types);
+            }
+            mappings.put(indexName, types);
+        } catch (Exception e) {
+            _.error("mapping registry refresh '" + indexName + "' error!", e);
+        }
+    }
+
+    /**
+     * 移除index,下次访问时重新加载
+     *
+     * @param indexName
+     */
+    public void invalidate(String indexName) {
+        mappings.remove(indexName);
+        clearMisses(indexName);
+    }
+
+    /**
+     * 启动后台刷新线程,cluster state version变化时全量刷新
+     *
+     * @param interval 检查间隔ms
+     */
+    public synchronized void startRefresher(final long interval) {
+        if (running || interval <= 0) return;
+        running = true;
+        ThreadUtil.startThread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (running) {
+                    ThreadUtil.sleep(interval);
+                    try {
+                        long version = es.getClient().admin().cluster().prepareState().clear().execute()//
+                        .actionGet(Timeouts.admin()).getState().version();
+                        if (version != stateVersion) {
+                            refresh();
+                            stateVersion = version;
+                        }
+                    } catch (Exception e) {
+                        _.error("mapping registry check cluster state error!", e);
+                    }
+                }
+            }
+        }, "MappingRegistry");
+    }
+
+    public void stopRefresher() {
+        running = false;
+    }
+
+    // *********************************************** private method *******************************************//
+
+    private void clearMisses(String indexName) {
+        String prefix = indexName + "#";
+        for (String key : misses.keySet()) {
+            if (key.startsWith(prefix)) misses.remove(key);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private ConcurrentMap<String, ConcurrentMap<String, Map<String, Object>>> parse(GetMappingsResponse res) throws Exception {
+        ConcurrentMap<String, ConcurrentMap<String, Map<String, Object>>> _mappings = Maps.newConcurrentMap();
+        ImmutableOpenMap<String, ImmutableOpenMap<String, MappingMetaData>> indices = res.mappings();
+        for (ObjectCursor<String> indexName : indices.keys()) {
+            ConcurrentMap<String, Map<String, Object>> types = Maps.newConcurrentMap();
+            ImmutableOpenMap<String, MappingMetaData> indexTypes = indices.get(indexName.value);
+            for (ObjectCursor<String> indexType : indexTypes.keys()) {
+                Map<String, Object> sourceMap = indexTypes.get(indexType.value).getSourceAsMap();
+                Map<String, Object> properties = (Map<String, Object>) sourceMap.get("properties");
+                if (properties == null) properties = Collections.emptyMap();
+                types.put(indexType.value, Collections.unmodifiableMap(properties));
+            }
+            _mappings.put(indexName.value, types);
+        }
+        return _mappings;
+    }
+}
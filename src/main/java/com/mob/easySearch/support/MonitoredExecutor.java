@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Maps;
+import com.lamfire.logger.Logger;
+import com.lamfire.logger.LoggerFactory;
+import com.lamfire.utils.StringUtils;
+
+/**
+ * 有界队列的线程池,统计队列深度/活跃线程/完成任务数/任务等待及执行耗时
+ *
+ * <pre>
+ * 队列满时的策略:
+ * ABORT       抛出RejectedExecutionException,由接口层返回429
+ * CALLER_RUNS 由提交任务的线程直接执行,自然形成背压
+ * </pre>
+ *
+ * @author zxc Nov 25, 2016 4:41:19 PM
+ */
+public class MonitoredExecutor extends ThreadPoolExecutor {
+
+    private static final Logger _ = LoggerFactory.getLogger(MonitoredExecutor.class);
+
+    public enum Policy {
+        ABORT, CALLER_RUNS;
+
+        public static Policy parse(String policy) {
+            if (StringUtils.equalsIgnoreCase(policy, "caller_runs")) return CALLER_RUNS;
+            return ABORT;
+        }
+    }
+
+    private final String     name;
+    private final int        queueSize;
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected  = new AtomicLong();
+    private final AtomicLong waitTime  = new AtomicLong();
+    private final AtomicLong maxWait   = new AtomicLong();
+    private final AtomicLong runTime   = new AtomicLong();
+    private final AtomicLong maxRun    = new AtomicLong();
+    private final AtomicLong finished  = new AtomicLong();
+
+    /**
+     * @param name 线程池名称,同时作为线程名前缀
+     * @param coreSize
+     * @param maxSize
+     * @param queueSize 队列长度
+     * @param policy 队列满时的策略
+     */
+    public MonitoredExecutor(String name, int coreSize, int maxSize, int queueSize, Policy policy) {
+        super(coreSize, Math.max(coreSize, maxSize), 60L, TimeUnit.SECONDS,
+              new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new NamedThreadFactory(name, false));
+        this.name = name;
+        this.queueSize = Math.max(1, queueSize);
+        final RejectedExecutionHandler handler = policy == Policy.CALLER_RUNS ? new CallerRunsPolicy() : new AbortPolicy();
+        setRejectedExecutionHandler(new RejectedExecutionHandler() {
+
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                rejected.incrementAndGet();
+                handler.rejectedExecution(r, executor);
+            }
+        });
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        submitted.incrementAndGet();
+        super.execute(new TimedTask(command));
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        if (!(r instanceof TimedTask)) return;
+        TimedTask task = (TimedTask) r;
+        task.startTime = System.nanoTime();
+        long wait = TimeUnit.NANOSECONDS.toMillis(task.startTime - task.submitTime);
+        waitTime.addAndGet(wait);
+        updateMax(maxWait, wait);
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        if (t != null) _.error("executor[" + name + "] task error!", t);
+        if (!(r instanceof TimedTask)) return;
+        long run = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ((TimedTask) r).startTime);
+        runTime.addAndGet(run);
+        updateMax(maxRun, run);
+        finished.incrementAndGet();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Map<String, Object> stats() {
+        long _finished = Math.max(1, finished.get());
+        Map<String, Object> stats = Maps.newLinkedHashMap();
+        stats.put("name", name);
+        stats.put("poolSize", getPoolSize());
+        stats.put("activeThreads", getActiveCount());
+        stats.put("largestPoolSize", getLargestPoolSize());
+        stats.put("queueDepth", getQueue().size());
+        stats.put("queueCapacity", queueSize);
+        stats.put("submitted", submitted.get());
+        stats.put("completed", getCompletedTaskCount());
+        stats.put("rejected", rejected.get());
+        stats.put("avgWaitMs", waitTime.get() / _finished);
+        stats.put("maxWaitMs", maxWait.get());
+        stats.put("avgRunMs", runTime.get() / _finished);
+        stats.put("maxRunMs", maxRun.get());
+        return stats;
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) return;
+        }
+    }
+
+    /**
+     * 记录入队时间的任务包装
+     */
+    private static class TimedTask implements Runnable {
+
+        private final Runnable delegate;
+        private final long     submitTime = System.nanoTime();
+        private volatile long  startTime;
+
+        TimedTask(Runnable delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void run() {
+            delegate.run();
+        }
+    }
+
+    /**
+     * 线程命名为 #name-N,并记录未捕获的异常
+     */
+    public static class NamedThreadFactory implements ThreadFactory {
+
+        private final String        name;
+        private final boolean       daemon;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        public NamedThreadFactory(String name, boolean daemon) {
+            this.name = StringUtils.defaultIfEmpty(name, "Thread");
+            this.daemon = daemon;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "#" + name + "-" + counter.getAndIncrement());
+            thread.setDaemon(daemon);
+            thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+
+                @Override
+                public void uncaughtException(Thread t, Throwable e) {
+                    _.error("thread[" + t.getName() + "] uncaught exception!", e);
+                }
+            });
+            return thread;
+        }
+    }
+}
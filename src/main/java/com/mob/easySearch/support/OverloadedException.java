@@ -0,0 +1,20 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 查询并发超过自适应上限时快速拒绝,返回503(区别于排队已满的429)
+ *
+ * @author zxc Dec 19, 2016 2:40:31 PM
+ */
+public class OverloadedException extends RejectedExecutionException {
+
+    private static final long serialVersionUID = 4125067811240371586L;
+
+    public OverloadedException(String message) {
+        super(message);
+    }
+}
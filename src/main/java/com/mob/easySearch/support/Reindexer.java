@@ -0,0 +1,247 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.lamfire.logger.Logger;
+import com.lamfire.logger.LoggerFactory;
+
+/**
+ * 把source的全部文档复制到target
+ *
+ * <pre>
+ * 每个分片一个scan(preference=_shards:N),在reindex线程池中并行,每页组成一个bulk写入target;
+ * 写入用op_type=create,reindex期间双写到target的新文档不会被旧数据覆盖(已存在的冲突不计为失败)
+ * reindex期间删除的文档和清空index记录下来,scan快照中这些旧数据不再复制,避免删除后又被写回target;
+ * 记录时等待正在写入的页完成,之后再删除target中的数据
+ * </pre>
+ *
+ * @author zxc Dec 7, 2016 11:08:52 AM
+ */
+public class Reindexer {
+
+    private static final Logger _        = LoggerFactory.getLogger(Reindexer.class);
+
+    public static final String  EXECUTOR = "reindex";
+
+    public enum State {
+        RUNNING, SWAPPING, DONE, FAILED
+    }
+
+    private final Client        client;
+    private final String        alias;
+    private final String        source;
+    private final String        target;
+    private final int           batchSize;
+    private final TimeValue     keepAlive;
+
+    private final AtomicLong    total    = new AtomicLong();
+    private final AtomicLong    copied   = new AtomicLong();
+    private final AtomicLong    conflict = new AtomicLong();
+    private final AtomicLong    failed   = new AtomicLong();
+    private final long          start    = System.currentTimeMillis();
+    private volatile long       end      = 0;
+    private volatile State      state    = State.RUNNING;
+    private volatile String     error;
+
+    // 复制一页时持有读锁,记录删除/清空时持有写锁
+    private final ReadWriteLock clearLock = new ReentrantReadWriteLock();
+    // reindex期间删除的文档 type#id
+    private final Set<String>   deleted   = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile boolean    cleared   = false;
+
+    /**
+     * @param client
+     * @param alias 对外的index名称
+     * @param source 当前版本的index
+     * @param target 新版本的index
+     * @param batchSize 每个分片每页的文档数
+     * @param keepAlive scroll有效期ms
+     */
+    public Reindexer(Client client, String alias, String source, String target, int batchSize, long keepAlive) {
+        this.client = client;
+        this.alias = alias;
+        this.source = source;
+        this.target = target;
+        this.batchSize = batchSize;
+        this.keepAlive = TimeValue.timeValueMillis(keepAlive);
+    }
+
+    /**
+     * 复制全部分片,全部完成后返回
+     *
+     * @param shards source的分片号
+     * @throws Exception 任一分片失败
+     */
+    public void copy(List<Integer> shards) throws Exception {
+        _.info("reindex '" + alias + "' " + source + " -> " + target + " start, shards=" + shards.size());
+        List<Future<?>> futures = Lists.newArrayList();
+        for (final Integer shard : shards) {
+            futures.add(ThreadUtil.submitTask(EXECUTOR, new Runnable() {
+
+                @Override
+                public void run() {
+                    copy(shard);
+                }
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+        _.info("reindex '" + alias + "' copied: " + stats());
+    }
+
+    private void copy(int shard) {
+        SearchResponse response = client.prepareSearch(source)//
+        .setPreference("_shards:" + shard)//
+        .setSearchType(SearchType.SCAN)//
+        .setQuery(QueryBuilders.matchAllQuery())//
+        .setSize(batchSize)//
+        .setScroll(keepAlive)//
+        .execute().actionGet(Timeouts.bulk());
+        total.addAndGet(response.getHits().getTotalHits());
+        String scrollId = response.getScrollId();
+        try {
+            while (state == State.RUNNING) {
+                response = client.prepareSearchScroll(scrollId).setScroll(keepAlive).execute()//
+                .actionGet(Timeouts.bulk());
+                scrollId = response.getScrollId();
+                SearchHit[] hits = response.getHits().getHits();
+                if (hits.length == 0) break;
+                clearLock.readLock().lock();
+                try {
+                    if (cleared) break;
+                    copy(shard, hits);
+                } finally {
+                    clearLock.readLock().unlock();
+                }
+            }
+        } finally {
+            if (scrollId != null) client.prepareClearScroll().addScrollId(scrollId).execute();
+        }
+    }
+
+    private void copy(int shard, SearchHit[] hits) {
+        BulkRequest bulk = new BulkRequest();
+        for (SearchHit hit : hits) {
+            if (deleted.contains(hit.getType() + "#" + hit.getId())) continue;
+            bulk.add(new IndexRequest(target, hit.getType(), hit.getId())//
+            .source(hit.sourceRef(), false)//
+            .opType(IndexRequest.OpType.CREATE));
+        }
+        if (bulk.numberOfActions() == 0) return;
+        BulkResponse bulkResponse = client.bulk(bulk).actionGet(Timeouts.bulk());
+        int _failed = 0, _conflict = 0;
+        if (bulkResponse.hasFailures()) {
+            for (BulkItemResponse item : bulkResponse.getItems()) {
+                if (!item.isFailed()) continue;
+                if (item.getFailureMessage().contains("DocumentAlreadyExistsException")) _conflict++;
+                else _failed++;
+            }
+            if (_failed > 0) _.error("reindex '" + alias + "' shard[" + shard + "] has failures: " + bulkResponse.buildFailureMessage());
+        }
+        conflict.addAndGet(_conflict);
+        failed.addAndGet(_failed);
+        copied.addAndGet(bulk.numberOfActions() - _failed);
+    }
+
+    /**
+     * reindex期间删除了文档,返回后再删除target中的文档
+     *
+     * @param type
+     * @param id
+     */
+    public void delete(String type, String id) {
+        clearLock.writeLock().lock();
+        try {
+            deleted.add(type + "#" + id);
+        } finally {
+            clearLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * reindex期间清空了index,快照中剩余的文档都不再复制,返回后再清空target
+     */
+    public void clear() {
+        clearLock.writeLock().lock();
+        try {
+            cleared = true;
+        } finally {
+            clearLock.writeLock().unlock();
+        }
+        _.info("reindex '" + alias + "' source cleared, stop copying");
+    }
+
+    public String getAlias() {
+        return alias;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public void setState(State state) {
+        this.state = state;
+        if (state == State.DONE || state == State.FAILED) end = System.currentTimeMillis();
+    }
+
+    public void fail(Throwable e) {
+        this.error = String.valueOf(e.getMessage());
+        setState(State.FAILED);
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public Map<String, Object> stats() {
+        long elapsed = Math.max(1, (end > 0 ? end : System.currentTimeMillis()) - start);
+        Map<String, Object> stats = Maps.newLinkedHashMap();
+        stats.put("alias", alias);
+        stats.put("source", source);
+        stats.put("target", target);
+        stats.put("state", state.name().toLowerCase());
+        stats.put("total", total.get());
+        stats.put("copied", copied.get());
+        stats.put("conflict", conflict.get());
+        stats.put("failed", failed.get());
+        stats.put("deleted", deleted.size());
+        stats.put("cleared", cleared);
+        stats.put("progress", total.get() == 0 ? 0d : (double) copied.get() / total.get());
+        stats.put("elapsed", elapsed);
+        stats.put("docsPerSecond", copied.get() * 1000 / elapsed);
+        if (error != null) stats.put("error", error);
+        return stats;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.lamfire.logger.Logger;
+import com.lamfire.logger.LoggerFactory;
+
+/**
+ * 按分片并行scan导出,以NDJSON写到输出流
+ *
+ * <pre>
+ * 每个分片一个scroll(preference=_shards:N),在export线程池中并行读取;
+ * 每页转换成一块NDJSON字节放入有界队列,调用线程从队列取出写到输出流;
+ * 输出流写得慢时队列写满,scroll线程阻塞等待,内存占用只和queueSize*batchSize有关,与索引大小无关
+ * 输出流断开时停止所有scroll并释放游标
+ * </pre>
+ *
+ * @author zxc Dec 2, 2016 3:05:41 PM
+ */
+public class ScrollExporter {
+
+    private static final Logger _        = LoggerFactory.getLogger(ScrollExporter.class);
+
+    public static final String  EXECUTOR = "export";
+
+    private final Client        client;
+    private final String        indexName;
+    private final String        indexType;
+    private final QueryBuilder  query;
+    private final int           batchSize;
+    private final TimeValue     keepAlive;
+
+    /**
+     * @param client
+     * @param indexName
+     * @param indexType
+     * @param query 过滤条件
+     * @param batchSize 每个分片每页的文档数
+     * @param keepAlive scroll有效期ms
+     */
+    public ScrollExporter(Client client, String indexName, String indexType, QueryBuilder query, int batchSize,
+                          long keepAlive) {
+        this.client = client;
+        this.indexName = indexName;
+        this.indexType = indexType;
+        this.query = query;
+        this.batchSize = batchSize;
+        this.keepAlive = TimeValue.timeValueMillis(keepAlive);
+    }
+
+    /**
+     * 导出到输出流,全部分片读完后返回
+     *
+     * @param shards 分片号
+     * @param queueSize 等待写出的页数上限
+     * @param out
+     * @return 导出文档数/字节数/耗时
+     * @throws IOException 输出流写失败
+     */
+    public Map<String, Object> export(List<Integer> shards, int queueSize, OutputStream out) throws IOException {
+        long start = System.currentTimeMillis();
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(Math.max(1, queueSize));
+        final AtomicInteger running = new AtomicInteger(shards.size());
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final Cancel cancel = new Cancel();
+        final AtomicLong docs = new AtomicLong();
+        long bytes = 0;
+
+        List<Future<?>> futures = Lists.newArrayList();
+        try {
+            for (final Integer shard : shards) {
+                futures.add(ThreadUtil.submitTask(EXECUTOR, new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            scan(shard, queue, cancel, docs);
+                        } catch (Throwable e) {
+                            _.error("export '" + indexName + "' shard[" + shard + "] error!", e);
+                            error.compareAndSet(null, e);
+                            cancel.cancelled = true;
+                        } finally {
+                            running.decrementAndGet();
+                        }
+                    }
+                }));
+            }
+        } catch (RuntimeException e) {
+            cancel(futures, cancel);
+            throw e;
+        }
+
+        try {
+            while (true) {
+                byte[] chunk = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (chunk == null) {
+                    if (running.get() == 0 && queue.isEmpty()) break;
+                    continue;
+                }
+                out.write(chunk);
+                out.flush();
+                bytes += chunk.length;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel(futures, cancel);
+            throw new IOException("export interrupted", e);
+        } catch (IOException e) {
+            _.error("export '" + indexName + "' output closed, cancel all shards");
+            cancel(futures, cancel);
+            throw e;
+        }
+        if (error.get() != null) throw new IOException("export '" + indexName + "' failed", error.get());
+
+        long elapsed = System.currentTimeMillis() - start;
+        Map<String, Object> result = Maps.newLinkedHashMap();
+        result.put("shards", shards.size());
+        result.put("docs", docs.get());
+        result.put("bytes", bytes);
+        result.put("elapsed", elapsed);
+        result.put("docsPerSecond", elapsed == 0 ? docs.get() : docs.get() * 1000 / elapsed);
+        _.info("export '" + indexName + "/" + indexType + "' finished: " + result);
+        return result;
+    }
+
+    // 单个分片的scan,每页转成一块NDJSON
+    private void scan(int shard, BlockingQueue<byte[]> queue, Cancel cancel, AtomicLong docs) throws IOException {
+        SearchResponse response = client.prepareSearch(indexName).setTypes(indexType)//
+        .setPreference("_shards:" + shard)//
+        .setSearchType(SearchType.SCAN)//
+        .setQuery(query)//
+        .setSize(batchSize)//
+        .setScroll(keepAlive)//
+        .execute().actionGet(Timeouts.bulk());
+        String scrollId = response.getScrollId();
+        try {
+            while (!cancel.cancelled) {
+                response = client.prepareSearchScroll(scrollId).setScroll(keepAlive).execute()//
+                .actionGet(Timeouts.bulk());
+                scrollId = response.getScrollId();
+                SearchHit[] hits = response.getHits().getHits();
+                if (hits.length == 0) break;
+                ByteArrayOutputStream chunk = new ByteArrayOutputStream(hits.length * 512);
+                for (SearchHit hit : hits)
+                    SourceWriter.writeLine(hit, chunk);
+                if (!put(queue, chunk.toByteArray(), cancel)) break;
+                docs.addAndGet(hits.length);
+            }
+        } finally {
+            if (scrollId != null) client.prepareClearScroll().addScrollId(scrollId).execute();
+        }
+    }
+
+    // 队列满时等待,取消后放弃
+    private static boolean put(BlockingQueue<byte[]> queue, byte[] chunk, Cancel cancel) {
+        try {
+            while (!cancel.cancelled) {
+                if (queue.offer(chunk, 1, TimeUnit.SECONDS)) return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private static void cancel(List<Future<?>> futures, Cancel cancel) {
+        cancel.cancelled = true;
+        for (Future<?> future : futures)
+            future.cancel(false);
+    }
+
+    private static class Cancel {
+
+        private volatile boolean cancelled = false;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Maps;
+
+/**
+ * 搜索结果缓存,按条数和字节数限制的LRU,带TTL
+ *
+ * <pre>
+ * key中带有index的版本号,index有写入时版本号加1,旧版本的结果不再命中,随LRU/TTL淘汰;
+ * 写入返回时ES还没有refresh,这期间的搜索结果不包含写入,所以写入后refreshInterval再加1次,
+ * 期间缓存的结果在ES refresh之后不再命中;
+ * 字节数为结果Map的估算值
+ * </pre>
+ *
+ * @author zxc Nov 29, 2016 10:47:33 AM
+ */
+public class SearchCache {
+
+    private final LinkedHashMap<String, Entry>      cache           = new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+    private final ConcurrentMap<String, Generation> generations     = Maps.newConcurrentMap();
+
+    private volatile boolean                        enabled         = true;
+    private volatile int                            maxEntries      = 10000;
+    private volatile long                           maxBytes        = 64L * 1024 * 1024;
+    private volatile long                           ttl             = 30000;
+    private volatile long                           refreshInterval = 1000;
+    private long                                    bytes           = 0;
+
+    private final AtomicLong                        hits            = new AtomicLong();
+    private final AtomicLong                        misses          = new AtomicLong();
+    private final AtomicLong                        puts            = new AtomicLong();
+    private final AtomicLong                        evictions       = new AtomicLong();
+    private final AtomicLong                        expirations     = new AtomicLong();
+    private final AtomicLong                        invalidates     = new AtomicLong();
+
+    /**
+     * @param enabled
+     * @param maxEntries 最大条数
+     * @param maxBytes 最大字节数(估算)
+     * @param ttl 有效期ms
+     * @param refreshInterval 写入后多久ES refresh完成、结果可见ms,不小于index.refresh_interval
+     */
+    public synchronized void configure(boolean enabled, int maxEntries, long maxBytes, long ttl,
+                                       long refreshInterval) {
+        this.enabled = enabled;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+        this.refreshInterval = refreshInterval;
+        if (!enabled) clear();
+        evict();
+    }
+
+    /**
+     * 缓存key,带上index当前的版本号
+     *
+     * @param indexName
+     * @param query 规范化后的查询串
+     * @return
+     */
+    public String key(String indexName, String query) {
+        return indexName + "#" + generation(indexName).current(System.currentTimeMillis()) + "#" + query;
+    }
+
+    public Map<String, Object> get(String key) {
+        if (!enabled) return null;
+        synchronized (this) {
+            Entry entry = cache.get(key);
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            if (entry.expireAt < System.currentTimeMillis()) {
+                remove(key);
+                expirations.incrementAndGet();
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return entry.value;
+        }
+    }
+
+    public void put(String key, Map<String, Object> value) {
+        if (!enabled || value == null) return;
+        long size = estimate(value);
+        if (size > maxBytes) return;
+        synchronized (this) {
+            remove(key);
+            cache.put(key, new Entry(value, size, System.currentTimeMillis() + ttl));
+            bytes += size;
+            puts.incrementAndGet();
+            evict();
+        }
+    }
+
+    /**
+     * index有写入,使该index的缓存失效
+     *
+     * @param indexName
+     */
+    public void invalidate(String indexName) {
+        if (indexName == null) return;
+        generation(indexName).bump(System.currentTimeMillis() + refreshInterval);
+        invalidates.incrementAndGet();
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+        bytes = 0;
+    }
+
+    public synchronized Map<String, Object> stats() {
+        long _hits = hits.get(), _misses = misses.get();
+        Map<String, Object> stats = Maps.newLinkedHashMap();
+        stats.put("enabled", enabled);
+        stats.put("entries", cache.size());
+        stats.put("maxEntries", maxEntries);
+        stats.put("bytes", bytes);
+        stats.put("maxBytes", maxBytes);
+        stats.put("ttl", ttl);
+        stats.put("refreshInterval", refreshInterval);
+        stats.put("hits", _hits);
+        stats.put("misses", _misses);
+        stats.put("hitRate", _hits + _misses == 0 ? 0d : (double) _hits / (_hits + _misses));
+        stats.put("puts", puts.get());
+        stats.put("evictions", evictions.get());
+        stats.put("expirations", expirations.get());
+        stats.put("invalidates", invalidates.get());
+        return stats;
+    }
+
+    // *********************************************** private method *******************************************//
+
+    private Generation generation(String indexName) {
+        Generation generation = generations.get(indexName);
+        if (generation == null) {
+            generations.putIfAbsent(indexName, new Generation());
+            generation = generations.get(indexName);
+        }
+        return generation;
+    }
+
+    private void remove(String key) {
+        Entry old = cache.remove(key);
+        if (old != null) bytes -= old.size;
+    }
+
+    // 按访问顺序淘汰最久未使用的
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = cache.entrySet().iterator();
+        while ((cache.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            it.remove();
+            bytes -= entry.size;
+            evictions.incrementAndGet();
+        }
+    }
+
+    // 估算对象占用的字节数
+    private static long estimate(Object value) {
+        if (value == null) return 8;
+        if (value instanceof CharSequence) return 40 + 2L * ((CharSequence) value).length();
+        if (value instanceof Number || value instanceof Boolean) return 16;
+        if (value instanceof Map) {
+            long size = 48;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+                size += 32 + estimate(entry.getKey()) + estimate(entry.getValue());
+            return size;
+        }
+        if (value instanceof Collection) {
+            long size = 40;
+            for (Object item : (Collection<?>) value)
+                size += 8 + estimate(item);
+            return size;
+        }
+        if (value instanceof Object[]) {
+            long size = 16;
+            for (Object item : (Object[]) value)
+                size += 8 + estimate(item);
+            return size;
+        }
+        return 16 + 2L * String.valueOf(value).length();
+    }
+
+    // index的版本号,写入时加1,refresh之后再加1
+    private static class Generation {
+
+        private long value;
+        private long settleAt;
+
+        synchronized long current(long now) {
+            if (settleAt > 0 && now >= settleAt) {
+                value++;
+                settleAt = 0;
+            }
+            return value;
+        }
+
+        synchronized void bump(long settleAt) {
+            value++;
+            this.settleAt = settleAt;
+        }
+    }
+
+    private static class Entry {
+
+        private final Map<String, Object> value;
+        private final long                size;
+        private final long                expireAt;
+
+        Entry(Map<String, Object> value, long size, long expireAt) {
+            this.value = value;
+            this.size = size;
+            this.expireAt = expireAt;
+        }
+    }
+}
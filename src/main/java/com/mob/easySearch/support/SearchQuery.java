@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import static com.mob.easySearch.support.ElasticsearchHelper.customMatches;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.collect.Table;
+import com.lamfire.utils.StringUtils;
+
+/**
+ * 搜索参数,由/search的请求参数解析得到
+ *
+ * <pre>
+ * field       检索字段,可多个
+ * distinct    去重聚合字段,可多个
+ * topOnly     聚合时每组仅返回一条
+ * scroll      true时开启游标分页,返回cursor
+ * cursor      上一页返回的cursor,取下一页
+ * pagedDistinct 去重聚合时只取当前页的bucket,total为近似值
+ * xxx_lt/gt/lte/gte 区间查询
+ * 其它参数    作为过滤条件
+ * </pre>
+ *
+ * @author zxc Nov 22, 2016 10:35:12 AM
+ */
+public class SearchQuery {
+
+    private String                        indexName;
+    private String                        indexType;
+    private String                        keywords;
+    private int                           pageno;
+    private int                           pagesize;
+    private Set<String>                   field       = Sets.newHashSet();
+    private Set<String>                   aggregation = Sets.newLinkedHashSet();
+    private Map<String, Object[]>         filter      = Maps.newLinkedHashMap();
+    private Table<String, String, Object> ranges      = HashBasedTable.create();
+    private boolean                       topOnly     = false;
+    private boolean                       scroll      = false;
+    private String                        cursor;
+    private Boolean                       pagedDistinct;
+
+    /**
+     * 解析请求参数
+     *
+     * @param indexName
+     * @param indexType
+     * @param pageno
+     * @param pagesize
+     * @param keywords
+     * @param params 全部请求参数
+     * @return
+     */
+    public static SearchQuery parse(String indexName, String indexType, int pageno, int pagesize, String keywords,
+                                    Map<String, String[]> params) {
+        SearchQuery query = new SearchQuery();
+        query.indexName = indexName;
+        query.indexType = indexType;
+        query.pageno = pageno;
+        query.pagesize = pagesize;
+        query.keywords = keywords;
+        if (params == null) return query;
+
+        if (params.get("field") != null) query.field = Sets.newHashSet(params.get("field"));
+        if (params.get("distinct") != null) {
+            for (String value : params.get("distinct"))
+                query.aggregation.add(value);
+        }
+        for (Entry<String, String[]> entry : params.entrySet()) {
+            if (entry == null || StringUtils.isEmpty(entry.getKey()) || entry.getValue() == null) continue;
+            if (!StringUtils.equalsIgnoreCase(entry.getKey(), "pageno")
+                && !StringUtils.equalsIgnoreCase(entry.getKey(), "pagesize")
+                && !StringUtils.equalsIgnoreCase(entry.getKey(), "keywords")
+                && !StringUtils.equalsIgnoreCase(entry.getKey(), "distinct")
+                && !StringUtils.equalsIgnoreCase(entry.getKey(), "field")
+                && !StringUtils.equalsIgnoreCase(entry.getKey(), "topOnly")
+                && !StringUtils.equalsIgnoreCase(entry.getKey(), "scroll")
+                && !StringUtils.equalsIgnoreCase(entry.getKey(), "cursor")
+                && !StringUtils.equalsIgnoreCase(entry.getKey(), "pagedDistinct")
+                && !customMatches("(.*)_(lt|gt|lte|gte)$", entry.getKey())) {
+                query.filter.put(entry.getKey(), entry.getValue());
+            }
+            if (customMatches("(.*)_(lt|gt|lte|gte)$", entry.getKey())) {
+                String r = StringUtils.substringBeforeLast(entry.getKey(), "_");
+                String c = StringUtils.substringAfterLast(entry.getKey(), "_");
+                query.ranges.put(r, c, entry.getValue()[0]);
+            }
+            if (StringUtils.equalsIgnoreCase(entry.getKey(), "topOnly")) query.topOnly = Boolean.parseBoolean(entry.getValue()[0]);
+            if (StringUtils.equalsIgnoreCase(entry.getKey(), "scroll")) query.scroll = Boolean.parseBoolean(entry.getValue()[0]);
+            if (StringUtils.equalsIgnoreCase(entry.getKey(), "cursor")) query.cursor = entry.getValue()[0];
+            if (StringUtils.equalsIgnoreCase(entry.getKey(), "pagedDistinct")) query.pagedDistinct = Boolean.parseBoolean(entry.getValue()[0]);
+        }
+        return query;
+    }
+
+    /**
+     * 规范化的查询串,参数顺序不影响结果,用作缓存key
+     * 
+     * @return
+     */
+    public String normalize() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(indexType).append('|').append(StringUtils.trimToEmpty(keywords));
+        sb.append("|field=").append(new TreeSet<String>(field));
+        sb.append("|distinct=").append(aggregation);
+        sb.append("|filter={");
+        for (String key : new TreeSet<String>(filter.keySet())) {
+            Set<String> values = new TreeSet<String>();
+            for (Object value : filter.get(key))
+                values.add(String.valueOf(value));
+            sb.append(key).append('=').append(values).append(',');
+        }
+        sb.append("}|range={");
+        for (String key : new TreeSet<String>(ranges.rowKeySet())) {
+            sb.append(key).append('=').append(new TreeMap<String, Object>(ranges.row(key))).append(',');
+        }
+        sb.append("}|topOnly=").append(topOnly);
+        sb.append("|pageno=").append(pageno).append("|pagesize=").append(pagesize);
+        return sb.toString();
+    }
+
+    public boolean isAggregation() {
+        return aggregation.size() > 0;
+    }
+
+    public String getIndexName() {
+        return indexName;
+    }
+
+    public String getIndexType() {
+        return indexType;
+    }
+
+    public String getKeywords() {
+        return keywords;
+    }
+
+    public int getPageno() {
+        return pageno;
+    }
+
+    public int getPagesize() {
+        return pagesize;
+    }
+
+    public Set<String> getField() {
+        return field;
+    }
+
+    public Set<String> getAggregation() {
+        return aggregation;
+    }
+
+    public Map<String, Object[]> getFilter() {
+        return filter;
+    }
+
+    public Table<String, String, Object> getRanges() {
+        return ranges;
+    }
+
+    public boolean isTopOnly() {
+        return topOnly;
+    }
+
+    public boolean isScroll() {
+        return scroll;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    /**
+     * 是否分页聚合,请求未指定时取默认值
+     * 
+     * @param defaultValue
+     * @return
+     */
+    public boolean isPagedDistinct(boolean defaultValue) {
+        return pagedDistinct == null ? defaultValue : pagedDistinct.booleanValue();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.action.search.SearchType;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.lamfire.logger.Logger;
+import com.lamfire.logger.LoggerFactory;
+
+/**
+ * 按index选择SearchType
+ *
+ * <pre>
+ * 默认QUERY_THEN_FETCH,只有聚合(size=0)的请求用COUNT;
+ * DFS_QUERY_THEN_FETCH多一轮scatter/gather收集词频,只在分片词频可能失真时使用:
+ * 1 dfsIndices中配置的index
+ * 2 文档数小于dfsMaxDocs的小索引/新索引(分片间词频差异大)
+ * noDfsIndices中配置的index始终不用DFS
+ * </pre>
+ *
+ * @author zxc Nov 28, 2016 2:56:10 PM
+ */
+public class SearchTypePolicy {
+
+    private static final Logger                _            = LoggerFactory.getLogger(SearchTypePolicy.class);
+
+    private final ElasticsearchHelper          es;
+    private volatile Set<String>               dfsIndices   = ImmutableSet.of();
+    private volatile Set<String>               noDfsIndices = ImmutableSet.of();
+    private volatile long                      dfsMaxDocs   = 0;
+    private volatile long                      statsTtl     = 60000;
+    // indexName -> {docCount, loadTime}
+    private final ConcurrentMap<String, long[]> docCounts    = Maps.newConcurrentMap();
+
+    public SearchTypePolicy(ElasticsearchHelper es) {
+        this.es = es;
+    }
+
+    /**
+     * @param dfsIndices 始终使用DFS的index,逗号分隔
+     * @param noDfsIndices 始终不用DFS的index,逗号分隔
+     * @param dfsMaxDocs 文档数小于该值时使用DFS,0关闭
+     * @param statsTtl 文档数缓存时间ms
+     */
+    public void configure(String dfsIndices, String noDfsIndices, long dfsMaxDocs, long statsTtl) {
+        this.dfsIndices = split(dfsIndices);
+        this.noDfsIndices = split(noDfsIndices);
+        this.dfsMaxDocs = dfsMaxDocs;
+        this.statsTtl = statsTtl;
+        this.docCounts.clear();
+    }
+
+    /**
+     * @param indexName
+     * @param aggregationOnly 只取聚合结果,不取文档
+     * @return
+     */
+    public SearchType choose(String indexName, boolean aggregationOnly) {
+        if (useDfs(indexName)) return SearchType.DFS_QUERY_THEN_FETCH;
+        return aggregationOnly ? SearchType.COUNT : SearchType.QUERY_THEN_FETCH;
+    }
+
+    public boolean useDfs(String indexName) {
+        if (noDfsIndices.contains(indexName)) return false;
+        if (dfsIndices.contains(indexName)) return true;
+        if (dfsMaxDocs <= 0) return false;
+        long docCount = docCount(indexName);
+        return docCount >= 0 && docCount < dfsMaxDocs;
+    }
+
+    // 主分片文档数,取不到时返回-1
+    private long docCount(String indexName) {
+        long now = System.currentTimeMillis();
+        long[] cached = docCounts.get(indexName);
+        if (cached != null && now - cached[1] < statsTtl) return cached[0];
+        try {
+            long count = es.getClient().admin().indices().prepareStats(indexName).clear().setDocs(true)//
+            .execute().actionGet(Timeouts.admin()).getPrimaries().getDocs().getCount();
+            docCounts.put(indexName, new long[] { count, now });
+            return count;
+        } catch (Exception e) {
+            _.error("load doc count of '" + indexName + "' error!", e);
+            docCounts.put(indexName, new long[] { -1, now });
+            return -1;
+        }
+    }
+
+    private static Set<String> split(String indices) {
+        if (StringUtils.isBlank(indices)) return ImmutableSet.of();
+        ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+        for (String index : StringUtils.split(indices, ",")) {
+            if (StringUtils.isNotBlank(index)) builder.add(index.trim());
+        }
+        return builder.build();
+    }
+}
@@ -7,6 +7,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -24,6 +25,29 @@ import org.springframework.web.servlet.mvc.method.annotation.ResponseEntityExcep
 @ControllerAdvice
 public class ServiceExceptionHandler extends ResponseEntityExceptionHandler {
 
+    // 查询并发超过自适应上限,返回503快速失败,与排队已满的429区分
+    @ExceptionHandler(value = { OverloadedException.class })
+    @ResponseBody
+    ResponseEntity<Object> handleOverloadedException(HttpServletRequest req, OverloadedException ex) {
+        JsonResult result = JsonResult.fail(null, "服务过载,请稍后重试");
+        result.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.parseMediaType("application/json; charset=UTF-8"));
+        headers.set("Retry-After", "1");
+        return new ResponseEntity<Object>(result.toString(), headers, HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    // 线程池队列已满,返回429让调用方稍后重试
+    @ExceptionHandler(value = { RejectedExecutionException.class })
+    @ResponseBody
+    ResponseEntity<Object> handleRejectedException(HttpServletRequest req, RejectedExecutionException ex) {
+        JsonResult result = JsonResult.fail(null, "服务繁忙,请稍后重试");
+        result.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.parseMediaType("application/json; charset=UTF-8"));
+        return new ResponseEntity<Object>(result.toString(), headers, HttpStatus.TOO_MANY_REQUESTS);
+    }
+
     @ExceptionHandler(value = { RuntimeException.class, Throwable.class })
     @ResponseBody
     ResponseEntity<Object> handleControllerException(HttpServletRequest req, Throwable ex) {
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.FilterBuilders;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.SortOrder;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.lamfire.logger.Logger;
+import com.lamfire.logger.LoggerFactory;
+
+/**
+ * 离线导出工具,每个分片并行导出到独立的NDJSON分段文件,支持断点续传
+ *
+ * <pre>
+ * 目录结构: dir/shard-N-00000.ndjson.gz ... dir/shard-N.checkpoint
+ * 1 每个分片一个scroll(preference=_shards:N),按_uid升序
+ * 2 每页作为一个独立的gzip member追加到当前分段(多member的gzip文件可直接用gzip/zcat/GZIPInputStream读取),
+ *   分段达到segmentDocs后切换下一个文件
+ * 3 每页写完后记录checkpoint(最后的_uid/文档数/分段号/分段长度),先写临时文件再rename
+ * 4 重新运行时跳过已完成的分片,未完成的分片把分段截断到checkpoint的长度,从_uid > 最后_uid 继续
+ * scroll上下文在进程退出后无法恢复,因此续传依赖_uid排序和区间过滤,排序会加载_uid的fielddata
+ * 运行期间按reportInterval输出docs/s和bytes/s
+ * </pre>
+ *
+ * @author zxc Dec 5, 2016 10:26:48 AM
+ */
+public class ShardExporter {
+
+    private static final Logger _                = LoggerFactory.getLogger(ShardExporter.class);
+
+    public static final String  EXECUTOR         = "shard-export";
+
+    private final Client        client;
+    private final String        indexName;
+    private final String        indexType;
+    private final File          dir;
+    private final boolean       gzip;
+    private final int           batchSize;
+    private final long          segmentDocs;
+    private final TimeValue     keepAlive;
+
+    private final AtomicLong    docs             = new AtomicLong();
+    private final AtomicLong    bytes            = new AtomicLong();
+    private final AtomicLong    compressedBytes  = new AtomicLong();
+    private final AtomicLong    resumedDocs      = new AtomicLong();
+    private volatile boolean    running          = false;
+
+    /**
+     * @param client
+     * @param indexName
+     * @param indexType
+     * @param dir 输出目录,同时保存checkpoint
+     * @param gzip 是否gzip压缩
+     * @param batchSize 每页文档数
+     * @param segmentDocs 每个分段文件的文档数
+     * @param keepAlive scroll有效期ms
+     */
+    public ShardExporter(Client client, String indexName, String indexType, File dir, boolean gzip, int batchSize,
+                         long segmentDocs, long keepAlive) {
+        this.client = client;
+        this.indexName = indexName;
+        this.indexType = indexType;
+        this.dir = dir;
+        this.gzip = gzip;
+        this.batchSize = batchSize;
+        this.segmentDocs = segmentDocs;
+        this.keepAlive = TimeValue.timeValueMillis(keepAlive);
+    }
+
+    /**
+     * 导出全部分片,全部完成后返回
+     *
+     * @param shards 分片号
+     * @param threads 同时导出的分片数
+     * @param reportInterval 进度输出间隔ms
+     * @return 文档数/字节数/耗时
+     * @throws Exception 任一分片失败,已完成的部分保留在checkpoint中,重新运行即可续传
+     */
+    public Map<String, Object> export(List<Integer> shards, int threads, final long reportInterval) throws Exception {
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("can't create dir " + dir);
+        final long start = System.currentTimeMillis();
+        running = true;
+        ThreadUtil.newExecutor(EXECUTOR, threads, threads, Math.max(1, shards.size()), "abort");
+        ThreadUtil.startThread(new Runnable() {
+
+            @Override
+            public void run() {
+                long lastDocs = 0, lastBytes = 0, lastTime = start;
+                while (running) {
+                    ThreadUtil.sleep(reportInterval);
+                    long now = System.currentTimeMillis(), _docs = docs.get(), _bytes = bytes.get();
+                    long interval = Math.max(1, now - lastTime);
+                    _.info("export '" + indexName + "/" + indexType + "' progress: docs=" + (_docs + resumedDocs.get())
+                           + ", docs/s=" + (_docs - lastDocs) * 1000 / interval + ", bytes/s="
+                           + (_bytes - lastBytes) * 1000 / interval + ", compressed=" + compressedBytes.get());
+                    lastDocs = _docs;
+                    lastBytes = _bytes;
+                    lastTime = now;
+                }
+            }
+        }, "export-progress");
+
+        List<Future<?>> futures = Lists.newArrayList();
+        Exception error = null;
+        try {
+            for (final Integer shard : shards) {
+                futures.add(ThreadUtil.submitTask(EXECUTOR, new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            exportShard(shard);
+                        } catch (Exception e) {
+                            throw new RuntimeException("export shard[" + shard + "] error", e);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (Exception e) {
+                    _.error("export '" + indexName + "/" + indexType + "' error!", e);
+                    if (error == null) error = e;
+                }
+            }
+        } finally {
+            running = false;
+            ThreadUtil.executor(EXECUTOR).shutdown();
+        }
+        if (error != null) throw error;
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        Map<String, Object> result = Maps.newLinkedHashMap();
+        result.put("shards", shards.size());
+        result.put("docs", docs.get() + resumedDocs.get());
+        result.put("resumedDocs", resumedDocs.get());
+        result.put("bytes", bytes.get());
+        result.put("compressedBytes", compressedBytes.get());
+        result.put("elapsed", elapsed);
+        result.put("docsPerSecond", docs.get() * 1000 / elapsed);
+        result.put("bytesPerSecond", bytes.get() * 1000 / elapsed);
+        _.info("export '" + indexName + "/" + indexType + "' finished: " + result);
+        return result;
+    }
+
+    private void exportShard(int shard) throws IOException {
+        File checkpointFile = new File(dir, "shard-" + shard + ".checkpoint");
+        Checkpoint checkpoint = Checkpoint.load(checkpointFile);
+        resumedDocs.addAndGet(checkpoint.docs);
+        if (checkpoint.done) {
+            _.info("export shard[" + shard + "] already done, docs=" + checkpoint.docs);
+            return;
+        }
+        // 去掉checkpoint之后写的数据,切换段后checkpoint保存前退出时新段整个去掉
+        truncate(segment(shard, checkpoint.segment), checkpoint.offset);
+        File next = segment(shard, checkpoint.segment + 1);
+        if (next.exists() && !next.delete()) throw new IOException("can't delete " + next);
+
+        QueryBuilder query = QueryBuilders.matchAllQuery();
+        if (checkpoint.lastUid != null) {
+            _.info("export shard[" + shard + "] resume after " + checkpoint.lastUid + ", docs=" + checkpoint.docs);
+            query = QueryBuilders.filteredQuery(query, FilterBuilders.rangeFilter("_uid").gt(checkpoint.lastUid));
+        }
+        SearchResponse response = client.prepareSearch(indexName).setTypes(indexType)//
+        .setPreference("_shards:" + shard)//
+        .setQuery(query)//
+        .addSort("_uid", SortOrder.ASC)//
+        .setSize(batchSize)//
+        .setScroll(keepAlive)//
+        .execute().actionGet(Timeouts.bulk());
+        String scrollId = response.getScrollId();
+        try {
+            while (true) {
+                SearchHit[] hits = response.getHits().getHits();
+                if (hits.length == 0) break;
+                if (checkpoint.segmentDocs >= segmentDocs) {
+                    checkpoint.segment++;
+                    checkpoint.segmentDocs = 0;
+                    checkpoint.offset = 0;
+                }
+                File segment = segment(shard, checkpoint.segment);
+                // 每次追加前截到checkpoint,新段从0开始
+                truncate(segment, checkpoint.offset);
+                bytes.addAndGet(append(segment, hits));
+                long length = segment.length();
+                compressedBytes.addAndGet(length - checkpoint.offset);
+                SearchHit last = hits[hits.length - 1];
+                checkpoint.lastUid = last.getType() + "#" + last.getId();
+                checkpoint.docs += hits.length;
+                checkpoint.segmentDocs += hits.length;
+                checkpoint.offset = length;
+                checkpoint.save(checkpointFile);
+                docs.addAndGet(hits.length);
+
+                response = client.prepareSearchScroll(scrollId).setScroll(keepAlive).execute()//
+                .actionGet(Timeouts.bulk());
+                scrollId = response.getScrollId();
+            }
+            checkpoint.done = true;
+            checkpoint.save(checkpointFile);
+            _.info("export shard[" + shard + "] done, docs=" + checkpoint.docs);
+        } finally {
+            if (scrollId != null) client.prepareClearScroll().addScrollId(scrollId).execute();
+        }
+    }
+
+    // 一页追加为一个gzip member,返回未压缩的字节数
+    private long append(File segment, SearchHit[] hits) throws IOException {
+        FileOutputStream file = new FileOutputStream(segment, true);
+        OutputStream out = new BufferedOutputStream(file, 64 * 1024);
+        if (gzip) out = new GZIPOutputStream(out, 64 * 1024);
+        long length = 0;
+        try {
+            for (SearchHit hit : hits)
+                length += SourceWriter.writeLine(hit, out);
+            out.flush();
+            if (gzip) ((GZIPOutputStream) out).finish();
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            out.close();
+        }
+        return length;
+    }
+
+    private File segment(int shard, int segment) {
+        return new File(dir, String.format("shard-%d-%05d.ndjson%s", shard, segment, gzip ? ".gz" : ""));
+    }
+
+    // 去掉checkpoint之后写了一半的数据
+    private static void truncate(File file, long length) throws IOException {
+        if (!file.exists()) {
+            if (length > 0) throw new IOException(file + " is missing, checkpoint expects " + length + " bytes");
+            return;
+        }
+        if (file.length() == length) return;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 分片的导出进度
+     */
+    private static class Checkpoint {
+
+        private String  lastUid;
+        private long    docs;
+        private int     segment;
+        private long    segmentDocs;
+        private long    offset;
+        private boolean done;
+
+        static Checkpoint load(File file) throws IOException {
+            Checkpoint checkpoint = new Checkpoint();
+            if (!file.exists()) return checkpoint;
+            Properties props = new Properties();
+            InputStream in = new FileInputStream(file);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+            checkpoint.lastUid = props.getProperty("lastUid");
+            checkpoint.docs = Long.parseLong(props.getProperty("docs", "0"));
+            checkpoint.segment = Integer.parseInt(props.getProperty("segment", "0"));
+            checkpoint.segmentDocs = Long.parseLong(props.getProperty("segmentDocs", "0"));
+            checkpoint.offset = Long.parseLong(props.getProperty("offset", "0"));
+            checkpoint.done = Boolean.parseBoolean(props.getProperty("done", "false"));
+            return checkpoint;
+        }
+
+        // 先写临时文件再rename,进程中途退出不会留下不完整的checkpoint
+        void save(File file) throws IOException {
+            Properties props = new Properties();
+            if (lastUid != null) props.setProperty("lastUid", lastUid);
+            props.setProperty("docs", String.valueOf(docs));
+            props.setProperty("segment", String.valueOf(segment));
+            props.setProperty("segmentDocs", String.valueOf(segmentDocs));
+            props.setProperty("offset", String.valueOf(offset));
+            props.setProperty("done", String.valueOf(done));
+            File tmp = new File(file.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                props.store(out, null);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) throw new IOException("can't rename " + tmp + " to " + file);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.ActionListener;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * 相同key的并发请求合并为一次调用,结果分发给所有等待者
+ *
+ * <pre>
+ * 第一个请求(leader)真正执行,其它请求(follower)等待leader的结果;
+ * follower最多等待maxWait,超时后自己执行一次,不再等待
+ * </pre>
+ *
+ * @author zxc Nov 30, 2016 3:12:45 PM
+ */
+public class SingleFlight<V> {
+
+    private final ConcurrentMap<String, Call<V>> calls     = Maps.newConcurrentMap();
+
+    private volatile boolean                     enabled   = true;
+    private volatile long                        maxWait   = 3000;
+
+    private final AtomicLong                     leaders   = new AtomicLong();
+    private final AtomicLong                     coalesced = new AtomicLong();
+    private final AtomicLong                     timeouts  = new AtomicLong();
+
+    /**
+     * @param enabled
+     * @param maxWait follower最多等待时间ms
+     */
+    public void configure(boolean enabled, long maxWait) {
+        this.enabled = enabled;
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * 同步执行,相同key正在执行时等待其结果
+     *
+     * @param key 为null时直接执行
+     * @param callable
+     * @return
+     * @throws Exception
+     */
+    public V execute(String key, Callable<V> callable) throws Exception {
+        if (!enabled || key == null) return callable.call();
+        Call<V> call = new Call<V>();
+        Call<V> inflight = calls.putIfAbsent(key, call);
+        if (inflight != null) {
+            coalesced.incrementAndGet();
+            if (inflight.await(maxWait)) return inflight.get();
+            timeouts.incrementAndGet();
+            return callable.call();
+        }
+        leaders.incrementAndGet();
+        try {
+            V value = callable.call();
+            call.onResponse(value);
+            return value;
+        } catch (Exception e) {
+            call.onFailure(e);
+            throw e;
+        } finally {
+            calls.remove(key, call);
+        }
+    }
+
+    /**
+     * 异步执行,相同key正在执行时只注册listener
+     *
+     * @param key 为null时直接执行
+     * @param listener
+     * @param executor 真正发起调用,完成后回调传入的listener
+     */
+    public void executeAsync(final String key, ActionListener<V> listener, AsyncCallable<V> executor) {
+        if (!enabled || key == null) {
+            executor.call(listener);
+            return;
+        }
+        final Call<V> call = new Call<V>();
+        Call<V> inflight = calls.putIfAbsent(key, call);
+        if (inflight != null) {
+            coalesced.incrementAndGet();
+            inflight.addListener(listener);
+            return;
+        }
+        leaders.incrementAndGet();
+        call.addListener(listener);
+        try {
+            executor.call(new ActionListener<V>() {
+
+                @Override
+                public void onResponse(V value) {
+                    calls.remove(key, call);
+                    call.onResponse(value);
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    calls.remove(key, call);
+                    call.onFailure(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            calls.remove(key, call);
+            call.onFailure(e);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = Maps.newLinkedHashMap();
+        stats.put("enabled", enabled);
+        stats.put("maxWait", maxWait);
+        stats.put("inflight", calls.size());
+        stats.put("leaders", leaders.get());
+        stats.put("coalesced", coalesced.get());
+        stats.put("timeouts", timeouts.get());
+        return stats;
+    }
+
+    /**
+     * 异步调用,完成后回调listener
+     */
+    public interface AsyncCallable<V> {
+
+        void call(ActionListener<V> listener);
+    }
+
+    /**
+     * 一次在途调用,保存结果和等待者
+     */
+    private static class Call<V> implements ActionListener<V> {
+
+        private final CountDownLatch          latch     = new CountDownLatch(1);
+        private final List<ActionListener<V>> listeners = Lists.newArrayList();
+        private volatile V                    value;
+        private volatile Throwable            error;
+
+        @Override
+        public void onResponse(V value) {
+            this.value = value;
+            complete();
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+            this.error = e;
+            complete();
+        }
+
+        void addListener(ActionListener<V> listener) {
+            synchronized (this) {
+                if (latch.getCount() > 0) {
+                    listeners.add(listener);
+                    return;
+                }
+            }
+            notify(listener);
+        }
+
+        boolean await(long timeout) throws InterruptedException {
+            return latch.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        V get() throws Exception {
+            if (error == null) return value;
+            if (error instanceof Exception) throw (Exception) error;
+            throw new RuntimeException(error);
+        }
+
+        private void complete() {
+            List<ActionListener<V>> _listeners;
+            synchronized (this) {
+                latch.countDown();
+                _listeners = Lists.newArrayList(listeners);
+                listeners.clear();
+            }
+            for (ActionListener<V> listener : _listeners)
+                notify(listener);
+        }
+
+        private void notify(ActionListener<V> listener) {
+            if (error == null) listener.onResponse(value);
+            else listener.onFailure(error);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
+
+import com.google.common.base.Charsets;
+
+/**
+ * 把搜索结果的_source原始字节直接写到输出流,不解析成Map
+ *
+ * <pre>
+ * 输出格式与ok(result)一致:
+ * {"status":200,"data":{"total":..,"pageno":..,..,"list":[_source,_source,...]}}
+ * 非JSON格式存储的_source(smile/cbor等)退回sourceAsString
+ * writeLine按NDJSON每行输出一个_source,用于导出
+ * </pre>
+ *
+ * @author zxc Dec 1, 2016 11:20:15 AM
+ */
+public class SourceWriter {
+
+    private static final byte[] COMMA   = { ',' };
+    private static final byte[] NEWLINE = { '\n' };
+
+    /**
+     * @param response
+     * @param meta 信封中除list外的字段,如total/pageno/pagesize/cursor
+     * @param out
+     * @throws IOException
+     */
+    public static void write(SearchResponse response, Map<String, Object> meta, OutputStream out) throws IOException {
+        write(out, "{\"status\":200,\"data\":{");
+        for (Entry<String, Object> entry : meta.entrySet()) {
+            write(out, quote(entry.getKey()) + ":" + value(entry.getValue()) + ",");
+        }
+        write(out, "\"list\":[");
+        boolean first = true;
+        for (SearchHit hit : response.getHits().getHits()) {
+            if (!first) out.write(COMMA);
+            first = false;
+            writeSource(hit, out);
+        }
+        write(out, "]}}");
+        out.flush();
+    }
+
+    /**
+     * 按NDJSON输出一行:JSON格式且不含换行的_source原样输出,否则转成紧凑的JSON
+     *
+     * @param hit
+     * @param out
+     * @return 写出的字节数
+     * @throws IOException
+     */
+    public static int writeLine(SearchHit hit, OutputStream out) throws IOException {
+        BytesReference source = hit.sourceRef();
+        if (source == null || source.length() == 0) return 0;
+        int length;
+        if (XContentFactory.xContentType(source) == XContentType.JSON && !hasNewline(source)) {
+            source.writeTo(out);
+            length = source.length();
+        } else {
+            byte[] bytes = XContentHelper.convertToJson(source, true, false).getBytes(Charsets.UTF_8);
+            out.write(bytes);
+            length = bytes.length;
+        }
+        out.write(NEWLINE);
+        return length + 1;
+    }
+
+    private static boolean hasNewline(BytesReference source) {
+        for (int i = 0; i < source.length(); i++) {
+            byte b = source.get(i);
+            if (b == '\n' || b == '\r') return true;
+        }
+        return false;
+    }
+
+    private static void writeSource(SearchHit hit, OutputStream out) throws IOException {
+        BytesReference source = hit.sourceRef();
+        if (source == null || source.length() == 0) {
+            write(out, "null");
+        } else if (XContentFactory.xContentType(source) == XContentType.JSON) {
+            source.writeTo(out);
+        } else {
+            write(out, hit.sourceAsString());
+        }
+    }
+
+    private static String value(Object value) {
+        if (value == null) return "null";
+        if (value instanceof Number || value instanceof Boolean) return String.valueOf(value);
+        return quote(String.valueOf(value));
+    }
+
+    private static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static void write(OutputStream out, String value) throws IOException {
+        out.write(value.getBytes(Charsets.UTF_8));
+    }
+}
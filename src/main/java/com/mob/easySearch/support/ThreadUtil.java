@@ -3,25 +3,91 @@
  */
 package com.mob.easySearch.support;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.lamfire.utils.StringUtils;
+import com.mob.easySearch.support.MonitoredExecutor.NamedThreadFactory;
+import com.mob.easySearch.support.MonitoredExecutor.Policy;
 
 /**
+ * 线程工具,按名称管理有界线程池,所有线程都由NamedThreadFactory创建
+ * 
  * @author zxc Aug 18, 2016 4:30:03 PM
  */
 public class ThreadUtil {
 
-    /** # */
-    private final static String    POUND      = "#";
-    /** - */
-    private final static String    MINUS_SIGN = "-";
+    public final static String                                     DEFAULT   = "default";
 
-    private static ExecutorService pool       = Executors.newFixedThreadPool(50);
+    private final static ConcurrentMap<String, MonitoredExecutor>  executors = Maps.newConcurrentMap();
+    private final static ConcurrentMap<String, NamedThreadFactory> factorys  = Maps.newConcurrentMap();
 
-    public static void submitTask(Runnable runnable) {
-        pool.submit(runnable);
+    /**
+     * 创建(或替换)一个命名线程池,被替换的线程池执行完已提交任务后关闭
+     * 
+     * @param name 线程池名称
+     * @param coreSize 核心线程数
+     * @param maxSize 最大线程数
+     * @param queueSize 队列长度
+     * @param policy 队列满时的策略 abort|caller_runs
+     * @return
+     */
+    public static MonitoredExecutor newExecutor(String name, int coreSize, int maxSize, int queueSize, String policy) {
+        MonitoredExecutor executor = new MonitoredExecutor(name, coreSize, maxSize, queueSize, Policy.parse(policy));
+        MonitoredExecutor old = executors.put(name, executor);
+        if (old != null) old.shutdown();
+        return executor;
+    }
+
+    /**
+     * 获取命名线程池,不存在时按默认参数创建(50线程,队列10000,队列满时拒绝)
+     * 
+     * @param name
+     * @return
+     */
+    public static MonitoredExecutor executor(String name) {
+        MonitoredExecutor executor = executors.get(name);
+        if (executor != null) return executor;
+        synchronized (executors) {
+            executor = executors.get(name);
+            if (executor == null) executor = newExecutor(name, 50, 50, 10000, "abort");
+            return executor;
+        }
+    }
+
+    /**
+     * 提交到默认线程池,队列满时按线程池策略拒绝(RejectedExecutionException)或由调用线程执行
+     * 
+     * @param runnable
+     */
+    public static Future<?> submitTask(Runnable runnable) throws RejectedExecutionException {
+        return submitTask(DEFAULT, runnable);
+    }
+
+    public static Future<?> submitTask(String name, Runnable runnable) throws RejectedExecutionException {
+        return executor(name).submit(runnable);
+    }
+
+    /**
+     * 全部线程池的运行统计
+     * 
+     * @return
+     */
+    public static List<Map<String, Object>> stats() {
+        List<Map<String, Object>> stats = Lists.newArrayList();
+        for (MonitoredExecutor executor : executors.values())
+            stats.add(executor.stats());
+        return stats;
+    }
+
+    public static void shutdown() {
+        for (MonitoredExecutor executor : executors.values())
+            executor.shutdown();
     }
 
     /**
@@ -32,10 +98,14 @@ public class ThreadUtil {
      * @param sleepTime 启动完所有线程后，休息 ms
      */
     public static void startThread(Runnable runnable, String threadName, int threadNum, long sleepTime) {
+        String name = StringUtils.defaultIfEmpty(threadName, "Thread");
+        NamedThreadFactory factory = factorys.get(name);
+        if (factory == null) {
+            factorys.putIfAbsent(name, new NamedThreadFactory(name, false));
+            factory = factorys.get(name);
+        }
         for (int i = 0; i < threadNum; i++) {
-            Thread thread = new Thread(runnable, POUND + StringUtils.defaultIfEmpty(threadName, "Thread") + MINUS_SIGN
-                                                 + i);
-            thread.start();
+            factory.newThread(runnable).start();
         }
         try {
             Thread.sleep(sleepTime);
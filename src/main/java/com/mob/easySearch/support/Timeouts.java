@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * 等待ES响应的超时,所有同步调用都用actionGet(timeout),不无限等待
+ *
+ * <pre>
+ * search: 查询/取文档/scroll翻页,同时作为查询请求的timeout(分片超时后返回已收集到的结果)
+ * bulk: 写入、reindex和导出的批量读写
+ * admin: mapping/alias/index等管理操作
+ * maintenance: refresh/optimize等可能很慢的维护操作
+ * 超时抛出ElasticsearchTimeoutException,ES端的请求不会因此取消
+ * </pre>
+ *
+ * @author zxc Dec 19, 2016 10:08:52 AM
+ */
+public class Timeouts {
+
+    private static volatile TimeValue search      = TimeValue.timeValueSeconds(10);
+    private static volatile TimeValue bulk        = TimeValue.timeValueSeconds(60);
+    private static volatile TimeValue admin       = TimeValue.timeValueSeconds(30);
+    private static volatile TimeValue maintenance = TimeValue.timeValueHours(1);
+
+    /**
+     * @param search ms
+     * @param bulk ms
+     * @param admin ms
+     * @param maintenance ms
+     */
+    public static void configure(long search, long bulk, long admin, long maintenance) {
+        Timeouts.search = TimeValue.timeValueMillis(search);
+        Timeouts.bulk = TimeValue.timeValueMillis(bulk);
+        Timeouts.admin = TimeValue.timeValueMillis(admin);
+        Timeouts.maintenance = TimeValue.timeValueMillis(maintenance);
+    }
+
+    public static TimeValue search() {
+        return search;
+    }
+
+    public static TimeValue bulk() {
+        return bulk;
+    }
+
+    public static TimeValue admin() {
+        return admin;
+    }
+
+    public static TimeValue maintenance() {
+        return maintenance;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.FilterClient;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * 写入闸门:包装ingest通道的Client,可以暂停对某个index的写入
+ *
+ * <pre>
+ * index/delete/bulk请求发出前登记涉及的index,返回后注销;index被暂停时请求在发出前等待,恢复后继续
+ * {@link #pause(String, long)}等待已发出的写入全部返回,之后直到{@link #resume(String)}不会有写入到达ES
+ * 用于旧的实体index迁移到alias:删除旧index到建立alias之间如果有写入,ES会自动创建同名index,alias无法建立
+ * </pre>
+ *
+ * @author zxc Dec 21, 2016 3:12:40 PM
+ */
+public class WriteGate extends FilterClient {
+
+    private final Client               client;
+
+    // 由this保护
+    private final Set<String>          paused   = Sets.newHashSet();
+    private final Map<String, Integer> inflight = Maps.newHashMap();
+
+    public WriteGate(Client client) {
+        super(client);
+        this.client = client;
+    }
+
+    /**
+     * @return 被包装的Client
+     */
+    public Client getClient() {
+        return client;
+    }
+
+    @Override
+    public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, Client>> ActionFuture<Response> execute(Action<Request, Response, RequestBuilder> action,
+                                                                                                                                                                                              Request request) {
+        PlainActionFuture<Response> future = PlainActionFuture.newFuture();
+        execute(action, request, future);
+        return future;
+    }
+
+    @Override
+    public <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder, Client>> void execute(Action<Request, Response, RequestBuilder> action,
+                                                                                                                                                                                Request request,
+                                                                                                                                                                                final ActionListener<Response> listener) {
+        final Set<String> indices = indices(request);
+        if (indices.isEmpty()) {
+            super.execute(action, request, listener);
+            return;
+        }
+        enter(indices);
+        final AtomicBoolean done = new AtomicBoolean();
+        try {
+            super.execute(action, request, new ActionListener<Response>() {
+
+                @Override
+                public void onResponse(Response response) {
+                    if (done.compareAndSet(false, true)) exit(indices);
+                    listener.onResponse(response);
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    if (done.compareAndSet(false, true)) exit(indices);
+                    listener.onFailure(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            if (done.compareAndSet(false, true)) exit(indices);
+            throw e;
+        }
+    }
+
+    /**
+     * 暂停写入index并等待已发出的写入返回,必须在finally中调用{@link #resume(String)}
+     *
+     * @param index
+     * @param timeout 等待已发出写入的上限ms
+     * @throws IllegalStateException 超时仍有写入未返回,此时已恢复写入
+     */
+    public synchronized void pause(String index, long timeout) {
+        paused.add(index);
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            while (inflight.containsKey(index)) {
+                long remain = deadline - System.currentTimeMillis();
+                if (remain <= 0) throw new IllegalStateException("writes to " + index + " not drained in " + timeout
+                                                                 + "ms");
+                wait(remain);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            resume(index);
+            throw new IllegalStateException("pause writes to " + index + " interrupted");
+        } catch (RuntimeException e) {
+            resume(index);
+            throw e;
+        }
+    }
+
+    public synchronized void resume(String index) {
+        paused.remove(index);
+        notifyAll();
+    }
+
+    // *********************************************** private method *******************************************//
+
+    private synchronized void enter(Set<String> indices) {
+        try {
+            while (!paused.isEmpty() && !Sets.intersection(paused, indices).isEmpty())
+                wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("write to " + indices + " interrupted");
+        }
+        for (String index : indices) {
+            Integer count = inflight.get(index);
+            inflight.put(index, count == null ? 1 : count + 1);
+        }
+    }
+
+    private synchronized void exit(Set<String> indices) {
+        for (String index : indices) {
+            Integer count = inflight.get(index);
+            if (count == null || count <= 1) inflight.remove(index);
+            else inflight.put(index, count - 1);
+        }
+        notifyAll();
+    }
+
+    private static Set<String> indices(ActionRequest<?> request) {
+        Set<String> indices = Sets.newHashSet();
+        if (request instanceof BulkRequest) {
+            for (ActionRequest<?> req : ((BulkRequest) request).requests())
+                indices.addAll(indices(req));
+        } else if (request instanceof IndexRequest) {
+            indices.add(((IndexRequest) request).index());
+        } else if (request instanceof DeleteRequest) {
+            indices.add(((DeleteRequest) request).index());
+        }
+        return indices;
+    }
+}
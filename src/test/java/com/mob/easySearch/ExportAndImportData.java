@@ -3,27 +3,16 @@
  */
 package com.mob.easySearch;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 
-import org.apache.commons.io.FileUtils;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.index.IndexRequestBuilder;
-import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.action.search.SearchType;
-import org.elasticsearch.client.Client;
-import org.elasticsearch.common.unit.TimeValue;
-import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.search.SearchHits;
-
-import com.lamfire.json.JSON;
-import com.lamfire.utils.Lists;
 import com.lamfire.utils.PropertiesUtils;
 import com.lamfire.utils.StringUtils;
 import com.mob.easySearch.support.ElasticsearchHelper;
+import com.mob.easySearch.support.ImportPipeline;
+import com.mob.easySearch.support.ShardExporter;
 
 /**
  * 导出ES指定Index的所有数据
@@ -37,64 +26,43 @@ public class ExportAndImportData {
     private static String              nodes;
     private static ElasticsearchHelper es;
 
-    private static long                keepAlive = 60000000;
+    private static long                keepAlive = 600000;
 
     static {
         pro = PropertiesUtils.load("application.properties", ExportAndImportData.class);
         clusterName = pro.getProperty("es.cluster.name");
         nodes = pro.getProperty("es.nodes");
         String[] nodeArray = StringUtils.split(nodes, ",");
-        es = new ElasticsearchHelper(clusterName, nodeArray);
+        // es.client.mode=local时使用JVM内的本地数据节点
+        es = ElasticsearchHelper.create(pro.getProperty("es.client.mode"), clusterName, nodeArray,
+                                        pro.getProperty("es.local.data", "data/local"), null);
     }
 
     public static void main(String[] args) throws Exception {
         // long total = new ExportAndImportData()//
-        // .exportData("/data/es/appgo.json", "appgo", "app_publisher_search");
+        // .exportData("/data/es/appgo", "appgo", "app_publisher_search");
         // System.out.println("---------------------> 共导出数据[" + total + "]条 <------------------------");
 
         long _total = new ExportAndImportData()//
-        .importData("/data/appgo.json2", "appgo", "app_publisher_search", 500000);
+        .importData("/data/appgo.json2", "appgo", "app_publisher_search", 5000);
         System.out.println("---------------------> 共导入数据[" + _total + "]条 <------------------------");
     }
 
     /**
-     * 导出索引文件
+     * 导出索引文件,每个分片并行导出为gzip压缩的NDJSON分段,中断后重新运行从checkpoint继续
      * 
-     * @param filePath
+     * @param dir 输出目录
      * @param index
      * @param indexType
      * @return
      */
-    public long exportData(String filePath, String index, String indexType) {
+    public long exportData(String dir, String index, String indexType) {
         long total = 0;
-        int size = 10000;
         try {
-            Client client = es.getClient();
-            TimeValue timeValue = new TimeValue(keepAlive);
-            SearchResponse response = client.prepareSearch(index)//
-            .setTypes(indexType)//
-            .setQuery(QueryBuilders.matchAllQuery())//
-            .setSize(size)//
-            .setScroll(timeValue)//
-            .setSearchType(SearchType.SCAN).execute().actionGet();
-            String scrollId = response.getScrollId();
-            List<String> data = Lists.newArrayList(size);
-            long _count = response.getHits().getTotalHits();
-            for (; total < _count;) {
-                data.clear();
-                SearchResponse scrollResponse = client.prepareSearchScroll(scrollId) //
-                .setScroll(timeValue).execute().actionGet();
-                SearchHits hits = scrollResponse.getHits();
-                int length = hits.getHits().length;
-                total += length;
-                for (int i = 0; i < length; i++) {
-                    String result = hits.getHits()[i].getSourceAsString();
-                    if (StringUtils.isBlank(result)) continue;
-                    data.add(result);
-                }
-                System.out.println("总量" + _count + " 已经查到" + total);
-                FileUtils.writeLines(new File(filePath), "utf-8", data, true);
-            }
+            ShardExporter exporter = new ShardExporter(es.getClient(), index, indexType, new File(dir), true, 5000,
+                                                       1000000, keepAlive);
+            Map<String, Object> result = exporter.export(es.shardIds(index), 8, 10000);
+            total = (Long) result.get("docs");
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -102,38 +70,30 @@ public class ExportAndImportData {
     }
 
     /**
-     * 批量导入索引文件
+     * 批量导入索引文件,内存映射读取/并行解析/并发提交
      * 
      * @param dataFile
      * @param index
      * @param indexType
-     * @param batchSize
+     * @param batchSize 每个bulk的文档数
      * @return
      */
-    public long importData(String dataFile, String index, String indexType, int batchSize) {
+    public long importData(final String dataFile, String index, String indexType, int batchSize) {
         long count = 0;
         try {
-            Client client = es.getClient();
-            BulkRequestBuilder bulkRequest = client.prepareBulk();
-            BufferedReader reader = new BufferedReader(new FileReader(dataFile));
-            String line = null;
+            final ImportPipeline pipeline = new ImportPipeline(es.getAdaptiveBulk(), index, indexType)//
+            .threads(4, 4)//
+            .batch(5 * 1024 * 1024, batchSize);
+            // 导入模式:导入期间关闭refresh和副本,结束后optimize并恢复
+            Map<String, Object> result = es.bulkLoad(index, true, new Callable<Map<String, Object>>() {
 
-            while ((line = reader.readLine()) != null) {
-                JSON temp = JSON.fromJSONString(line);
-                IndexRequestBuilder indexBuilder = client.prepareIndex(index, indexType);
-                if (temp.containsKey("id")) indexBuilder.setId(temp.getString("id"));
-                indexBuilder.setSource(line);
-                bulkRequest.add(indexBuilder);
-                if (count % batchSize == 0) {
-                    bulkRequest.execute().actionGet();
-                    System.out.println("提交了[" + count + "]条.");
+                @Override
+                public Map<String, Object> call() throws Exception {
+                    return pipeline.run(new File(dataFile));
                 }
-                count++;
-            }
-            bulkRequest.execute().actionGet();
-            System.out.println("导入完毕，共导入数据[" + count + "]条");
-            reader.close();
-            return count;
+            });
+            count = (Long) result.get("indexed");
+            System.out.println("导入完毕，共导入数据[" + count + "]条 " + result);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * DocumentSplitter切分JSON数组/NDJSON,切出的字节区间应与原文档一致
+ *
+ * @author zxc Dec 16, 2016 3:40:18 PM
+ */
+public class DocumentSplitterTest {
+
+    @Test
+    public void array() throws IOException {
+        String body = "[{\"id\":\"a\",\"n\":1}, {\"n\":2,\"id\":7} ,{\"tags\":[1,{\"id\":\"x\"}],\"id\":\"c\"}]";
+        Documents docs = split(body);
+        assertEquals(3, docs.ids.size());
+        assertEquals(Lists.newArrayList("a", "7", "c"), docs.ids);
+        assertEquals("{\"id\":\"a\",\"n\":1}", docs.sources.get(0));
+        assertEquals("{\"n\":2,\"id\":7}", docs.sources.get(1));
+        assertEquals("{\"tags\":[1,{\"id\":\"x\"}],\"id\":\"c\"}", docs.sources.get(2));
+    }
+
+    @Test
+    public void emptyArray() throws IOException {
+        assertEquals(0, split("[ ]").ids.size());
+        assertEquals(0, split("").ids.size());
+    }
+
+    @Test
+    public void ndjson() throws IOException {
+        String body = "{\"id\":\"a\",\"name\":\"中文\"}\n{\"name\":\"b\",\"meta\":{\"id\":\"x\"}}\r\n{\"id\":null} {\"id\":\"d\"}\n";
+        Documents docs = split(body);
+        assertEquals(4, docs.ids.size());
+        assertEquals("a", docs.ids.get(0));
+        // 嵌套的id不是文档id
+        assertNull(docs.ids.get(1));
+        assertNull(docs.ids.get(2));
+        assertEquals("d", docs.ids.get(3));
+        // 多字节字符按字节偏移切分
+        assertEquals("{\"id\":\"a\",\"name\":\"中文\"}", docs.sources.get(0));
+        assertEquals("{\"name\":\"b\",\"meta\":{\"id\":\"x\"}}", docs.sources.get(1));
+        assertEquals("{\"id\":\"d\"}", docs.sources.get(3));
+    }
+
+    @Test
+    public void malformed() {
+        malformed("[{\"id\":\"a\"}");
+        malformed("[{\"id\":\"a\"},");
+        malformed("{\"id\":\"a\"");
+        malformed("{\"id\":\"a\"}\n{\"id\":");
+        malformed("[{\"id\":\"a\"}, 1]");
+        malformed("[[{\"id\":\"a\"}]]");
+        malformed("{\"id\":\"a\"}\n\"b\"");
+        malformed("[{\"id\":\"a\"}] {\"id\":\"b\"}");
+        malformed("{\"id\":\"a\",}");
+    }
+
+    // *********************************************** private method *******************************************//
+
+    private static void malformed(String body) {
+        try {
+            split(body);
+            fail("expected IOException: " + body);
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static Documents split(String body) throws IOException {
+        final byte[] bytes = body.getBytes("UTF-8");
+        final Documents docs = new Documents();
+        int count = DocumentSplitter.split(bytes, new DocumentSplitter.Handler() {
+
+            @Override
+            public void onDocument(String id, int offset, int length) {
+                docs.ids.add(id);
+                try {
+                    docs.sources.add(new String(bytes, offset, length, "UTF-8"));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        assertEquals(count, docs.ids.size());
+        return docs;
+    }
+
+    private static class Documents {
+
+        private final List<String> ids     = Lists.newArrayList();
+        private final List<String> sources = Lists.newArrayList();
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2015-2020 msun.com All right reserved.
+ */
+package com.mob.easySearch.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * IndexJournal恢复和checkpoint位置
+ *
+ * <pre>
+ * 每个用例重新打开同一个目录,模拟进程重启;损坏的数据直接改段文件
+ * </pre>
+ *
+ * @author zxc Dec 16, 2016 3:12:40 PM
+ */
+public class IndexJournalTest {
+
+    private static final int SEGMENT_BYTES = 64 * 1024;
+
+    private File             dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("journal", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void reopen() throws IOException {
+        IndexJournal journal = new IndexJournal(dir, SEGMENT_BYTES);
+        append(journal, 3);
+        long writeOffset = writeOffset(journal);
+
+        journal = new IndexJournal(dir, SEGMENT_BYTES);
+        assertEquals(writeOffset, writeOffset(journal));
+        List<IndexJournal.Record> records = journal.read(10, Long.MAX_VALUE);
+        assertIds(records, "1", "2", "3");
+        assertEquals("test", records.get(0).getIndex());
+        assertEquals("doc", records.get(0).getType());
+        assertEquals("{\"id\":\"1\"}", new String(records.get(0).getSource(), "UTF-8"));
+    }
+
+    @Test
+    public void commit() throws IOException {
+        IndexJournal journal = new IndexJournal(dir, SEGMENT_BYTES);
+        append(journal, 3);
+        List<IndexJournal.Record> records = journal.read(2, Long.MAX_VALUE);
+        assertIds(records, "1", "2");
+        // 未commit时重复读取同样的记录
+        assertIds(journal.read(2, Long.MAX_VALUE), "1", "2");
+
+        journal.commit(records.get(1), records.size());
+        assertIds(journal.read(10, Long.MAX_VALUE), "3");
+
+        journal = new IndexJournal(dir, SEGMENT_BYTES);
+        assertIds(journal.read(10, Long.MAX_VALUE), "3");
+    }
+
+    @Test
+    public void corruptLast() throws IOException {
+        IndexJournal journal = new IndexJournal(dir, SEGMENT_BYTES);
+        append(journal, 2);
+        long valid = writeOffset(journal);
+        append(journal, 3, 1);
+
+        // 改最后一条记录payload中的一个字节,crc不匹配
+        RandomAccessFile file = new RandomAccessFile(segment(0), "rw");
+        try {
+            file.seek(valid + 8 + 1);
+            int b = file.read();
+            file.seek(valid + 8 + 1);
+            file.write(b ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        journal = new IndexJournal(dir, SEGMENT_BYTES);
+        assertEquals(valid, writeOffset(journal));
+        assertIds(journal.read(10, Long.MAX_VALUE), "1", "2");
+
+        // 从损坏的位置继续追加
+        append(journal, 4, 1);
+        assertIds(journal.read(10, Long.MAX_VALUE), "1", "2", "4");
+    }
+
+    @Test
+    public void truncateLast() throws IOException {
+        IndexJournal journal = new IndexJournal(dir, SEGMENT_BYTES);
+        append(journal, 2);
+        long valid = writeOffset(journal);
+        append(journal, 3, 1);
+        long end = writeOffset(journal);
+
+        // 只写入了长度和crc,payload没有落盘
+        RandomAccessFile file = new RandomAccessFile(segment(0), "rw");
+        try {
+            file.seek(valid + 8);
+            file.write(new byte[(int) (end - valid - 8)]);
+        } finally {
+            file.close();
+        }
+
+        journal = new IndexJournal(dir, SEGMENT_BYTES);
+        assertEquals(valid, writeOffset(journal));
+        assertIds(journal.read(10, Long.MAX_VALUE), "1", "2");
+
+        List<IndexJournal.Record> records = journal.read(10, Long.MAX_VALUE);
+        journal.commit(records.get(1), records.size());
+        assertEquals(valid, readOffset(journal));
+        assertTrue(journal.read(10, Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void writeOffsetBeforeCheckpoint() throws IOException {
+        IndexJournal journal = new IndexJournal(dir, SEGMENT_BYTES);
+        append(journal, 3);
+        List<IndexJournal.Record> records = journal.read(10, Long.MAX_VALUE);
+        journal.commit(records.get(2), records.size());
+        long checkpoint = readOffset(journal);
+        assertEquals(writeOffset(journal), checkpoint);
+
+        // checkpoint已刷盘,段数据掉电丢失
+        RandomAccessFile file = new RandomAccessFile(segment(0), "rw");
+        try {
+            file.seek(0);
+            file.write(new byte[(int) checkpoint]);
+        } finally {
+            file.close();
+        }
+
+        journal = new IndexJournal(dir, SEGMENT_BYTES);
+        assertEquals(checkpoint, readOffset(journal));
+        assertEquals(checkpoint, writeOffset(journal));
+        assertEquals(0, journal.pending());
+        assertTrue(journal.read(10, Long.MAX_VALUE).isEmpty());
+
+        // 从checkpoint继续追加,读到的只有新记录
+        append(journal, 4, 1);
+        records = journal.read(10, Long.MAX_VALUE);
+        assertIds(records, "4");
+        journal.commit(records.get(0), records.size());
+        assertEquals(writeOffset(journal), readOffset(journal));
+
+        journal = new IndexJournal(dir, SEGMENT_BYTES);
+        assertTrue(journal.read(10, Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void roll() throws IOException {
+        IndexJournal journal = new IndexJournal(dir, 256);
+        append(journal, 10);
+        assertTrue(((Number) journal.stats().get("writeSegment")).longValue() > 0);
+
+        List<IndexJournal.Record> records = journal.read(100, Long.MAX_VALUE);
+        assertEquals(10, records.size());
+        journal.commit(records.get(8), 9);
+        assertFalse(segment(0).exists());
+
+        journal = new IndexJournal(dir, 256);
+        assertIds(journal.read(100, Long.MAX_VALUE), "10");
+    }
+
+    // *********************************************** private method *******************************************//
+
+    private File segment(long segment) {
+        return new File(dir, String.format("journal-%010d.log", segment));
+    }
+
+    private static void append(IndexJournal journal, int count) throws IOException {
+        append(journal, 1, count);
+    }
+
+    private static void append(IndexJournal journal, int from, int count) throws IOException {
+        for (int i = from; i < from + count; i++) {
+            journal.append("test", "doc", String.valueOf(i), ("{\"id\":\"" + i + "\"}").getBytes("UTF-8"));
+        }
+    }
+
+    private static long writeOffset(IndexJournal journal) {
+        return ((Number) journal.stats().get("writeOffset")).longValue();
+    }
+
+    private static long readOffset(IndexJournal journal) {
+        return ((Number) journal.stats().get("readOffset")).longValue();
+    }
+
+    private static void assertIds(List<IndexJournal.Record> records, String... ids) {
+        assertEquals(ids.length, records.size());
+        for (int i = 0; i < ids.length; i++)
+            assertEquals(ids[i], records.get(i).getId());
+    }
+}